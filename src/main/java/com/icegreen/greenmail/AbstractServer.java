@@ -55,6 +55,7 @@ public abstract class AbstractServer extends Service {
     protected Vector handlers = null;
     protected Managers managers;
     protected ServerSetup setup;
+    protected HandlerExecutor handlerExecutor;
 
     protected AbstractServer(ServerSetup setup, Managers managers) {
         try {
@@ -65,6 +66,7 @@ public abstract class AbstractServer extends Service {
         }
         this.managers = managers;
         handlers = new Vector();
+        handlerExecutor = HandlerExecutor.forSetup(setup);
     }
 
     protected synchronized ServerSocket openServerSocket() throws IOException {
@@ -94,6 +96,17 @@ public abstract class AbstractServer extends Service {
         return setup;
     }
 
+    public HandlerExecutor getHandlerExecutor() {
+        return handlerExecutor;
+    }
+
+    /**
+     * Replaces the executor chosen by the server setup. Only affects connections accepted afterwards.
+     */
+    public void setHandlerExecutor(HandlerExecutor handlerExecutor) {
+        this.handlerExecutor = handlerExecutor;
+    }
+
     public void deregisterHandler(Object handler){
         this.handlers.remove(handler);
     }
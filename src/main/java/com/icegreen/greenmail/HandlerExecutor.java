@@ -0,0 +1,136 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail;
+
+import com.icegreen.greenmail.util.ServerSetup;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the connection handlers of a server. Handlers are plain blocking code, this
+ * decides what kind of thread they block on.
+ *
+ * @see ServerSetup#isVirtualThreads()
+ */
+public abstract class HandlerExecutor {
+    private static final Logger log = LoggerFactory.getLogger(HandlerExecutor.class);
+
+    /**
+     * Runs every handler on a platform thread of its own.
+     */
+    public static final HandlerExecutor PLATFORM_THREADS = new HandlerExecutor() {
+        public void execute(Runnable handler) {
+            if (handler instanceof Thread) {
+                ((Thread) handler).start();
+            } else {
+                new Thread(handler).start();
+            }
+        }
+    };
+
+    /**
+     * Thread.startVirtualThread(Runnable), looked up at runtime as the code is compiled for Java 17.
+     */
+    private static final Method START_VIRTUAL_THREAD = findStartVirtualThread(Thread.class);
+
+    /**
+     * Runs every handler on a virtual thread of its own, so that idle connections
+     * do not hold on to a platform thread and its stack.
+     */
+    public static final HandlerExecutor VIRTUAL_THREADS = new ReflectiveExecutor(START_VIRTUAL_THREAD);
+
+    /**
+     * Starts the given handler.
+     *
+     * @param handler the handler, usually a not yet started thread.
+     */
+    public abstract void execute(Runnable handler);
+
+    /**
+     * @return whether the running JVM supports virtual threads.
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return START_VIRTUAL_THREAD != null;
+    }
+
+    /**
+     * Returns the executor requested by the given setup. Falls back to platform threads
+     * if virtual threads have been requested but the JVM does not support them.
+     */
+    public static HandlerExecutor forSetup(ServerSetup setup) {
+        return forSetup(setup, isVirtualThreadsSupported());
+    }
+
+    static HandlerExecutor forSetup(ServerSetup setup, boolean virtualThreadsSupported) {
+        if (setup.isVirtualThreads()) {
+            if (virtualThreadsSupported) {
+                return VIRTUAL_THREADS;
+            }
+            log.warn("Virtual threads require Java 21, using platform threads for " + setup.getProtocol());
+        }
+        return PLATFORM_THREADS;
+    }
+
+    /**
+     * @return the static startVirtualThread(Runnable) method of the given class, null if it has none.
+     */
+    static Method findStartVirtualThread(Class threadClass) {
+        try {
+            return threadClass.getMethod("startVirtualThread", new Class[]{Runnable.class});
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts every handler by calling a static method taking it, such as Thread.startVirtualThread(Runnable).
+     */
+    static class ReflectiveExecutor extends HandlerExecutor {
+        private final Method start;
+
+        ReflectiveExecutor(Method start) {
+            this.start = start;
+        }
+
+        public void execute(Runnable handler) {
+            try {
+                start.invoke(null, new Object[]{handler});
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+}
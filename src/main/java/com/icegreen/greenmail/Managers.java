@@ -35,6 +35,7 @@ import com.icegreen.greenmail.user.UserManager;
 import com.icegreen.greenmail.imap.ImapHostManager;
 import com.icegreen.greenmail.imap.ImapHostManagerImpl;
 import com.icegreen.greenmail.store.InMemoryStore;
+import com.icegreen.greenmail.store.Store;
 
 /**
  * @author Wael Chatila
@@ -42,9 +43,23 @@ import com.icegreen.greenmail.store.InMemoryStore;
  * @since Jan 27, 2006
  */
 public class Managers {
-    private ImapHostManager imapHostManager = new ImapHostManagerImpl(new InMemoryStore());
-    private UserManager userManager = new UserManager(imapHostManager);
-    private SmtpManager smtpManager = new SmtpManager(imapHostManager, userManager);
+    private ImapHostManager imapHostManager;
+    private UserManager userManager;
+    private SmtpManager smtpManager;
+
+    public Managers() {
+        this(new InMemoryStore());
+    }
+
+    /**
+     * @param store The store holding the mailboxes, for example a
+     *              {@link com.icegreen.greenmail.store.FileStore} for large amounts of mail.
+     */
+    public Managers(Store store) {
+        imapHostManager = new ImapHostManagerImpl(store);
+        userManager = new UserManager(imapHostManager);
+        smtpManager = new SmtpManager(imapHostManager, userManager);
+    }
 
     public SmtpManager getSmtpManager() {
         return smtpManager;
@@ -0,0 +1,49 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.imap;
+
+/**
+ * The transport side of an IMAP session: the part of the server that owns the
+ * client connection, whether that is a thread per socket or a selector shared
+ * by many connections.
+ *
+ * @see ImapHandler
+ * @see NioImapServer
+ */
+public interface ImapConnection {
+    /**
+     * Sends an untagged BYE response with the given message and closes the connection.
+     *
+     * @param message the text of the BYE response.
+     */
+    void forceConnectionClose(String message);
+
+    /**
+     * Closes the connection once everything already written has been sent,
+     * and releases the resources held for it.
+     */
+    void resetHandler();
+}
@@ -36,10 +36,8 @@
 package com.icegreen.greenmail.imap;
 
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.Socket;
 
@@ -55,7 +53,7 @@ import com.icegreen.greenmail.util.InternetPrintWriter;
  * @author Federico Barbieri <scoobie@systemy.it>
  * @author Peter M. Goldstein <farsight@alum.mit.edu>
  */
-public class ImapHandler extends Thread implements ImapConstants {
+public class ImapHandler extends Thread implements ImapConnection, ImapConstants {
 
     private ImapRequestHandler requestHandler = new ImapRequestHandler();
     private ImapSession session;
@@ -66,11 +64,6 @@ public class ImapHandler extends Thread implements ImapConstants {
      */
     private Socket socket;
 
-    /**
-     * The reader associated with incoming characters.
-     */
-    private BufferedReader in;
-
     /**
      * The socket's input stream.
      */
@@ -114,7 +107,6 @@ public class ImapHandler extends Thread implements ImapConstants {
 
         try {
             ins = socket.getInputStream();
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), EIGHT_BIT_ENCODING), 4096);
             remoteIP = socket.getInetAddress().getHostAddress();
             remoteHost = socket.getInetAddress().getHostName();
         } catch (IOException e) {
@@ -134,6 +126,7 @@ public class ImapHandler extends Thread implements ImapConstants {
                     .append("GreenMail")
                     .append(" ready");
             response.okResponse(null, responseBuffer.toString());
+            response.flush();
 
             session = new ImapSessionImpl(imapHost,
                     userManager,
@@ -154,7 +147,7 @@ public class ImapHandler extends Thread implements ImapConstants {
     /**
      * Resets the handler data to a basic state.
      */
-    void resetHandler() {
+    public void resetHandler() {
 
         // Close and clear streams, sockets
 
@@ -172,16 +165,6 @@ public class ImapHandler extends Thread implements ImapConstants {
             socket = null;
         }
 
-        try {
-            if (in != null) {
-                in.close();
-            }
-        } catch (Exception e) {
-            // Ignored
-        } finally {
-            in = null;
-        }
-
         try {
             if (out != null) {
                 out.close();
@@ -121,8 +121,14 @@ public class ImapHostManagerImpl
      */
     public void createPrivateMailAccount(GreenMailUser user) throws FolderException {
         MailFolder root = store.getMailbox(USER_NAMESPACE);
-        MailFolder userRoot = store.createMailbox(root, user.getQualifiedMailboxName(), false);
-        store.createMailbox(userRoot, INBOX_NAME, true);
+        // Mailbox names are unique, so an account created again for the same login reuses its folders
+        MailFolder userRoot = store.getMailbox(root, user.getQualifiedMailboxName());
+        if (userRoot == null) {
+            userRoot = store.createMailbox(root, user.getQualifiedMailboxName(), false);
+        }
+        if (store.getMailbox(userRoot, INBOX_NAME) == null) {
+            store.createMailbox(userRoot, INBOX_NAME, true);
+        }
     }
 
     /**
@@ -234,9 +240,8 @@ public class ImapHostManagerImpl
     }
 
     /**
-     * Partial implementation of list functionality.
-     * TODO: Handle wildcards anywhere in store pattern
-     * (currently only supported as last character of pattern)
+     * Lists the mailboxes matching a pattern, with the '*' and '%' wildcards
+     * allowed anywhere in the pattern.
      *
      * @see com.icegreen.greenmail.imap.ImapHostManager#listMailboxes
      */
@@ -370,7 +375,7 @@ public class ImapHostManagerImpl
         private Collection getUserSubs(GreenMailUser user) {
             Collection subs = (Collection) userSubs.get(user.getLogin());
             if (subs == null) {
-                subs = new ArrayList();
+                subs = new LinkedHashSet();
                 userSubs.put(user.getLogin(), subs);
             }
             return subs;
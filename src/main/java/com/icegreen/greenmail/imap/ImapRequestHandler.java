@@ -45,6 +45,8 @@ import java.io.OutputStream;
 public final class ImapRequestHandler {
     private ImapCommandFactory imapCommands = new ImapCommandFactory();
     private CommandParser parser = new CommandParser();
+    private ImapRequestLineReader reader;
+    private ImapResponse response;
     private static final String REQUEST_SYNTAX = "Protocol Error: Was expecting <tag SPACE command [arguments]>";
 
     /**
@@ -61,16 +63,39 @@ public final class ImapRequestHandler {
                                  OutputStream output,
                                  ImapSession session)
             throws ProtocolException {
-        ImapRequestLineReader request = new ImapRequestLineReader(input, output);
+        // The reader buffers input, so it is kept for as long as the streams stay the same
+        if (reader == null || !reader.isReading(input, output)) {
+            reader = new ImapRequestLineReader(input, output);
+        }
+        return handleRequest(reader, output, session);
+    }
+
+    /**
+     * Handles a single request read from the given reader.
+     *
+     * @return whether additional commands are expected.
+     * @see #handleRequest(InputStream, OutputStream, ImapSession)
+     */
+    boolean handleRequest(ImapRequestLineReader request,
+                          OutputStream output,
+                          ImapSession session)
+            throws ProtocolException {
+        request.nextRequest();
         try {
             request.nextChar();
         } catch (ProtocolException e) {
             return false;
         }
 
-        ImapResponse response = new ImapResponse(output);
+        // Responses are buffered per command, so the same one is used for the whole session
+        if (response == null || !response.isWritingTo(output)) {
+            response = new ImapResponse(output);
+        } else {
+            response.reset();
+        }
 
         doProcessRequest(request, response, session);
+        response.flush();
 
         // Consume the rest of the line, throwing away any extras. This allows us
         // to clean up after a protocol error.
@@ -38,6 +38,7 @@ package com.icegreen.greenmail.imap;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,25 +46,74 @@ import org.slf4j.LoggerFactory;
 /**
  * Wraps the client input reader with a bunch of convenience methods, allowing lookahead=1
  * on the underlying character stream.
- * TODO need to look at encoding, and whether we should be wrapping an InputStream instead.
+ * <p/>
+ * Input is read in blocks into a reusable buffer, and characters are taken from there,
+ * so a reader should be kept for the whole connection rather than created per request.
+ * Bytes are mapped to chars one to one (ISO-8859-1).
  *
  * @author Darrell DeBoer <darrell@apache.org>
  * @version $Revision: 109034 $
  */
 public class ImapRequestLineReader {
+    private static final int BUFFER_SIZE = 4096;
+
     private InputStream input;
     private OutputStream output;
+    private boolean continuationRequests;
     
     private static final Logger log = LoggerFactory.getLogger(ImapRequestLineReader.class);
     private StringBuffer debugBuffer;
+    private boolean debug;
+    private int debugStart;
 
-    private boolean nextSeen = false;
-    private char nextChar; // unknown
+    private byte[] buffer;
+    private int position;
+    private int limit;
 
     ImapRequestLineReader(InputStream input, OutputStream output) {
+        this(input, output, true);
+    }
+
+    /**
+     * @param continuationRequests false if the transport already answered synchronizing
+     *                             literals with a continuation request while framing the request.
+     */
+    ImapRequestLineReader(InputStream input, OutputStream output, boolean continuationRequests) {
         this.input = input;
         this.output = output;
+        this.continuationRequests = continuationRequests;
+        this.buffer = new byte[BUFFER_SIZE];
         this.debugBuffer = new StringBuffer();
+        nextRequest();
+    }
+
+    /**
+     * Creates a reader for a single request that has already been received in full.
+     * Continuation requests have been sent while receiving it.
+     */
+    ImapRequestLineReader(byte[] request, OutputStream output) {
+        this.output = output;
+        this.continuationRequests = false;
+        this.buffer = request;
+        this.limit = request.length;
+        this.debugBuffer = new StringBuffer();
+        nextRequest();
+    }
+
+    /**
+     * @return whether this reader reads from the given streams.
+     */
+    boolean isReading(InputStream input, OutputStream output) {
+        return this.input == input && this.output == output;
+    }
+
+    /**
+     * Starts reading the next request, dropping what has been recorded for debugging the previous one.
+     */
+    void nextRequest() {
+        debug = log.isDebugEnabled();
+        debugBuffer.setLength(0);
+        debugStart = position;
     }
 
     /**
@@ -97,25 +147,45 @@ public class ImapRequestLineReader {
      * @throws ProtocolException If the end-of-stream is reached.
      */
     public char nextChar() throws ProtocolException {
-        if (!nextSeen) {
-            int next = -1;
-
-            try {
-                next = input.read();
-            } catch (IOException e) {
-//                e.printStackTrace();
-                throw new ProtocolException("Error reading from stream.");
+        if (position == limit && !fill()) {
+            throw new ProtocolException("Unexpected end of stream.");
+        }
+        return (char) (buffer[position] & 0xff);
+    }
+
+    /**
+     * Returns the number of characters from the current one up to, not including, the
+     * first of the given stop characters. Reads further input as required, so the
+     * characters can then be inspected with {@link #charAt(int)} and taken with
+     * {@link #consume(int)}.
+     *
+     * @param stopChars the characters ending the scan.
+     * @return the number of characters before the first stop character.
+     * @throws ProtocolException If the end-of-stream is reached before a stop character.
+     */
+    public int lengthUntil(String stopChars) throws ProtocolException {
+        int offset = 0;
+        while (true) {
+            for (int i = position + offset; i < limit; i++) {
+                if (stopChars.indexOf((char) (buffer[i] & 0xff)) >= 0) {
+                    return i - position;
+                }
             }
-            if (next == -1) {
+            offset = limit - position;
+            if (!fill()) {
                 throw new ProtocolException("Unexpected end of stream.");
             }
-
-            nextSeen = true;
-            nextChar = (char) next;
-//            System.out.println( "Read '" + nextChar + "'" );
         }
+    }
 
-        return nextChar;
+    /**
+     * Returns a character ahead of the current one, which must have been scanned
+     * with {@link #lengthUntil(String)}.
+     *
+     * @param offset the offset from the current character.
+     */
+    public char charAt(int offset) {
+        return (char) (buffer[position + offset] & 0xff);
     }
 
     /**
@@ -158,14 +228,21 @@ public class ImapRequestLineReader {
      */
     public char consume() throws ProtocolException {
         char current = nextChar();
-        if (log.isDebugEnabled()){
-        	debugBuffer.append(current);     	
-        }
-        nextSeen = false;
-        nextChar = 0;
+        position++;
         return current;
     }
 
+    /**
+     * Consumes a number of characters, which must have been scanned with {@link #lengthUntil(String)}.
+     *
+     * @param length the number of characters.
+     * @return the consumed characters.
+     */
+    public String consume(int length) {
+        String value = new String(buffer, position, length, StandardCharsets.ISO_8859_1);
+        position += length;
+        return value;
+    }
 
     /**
      * Reads and consumes a number of characters from the underlying reader,
@@ -175,13 +252,22 @@ public class ImapRequestLineReader {
      * @throws ProtocolException If a char can't be read into each array element.
      */
     public void read(char[] holder) throws ProtocolException {
-        int readTotal = 0;
+        int readTotal = Math.min(holder.length, limit - position);
+        for (int i = 0; i < readTotal; i++) {
+            holder[i] = (char) (buffer[position++] & 0xff);
+        }
+        if (readTotal == holder.length) {
+            return;
+        }
+        if (input == null) {
+            throw new ProtocolException("Unexpected end of stream.");
+        }
+        // Read the remainder directly, bypassing the buffer
+        recordDebug();
         try {
-        	
-            byte[] bytes = new byte[holder.length];
+            byte[] bytes = new byte[Math.min(holder.length - readTotal, 65536)];
             while (readTotal < holder.length) {
-                int count = 0;
-                count = input.read(bytes, 0, holder.length - readTotal);
+                int count = input.read(bytes, 0, Math.min(bytes.length, holder.length - readTotal));
                 if (count == -1) {
                     throw new ProtocolException("Unexpected end of stream.");
                 }
@@ -190,13 +276,54 @@ public class ImapRequestLineReader {
                     holder[readTotal++] = (char) ((int) bytes[i] & 0xff);
                 }
             }
-            // Unset the next char.
-            nextSeen = false;
-            nextChar = 0;
         } catch (IOException e) {
             throw new ProtocolException("Error reading from stream.");
         }
+    }
+
+    /**
+     * Reads more input into the buffer, keeping the characters from the current one on.
+     *
+     * @return false at the end of the stream.
+     */
+    private boolean fill() throws ProtocolException {
+        if (input == null) {
+            return false;
+        }
+        recordDebug();
+        int remaining = limit - position;
+        if (remaining == buffer.length) {
+            byte[] grown = new byte[buffer.length * 2];
+            System.arraycopy(buffer, position, grown, 0, remaining);
+            buffer = grown;
+        } else if (remaining > 0) {
+            System.arraycopy(buffer, position, buffer, 0, remaining);
+        }
+        position = 0;
+        limit = remaining;
+        debugStart = 0;
+        try {
+            int count = input.read(buffer, limit, buffer.length - limit);
+            if (count <= 0) {
+                return false;
+            }
+            limit += count;
+            return true;
+        } catch (IOException e) {
+            throw new ProtocolException("Error reading from stream.");
+        }
+    }
 
+    /**
+     * Keeps the characters consumed since the last call for the debug log.
+     */
+    private void recordDebug() {
+        if (debug) {
+            for (int i = debugStart; i < position; i++) {
+                debugBuffer.append((char) (buffer[i] & 0xff));
+            }
+        }
+        debugStart = position;
     }
 
     /**
@@ -205,6 +332,9 @@ public class ImapRequestLineReader {
      */
     public void commandContinuationRequest()
             throws ProtocolException {
+        if (!continuationRequests) {
+            return;
+        }
         try {
             output.write('+');
             output.write(' ');			
@@ -216,23 +346,36 @@ public class ImapRequestLineReader {
         }
     }
 
+    /**
+     * Consumes the rest of the current line, including the end-of-line. The characters
+     * are dropped as they are read, so the buffer does not grow with the line.
+     */
     public void consumeLine()
             throws ProtocolException {
-        char next = nextChar();
-        while (next != '\n') {
-            consume();
-            next = nextChar();
+        while (true) {
+            while (position < limit) {
+                if (buffer[position++] == '\n') {
+                    return;
+                }
+            }
+            if (!fill()) {
+                throw new ProtocolException("Unexpected end of stream.");
+            }
         }
-        consume();
     }
     
     public void debugRequest(boolean isLoginRequest, ImapSession session){
-        if(log.isDebugEnabled()){
-        	String debugRequest = debugBuffer.toString().trim();
-        	if (isLoginRequest){
-        		debugRequest = debugRequest.substring(0, debugBuffer.indexOf("\""));
-        	}
-        	log.debug("[SessionId:" + session.getSessionId() + "] " + debugRequest);
+        if(debug){
+            recordDebug();
+            String debugRequest = debugBuffer.toString().trim();
+            if (isLoginRequest){
+                // Leave out the credentials
+                int end = debugRequest.indexOf(' ', debugRequest.indexOf(' ') + 1);
+                if (end > 0) {
+                    debugRequest = debugRequest.substring(0, end);
+                }
+            }
+            log.debug("[SessionId:" + session.getSessionId() + "] " + debugRequest);
         }
     }
 }
@@ -31,9 +31,9 @@
  */
 package com.icegreen.greenmail.imap;
 
+import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
 
 import jakarta.mail.Flags;
 
@@ -42,25 +42,83 @@ import org.slf4j.LoggerFactory;
 
 import com.icegreen.greenmail.imap.commands.ImapCommand;
 import com.icegreen.greenmail.store.MessageFlags;
-import com.icegreen.greenmail.util.InternetPrintWriter;
 
 /**
  * Class providing methods to send response messages from the server
  * to the client.
+ * <p/>
+ * Responses are encoded (ISO-8859-1) into a buffer, which is written to the client when
+ * a tagged response completes a command, when it exceeds {@link #FLUSH_THRESHOLD} bytes,
+ * or when {@link #flush()} is called. A response may be reused for the following
+ * commands of a session, see {@link #reset()}.
  */
 public class ImapResponse implements ImapConstants {
-    private InternetPrintWriter writer;
+    /**
+     * Number of buffered bytes from which untagged responses are written without waiting
+     * for the tagged completion.
+     */
+    public static final int FLUSH_THRESHOLD = 16384;
+
+    private OutputStream output;
+    private byte[] buffer = new byte[1024];
+    private int count;
+    private boolean tagged;
+    // Where the FETCH response being written starts in the buffer, -1 once it has been sent
+    private int fetchStart = -1;
+    private int fetchDebugStart;
     private String tag = UNTAGGED;
     private StringBuffer stringBuffer;
+    private boolean debug;
+    private final OutputStream bufferStream = new OutputStream() {
+        public void write(int b) {
+            ensureCapacity(1);
+            buffer[count++] = (byte) b;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(len);
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+    };
+    // Where the bytes of the literal being written go, and how many of them are still owed
+    private OutputStream literalTarget;
+    private int literalRemaining;
+    private final OutputStream literalStream = new OutputStream() {
+        public void write(int b) throws IOException {
+            literalTarget.write(b);
+            literalRemaining--;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            literalTarget.write(b, off, len);
+            literalRemaining -= len;
+        }
+    };
     private static final Logger log = LoggerFactory.getLogger(ImapResponse.class);
 
     public ImapResponse(OutputStream output) {
-        try {
-            this.writer = new InternetPrintWriter(new OutputStreamWriter(output, ImapConstants.EIGHT_BIT_ENCODING), true);
-        } catch (UnsupportedEncodingException e) {
-            this.writer = new InternetPrintWriter(new OutputStreamWriter(output), true);
-        }
+        this.output = output;
         this.stringBuffer = new StringBuffer();
+        this.debug = log.isDebugEnabled();
+    }
+
+    /**
+     * @return whether this response writes to the given stream.
+     */
+    boolean isWritingTo(OutputStream output) {
+        return this.output == output;
+    }
+
+    /**
+     * Prepares the response for the next command: writes out what is still buffered,
+     * and forgets the tag and the debug record of the previous command.
+     */
+    public void reset() {
+        flush();
+        tag = UNTAGGED;
+        stringBuffer.setLength(0);
+        debug = log.isDebugEnabled();
     }
 
     public void setTag(String tag) {
@@ -207,6 +265,111 @@ public class ImapResponse implements ImapConstants {
         end();
     }
 
+    /**
+     * Starts an untagged FETCH response, to be continued with {@link #fetchData(String)}
+     * and {@link #literal(byte[], int, int)} and completed with {@link #endFetchResponse()}.
+     * Response is written as:
+     * <pre>     * msn FETCH (...)</pre>
+     *
+     * @param msn The message sequence number.
+     */
+    public void startFetchResponse(int msn) {
+        fetchStart = count;
+        fetchDebugStart = stringBuffer.length();
+        untagged();
+        message(msn);
+        message("FETCH");
+        print(" (");
+    }
+
+    /**
+     * Writes part of a FETCH response as it is.
+     */
+    public void fetchData(String data) {
+        print(data);
+    }
+
+    /**
+     * Writes a literal: its length, then the bytes as they are. Literals larger than
+     * {@link #FLUSH_THRESHOLD} are written straight to the client instead of being buffered.
+     *
+     * @param data   The array holding the literal.
+     * @param offset The offset of the literal in the array.
+     * @param length The length of the literal.
+     */
+    public void literal(byte[] data, int offset, int length) {
+        try {
+            startLiteral(length).write(data, offset, length);
+        } catch (IOException e) {
+            // As with a PrintWriter, a broken connection shows when reading the next request
+        }
+    }
+
+    /**
+     * Writes the length of a literal and returns the stream to write its bytes to, so they
+     * can be copied from their source in chunks. Exactly <code>length</code> bytes must be
+     * written before the response is continued. Literals larger than {@link #FLUSH_THRESHOLD}
+     * are written straight to the client instead of being buffered.
+     *
+     * @param length The length of the literal.
+     * @return The stream taking the literal.
+     */
+    public OutputStream startLiteral(int length) {
+        write("{" + length + "}\r\n");
+        if (debug) {
+            stringBuffer.append('{').append(length).append("}\n");
+        }
+        if (length <= FLUSH_THRESHOLD) {
+            ensureCapacity(length);
+            literalTarget = bufferStream;
+        } else {
+            flush();
+            literalTarget = output;
+        }
+        literalRemaining = length;
+        return literalStream;
+    }
+
+    /**
+     * Completes a response started with {@link #startFetchResponse(int)}.
+     */
+    public void endFetchResponse() {
+        fetchStart = -1;
+        print(")");
+        end();
+    }
+
+    /**
+     * Gives up a response started with {@link #startFetchResponse(int)}, when a part of it
+     * could not be read. The response is dropped if none of it has been sent yet. Otherwise
+     * the client already counts on the announced length of the literal being written, which
+     * is therefore padded with spaces before the response is closed, and the tagged response
+     * has to tell the client that the data is not to be trusted.
+     */
+    public void abortFetchResponse() {
+        if (fetchStart >= 0) {
+            count = fetchStart;
+            stringBuffer.setLength(fetchDebugStart);
+            fetchStart = -1;
+            literalRemaining = 0;
+            return;
+        }
+        if (literalRemaining > 0) {
+            byte[] padding = new byte[Math.min(literalRemaining, 8192)];
+            Arrays.fill(padding, (byte) ' ');
+            try {
+                while (literalRemaining > 0) {
+                    literalStream.write(padding, 0, Math.min(padding.length, literalRemaining));
+                }
+            } catch (IOException e) {
+                // As with a PrintWriter, a broken connection shows when reading the next request
+                literalRemaining = 0;
+            }
+        }
+        print(")");
+        end();
+    }
+
     public void commandResponse(ImapCommand command, String message) {
         untagged();
         commandName(command);
@@ -240,6 +403,7 @@ public class ImapResponse implements ImapConstants {
 
     public void byeResponse(String message) {
         untaggedResponse(BYE + SP + message);
+        flush();
     }
 
     private void untagged() {
@@ -248,6 +412,7 @@ public class ImapResponse implements ImapConstants {
     }
 
     private void tag() {
+        tagged = true;
         print(tag);
     }
 
@@ -278,20 +443,63 @@ public class ImapResponse implements ImapConstants {
     }
 
     private void end() {
-        writer.println();
-        writer.flush();
-        if (log.isDebugEnabled()){
+        write("\r\n");
+        if (debug){
         	stringBuffer.append('\n');
         }
+        if (tagged || count >= FLUSH_THRESHOLD) {
+            flush();
+        }
+        tagged = false;
     }
     
     private void print(Object value){
-    	writer.print(value);
-    	if (log.isDebugEnabled()){
-    		stringBuffer.append(value);
+    	String string = String.valueOf(value);
+    	write(string);
+    	if (debug){
+    		stringBuffer.append(string);
     	}
     }
 
+    private void write(String value) {
+        int length = value.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            buffer[count++] = (byte) (c <= 0xff ? c : '?');
+        }
+    }
+
+    private void ensureCapacity(int length) {
+        if (count + length > buffer.length) {
+            byte[] grown = new byte[Math.max(buffer.length * 2, count + length)];
+            System.arraycopy(buffer, 0, grown, 0, count);
+            buffer = grown;
+        }
+    }
+
+    /**
+     * Writes the buffered responses to the client.
+     */
+    public void flush() {
+        if (count == 0) {
+            return;
+        }
+        try {
+            output.write(buffer, 0, count);
+            output.flush();
+        } catch (IOException e) {
+            // As with a PrintWriter, a broken connection shows when reading the next request
+        } finally {
+            count = 0;
+            fetchStart = -1;
+            if (buffer.length > FLUSH_THRESHOLD * 4) {
+                // Do not hold on to the space taken by a large response
+                buffer = new byte[1024];
+            }
+        }
+    }
+
     public void permanentFlagsResponse(Flags flags) {
         untagged();
         message(OK);
@@ -300,7 +508,7 @@ public class ImapResponse implements ImapConstants {
     }
     
     public void debugResponse(ImapSession session){
-    	if(log.isDebugEnabled()){
+    	if(debug){
     		log.debug("[SessionId:" + session.getSessionId() + "] " + stringBuffer.toString());
     	}
     }
@@ -81,8 +81,8 @@ public class ImapServer extends AbstractServer {
             List copyOfData = new ArrayList(handlers);
             for (Iterator iterator = copyOfData.iterator(); iterator.hasNext();)
             {
-                ImapHandler imapHandler = (ImapHandler) iterator.next();
-                imapHandler.resetHandler();
+                ImapConnection connection = (ImapConnection) iterator.next();
+                connection.resetHandler();
             }
             handlers.clear();
         } catch (Exception e) {
@@ -99,6 +99,21 @@ public class ImapServer extends AbstractServer {
         }
     }
 
+    /**
+     * Reports the outcome of opening the server socket to whoever waits on the
+     * reference given to the constructor.
+     *
+     * @param serverOpeningException the exception, or null if the socket has been opened.
+     */
+    protected void serverOpened(Exception serverOpeningException) {
+        if (serverOpeningExceptionRef != null){
+            synchronized (serverOpeningExceptionRef) {
+                serverOpeningExceptionRef.set(serverOpeningException);
+                serverOpeningExceptionRef.notify();
+            }
+        }
+    }
+
     public void run() {
         try {
             IOException serverOpeningException = null;
@@ -108,12 +123,7 @@ public class ImapServer extends AbstractServer {
                 serverOpeningException = e;
                 throw new RuntimeException(e);
             } finally {
-                if (serverOpeningExceptionRef != null){
-                    synchronized (serverOpeningExceptionRef) {
-                        serverOpeningExceptionRef.set(serverOpeningException);
-                        serverOpeningExceptionRef.notify();
-                    }
-                }
+                serverOpened(serverOpeningException);
             }
 
             while (keepOn()) {
@@ -121,7 +131,7 @@ public class ImapServer extends AbstractServer {
                     Socket clientSocket = serverSocket.accept();
                     ImapHandler imapHandler = new ImapHandler(managers.getUserManager(), managers.getImapHostManager(), clientSocket, this);
                     handlers.add(imapHandler);
-                    imapHandler.start();
+                    handlerExecutor.execute(imapHandler);
                 } catch (IOException ignored) {
                     //ignored
                 }
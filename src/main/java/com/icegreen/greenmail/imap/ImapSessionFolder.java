@@ -124,7 +124,15 @@ public class ImapSessionFolder implements MailFolder, FolderListener {
 
     public void expunged(int msn) {
         synchronized (_expungedMsns) {
-            _expungedMsns.add(new Integer(msn));
+            _expungedMsns.add(Integer.valueOf(msn));
+        }
+    }
+
+    public void expunged(int[] msns) {
+        synchronized (_expungedMsns) {
+            for (int i = 0; i < msns.length; i++) {
+                _expungedMsns.add(Integer.valueOf(msns[i]));
+            }
         }
     }
 
@@ -134,7 +142,16 @@ public class ImapSessionFolder implements MailFolder, FolderListener {
 
     public void flagsUpdated(int msn, Flags flags, Long uid) {
         // This will overwrite any earlier changes
-        _modifiedFlags.put(new Integer(msn), new FlagUpdate(msn, uid, flags));
+        _modifiedFlags.put(Integer.valueOf(msn), new FlagUpdate(msn, uid, flags));
+    }
+
+    public void flagsUpdated(int[] msns, Flags[] flags, long[] uids) {
+        synchronized (_modifiedFlags) {
+            for (int i = 0; i < msns.length; i++) {
+                Long uid = uids == null ? null : Long.valueOf(uids[i]);
+                _modifiedFlags.put(Integer.valueOf(msns[i]), new FlagUpdate(msns[i], uid, flags[i]));
+            }
+        }
     }
 
     public void mailboxDeleted() {
@@ -223,6 +240,14 @@ public class ImapSessionFolder implements MailFolder, FolderListener {
         return _folder.getMessageUids();
     }
 
+    public long[] getMessageUids(long[] idRanges, boolean useUids) {
+        return _folder.getMessageUids(idRanges, useUids);
+    }
+
+    public long[] getMessageUids(IdRange[] idSet, boolean useUids) {
+        return _folder.getMessageUids(IdRange.toPairs(idSet), useUids);
+    }
+
     public void expunge() throws FolderException {
         _folder.expunge();
     }
@@ -231,7 +256,11 @@ public class ImapSessionFolder implements MailFolder, FolderListener {
         _folder.expunge(uid);
     }
 
-    public long[] search(SearchTerm searchTerm) {
+    public void expunge(long[] uidRanges) throws FolderException {
+        _folder.expunge(uidRanges);
+    }
+
+    public long[] search(SearchTerm searchTerm) throws FolderException {
         return _folder.search(searchTerm);
     }
 
@@ -259,6 +288,14 @@ public class ImapSessionFolder implements MailFolder, FolderListener {
         _folder.replaceFlags(flags, uid, silentListener, addUid);
     }
 
+    public void setFlags(Flags flags, boolean value, long[] uids, FolderListener silentListener, boolean addUid) throws FolderException {
+        _folder.setFlags(flags, value, uids, silentListener, addUid);
+    }
+
+    public void replaceFlags(Flags flags, long[] uids, FolderListener silentListener, boolean addUid) throws FolderException {
+        _folder.replaceFlags(flags, uids, silentListener, addUid);
+    }
+
     public void deleteAllMessages() throws FolderException
     {
         _folder.deleteAllMessages();
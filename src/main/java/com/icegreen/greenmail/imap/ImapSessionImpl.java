@@ -57,13 +57,13 @@ public final class ImapSessionImpl implements ImapSession {
     private String sessionId;
 
     // TODO these shouldn't be in here - they can be provided directly to command components.
-    private ImapHandler handler;
+    private ImapConnection handler;
     private ImapHostManager imapHost;
     private UserManager users;
 
     public ImapSessionImpl(ImapHostManager imapHost,
                            UserManager users,
-                           ImapHandler handler,
+                           ImapConnection handler,
                            String clientHostName,
                            String clientAddress) {
         this.imapHost = imapHost;
@@ -0,0 +1,495 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.imap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+
+/**
+ * A client connection of the {@link NioImapServer}.
+ * <p/>
+ * The selector thread calls {@link #read()}, which appends to the input buffer and
+ * cuts off every complete request: the command line plus, for each literal
+ * announced at the end of a line, the literal and the line following it.
+ * Synchronizing literals are answered with a continuation request right there,
+ * so the command parser must not send another one. Literals over the size limit of
+ * the server, and of a few KB before the client has logged in, are refused instead,
+ * the refusal being queued as a response for the worker to send after the responses
+ * to the earlier requests.
+ * <p/>
+ * Complete requests are queued and executed by {@link #run()} on a worker thread,
+ * which is scheduled at most once per connection at any time. The worker waits while
+ * the responses queued for a client that does not read them exceed a high-water mark.
+ */
+class NioImapConnection implements ImapConnection, Runnable, ImapConstants {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int SEND_CHUNK_SIZE = 65536;
+    private static final byte[] CONTINUATION_REQUEST = {'+', ' ', '\r', '\n'};
+    // Largest literal accepted before LOGIN, enough for credentials
+    private static final int MAX_UNAUTHENTICATED_LITERAL_SIZE = 8192;
+    // Longest request accepted, literals not included
+    private static final int MAX_LINE_LENGTH = 1024 * 1024;
+    // Beyond this many bytes queued for the client, the worker waits for it to read them
+    private static final int WRITE_HIGH_WATER = 1024 * 1024;
+    // Queued after a refusal, for the worker to close the connection
+    private static final Object CLOSE = new Object();
+
+    private final NioImapServer server;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final ImapRequestHandler requestHandler = new ImapRequestHandler();
+    private final OutputStream output = new ConnectionOutputStream();
+    // Set by the worker under writeLock, read by the selector thread under writeLock
+    private ImapSession session;
+
+    // Input, only touched by the selector thread
+    private byte[] input = new byte[READ_BUFFER_SIZE];
+    private int inputLength;
+    private int scanned;
+    private int literalRemaining;
+    private boolean literalSynchronizing;
+
+    // Complete requests as byte arrays and refusals as ByteBuffers or CLOSE, guarded by this
+    private final LinkedList requests = new LinkedList();
+    private boolean scheduled;
+
+    // Output, guarded by writeLock
+    private final Object writeLock = new Object();
+    private final LinkedList writeQueue = new LinkedList();
+    private long queuedBytes;
+    private volatile boolean closing;
+    private boolean closed;
+
+    NioImapConnection(NioImapServer server, SocketChannel channel, SelectionKey key) {
+        this.server = server;
+        this.channel = channel;
+        this.key = key;
+    }
+
+    /**
+     * Writes the welcome message.
+     */
+    void greet() {
+        ImapResponse response = new ImapResponse(output);
+        response.okResponse(null, VERSION + " Server GreenMail ready");
+        response.flush();
+    }
+
+    /**
+     * Reads what is available from the channel and queues the complete requests.
+     */
+    void read() throws IOException {
+        if (inputLength == input.length) {
+            byte[] grown = new byte[input.length * 2];
+            System.arraycopy(input, 0, grown, 0, inputLength);
+            input = grown;
+        }
+        int count = channel.read(ByteBuffer.wrap(input, inputLength, input.length - inputLength));
+        if (count < 0) {
+            close();
+            return;
+        }
+        inputLength += count;
+
+        boolean received = false;
+        while (true) {
+            if (literalRemaining > 0) {
+                int available = Math.min(literalRemaining, inputLength - scanned);
+                scanned += available;
+                literalRemaining -= available;
+                if (literalRemaining > 0) {
+                    break;
+                }
+            }
+            int lineEnd = indexOf('\n', scanned);
+            if (lineEnd < 0) {
+                scanned = inputLength;
+                if (inputLength > MAX_LINE_LENGTH + (long) literalLimit()) {
+                    refuse("Request too long");
+                    return;
+                }
+                break;
+            }
+            scanned = lineEnd + 1;
+            long literal = literalAt(lineEnd);
+            int limit = literalLimit();
+            if (literal > limit) {
+                if (!literalSynchronizing) {
+                    // Already on its way, there is no telling where the next request starts
+                    refuse("Literal too large");
+                    return;
+                }
+                // The client waits for a continuation request, the command simply fails
+                String tag = requestTag();
+                removeInput(scanned);
+                synchronized (this) {
+                    requests.add(ByteBuffer.wrap((tag + SP + BAD + " Literal too large\r\n").getBytes(EIGHT_BIT_ENCODING)));
+                }
+                received = true;
+            } else if (scanned + Math.max(literal, 0) > MAX_LINE_LENGTH + (long) limit) {
+                refuse("Request too long");
+                return;
+            } else if (literal >= 0) {
+                literalRemaining = (int) literal;
+                if (literalSynchronizing) {
+                    send(ByteBuffer.wrap(CONTINUATION_REQUEST));
+                }
+            } else {
+                byte[] request = new byte[scanned];
+                System.arraycopy(input, 0, request, 0, scanned);
+                removeInput(scanned);
+                synchronized (this) {
+                    requests.add(request);
+                }
+                received = true;
+            }
+        }
+        if (received) {
+            schedule();
+        }
+    }
+
+    /**
+     * Drops the given number of bytes from the start of the input.
+     */
+    private void removeInput(int count) {
+        inputLength -= count;
+        if (input.length > READ_BUFFER_SIZE && inputLength < READ_BUFFER_SIZE) {
+            // Release the space taken by a large literal
+            byte[] shrunk = new byte[READ_BUFFER_SIZE];
+            System.arraycopy(input, count, shrunk, 0, inputLength);
+            input = shrunk;
+        } else {
+            System.arraycopy(input, count, input, 0, inputLength);
+        }
+        scanned = 0;
+    }
+
+    /**
+     * @return The tag of the request at the start of the input.
+     */
+    private String requestTag() throws IOException {
+        int end = 0;
+        while (end < scanned && input[end] != ' ' && input[end] != '\r' && input[end] != '\n') {
+            end++;
+        }
+        return new String(input, 0, end, EIGHT_BIT_ENCODING);
+    }
+
+    /**
+     * @return The size of the largest literal accepted from the client.
+     */
+    private int literalLimit() {
+        // The worker took the lock to send the response of the command that logged the client in
+        synchronized (writeLock) {
+            if (session == null || session.getState() == ImapSessionState.NON_AUTHENTICATED) {
+                return MAX_UNAUTHENTICATED_LITERAL_SIZE;
+            }
+        }
+        return server.getMaxLiteralSize();
+    }
+
+    /**
+     * Stops reading from a client that sent more than it may, and closes the connection
+     * once its earlier requests are answered.
+     */
+    private void refuse(String message) throws IOException {
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        inputLength = 0;
+        scanned = 0;
+        synchronized (this) {
+            requests.add(ByteBuffer.wrap((UNTAGGED + SP + BYE + SP + message + "\r\n").getBytes(EIGHT_BIT_ENCODING)));
+            requests.add(CLOSE);
+        }
+        schedule();
+    }
+
+    private int indexOf(char c, int from) {
+        for (int i = from; i < inputLength; i++) {
+            if (input[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Checks whether the line ending at the given position announces a literal
+     * ({n} or {n+}), and if so whether the client waits for a continuation request.
+     *
+     * @return The size of the literal, -1 if the line does not end with one.
+     */
+    private long literalAt(int lineEnd) {
+        int end = lineEnd;
+        if (end > 0 && input[end - 1] == '\r') {
+            end--;
+        }
+        if (end == 0 || input[end - 1] != '}') {
+            return -1;
+        }
+        int pos = end - 2;
+        boolean synchronizing = true;
+        if (pos >= 0 && input[pos] == '+') {
+            synchronizing = false;
+            pos--;
+        }
+        long size = 0;
+        long factor = 1;
+        int digits = 0;
+        while (pos >= 0 && input[pos] >= '0' && input[pos] <= '9') {
+            size += (input[pos] - '0') * factor;
+            factor *= 10;
+            digits++;
+            pos--;
+        }
+        if (digits == 0 || digits > 9 || pos < 0 || input[pos] != '{') {
+            return -1;
+        }
+        literalSynchronizing = synchronizing;
+        return size;
+    }
+
+    private void schedule() {
+        synchronized (this) {
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        server.dispatch(this);
+    }
+
+    /**
+     * Executes the queued requests, and sends the queued refusals, one after the other.
+     */
+    public void run() {
+        while (true) {
+            Object request;
+            awaitWritable();
+            synchronized (this) {
+                if (requests.isEmpty() || closing) {
+                    scheduled = false;
+                    return;
+                }
+                request = requests.removeFirst();
+            }
+            try {
+                if (request == CLOSE) {
+                    resetHandler();
+                } else if (request instanceof ByteBuffer) {
+                    output.flush();
+                    send((ByteBuffer) request);
+                } else {
+                    if (session == null) {
+                        InetAddress address = channel.socket().getInetAddress();
+                        ImapSession created = new ImapSessionImpl(server.getManagers().getImapHostManager(),
+                                server.getManagers().getUserManager(),
+                                this,
+                                address.getHostName(),
+                                address.getHostAddress());
+                        synchronized (writeLock) {
+                            session = created;
+                        }
+                    }
+                    requestHandler.handleRequest(new ImapRequestLineReader((byte[]) request, output), output, session);
+                }
+            } catch (Exception e) {
+                resetHandler();
+            }
+        }
+    }
+
+    public void forceConnectionClose(String message) {
+        ImapResponse response = new ImapResponse(output);
+        response.byeResponse(message);
+        resetHandler();
+    }
+
+    /**
+     * Closes the connection as soon as the queued responses have been written.
+     */
+    public void resetHandler() {
+        synchronized (writeLock) {
+            closing = true;
+            if (!writeQueue.isEmpty()) {
+                return;
+            }
+        }
+        close();
+    }
+
+    /**
+     * Closes the connection right away.
+     */
+    void close() {
+        synchronized (writeLock) {
+            if (closed) {
+                return;
+            }
+            closing = true;
+            closed = true;
+            writeQueue.clear();
+            queuedBytes = 0;
+            writeLock.notifyAll();
+        }
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            //ignored
+        }
+        synchronized (this) {
+            requests.clear();
+        }
+        server.deregisterHandler(this);
+    }
+
+    /**
+     * Writes the buffer if the channel takes it, and queues whatever remains.
+     */
+    private void send(ByteBuffer buffer) {
+        synchronized (writeLock) {
+            if (closed) {
+                return;
+            }
+            if (writeQueue.isEmpty()) {
+                try {
+                    channel.write(buffer);
+                } catch (IOException e) {
+                    buffer = null;
+                }
+                if (buffer != null && !buffer.hasRemaining()) {
+                    return;
+                }
+                if (buffer != null) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    server.wakeup();
+                }
+            }
+            if (buffer != null) {
+                writeQueue.add(buffer);
+                queuedBytes += buffer.remaining();
+                return;
+            }
+        }
+        close();
+    }
+
+    /**
+     * Makes the worker wait while too much is queued for a client that does not read.
+     */
+    private void awaitWritable() {
+        synchronized (writeLock) {
+            while (queuedBytes > WRITE_HIGH_WATER && !closed) {
+                try {
+                    writeLock.wait();
+                } catch (InterruptedException e) {
+                    // Shutting down
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes queued responses, called by the selector thread when the channel is writable.
+     */
+    void writeQueued() throws IOException {
+        boolean close;
+        synchronized (writeLock) {
+            boolean wasFull = queuedBytes > WRITE_HIGH_WATER;
+            try {
+                while (!writeQueue.isEmpty()) {
+                    ByteBuffer buffer = (ByteBuffer) writeQueue.getFirst();
+                    queuedBytes -= channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        return;
+                    }
+                    writeQueue.removeFirst();
+                }
+            } finally {
+                if (wasFull && queuedBytes <= WRITE_HIGH_WATER) {
+                    writeLock.notifyAll();
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            close = closing;
+        }
+        if (close) {
+            close();
+        }
+    }
+
+    /**
+     * Collects what the response writer produces and sends it on flush, or in chunks
+     * while a large literal is being written.
+     */
+    private class ConnectionOutputStream extends OutputStream {
+        private byte[] buffer = new byte[256];
+        private int count;
+
+        public synchronized void write(int b) {
+            ensureCapacity(1);
+            buffer[count++] = (byte) b;
+        }
+
+        public synchronized void write(byte[] b, int off, int len) {
+            ensureCapacity(len);
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+            if (count >= SEND_CHUNK_SIZE) {
+                flush();
+            }
+        }
+
+        public void flush() {
+            synchronized (this) {
+                if (count > 0) {
+                    byte[] data = new byte[count];
+                    System.arraycopy(buffer, 0, data, 0, count);
+                    count = 0;
+                    send(ByteBuffer.wrap(data));
+                }
+            }
+            // Not holding the stream, the worker is the only one writing to it
+            awaitWritable();
+        }
+
+        private void ensureCapacity(int len) {
+            if (count + len > buffer.length) {
+                byte[] grown = new byte[Math.max(buffer.length * 2, count + len)];
+                System.arraycopy(buffer, 0, grown, 0, count);
+                buffer = grown;
+            }
+        }
+    }
+}
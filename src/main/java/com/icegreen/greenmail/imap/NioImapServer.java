@@ -0,0 +1,270 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.imap;
+
+import com.icegreen.greenmail.Managers;
+import com.icegreen.greenmail.util.ServerSetup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An IMAP server that serves all of its connections from a single selector thread
+ * instead of a thread per connection. The selector thread accepts connections,
+ * reads whatever the clients send and cuts it into complete requests, literals
+ * included. Complete requests are handed to a small pool of worker threads which
+ * run them through the usual {@link ImapRequestHandler}, one request at a time per
+ * connection. Responses are written without blocking; whatever the socket does not
+ * take right away is queued and written when the client is ready for it.
+ * <p/>
+ * Idle connections therefore cost a buffer and a selection key rather than a thread.
+ * Secure setups are not supported, use {@link ImapServer} for those.
+ */
+public class NioImapServer extends ImapServer {
+    /**
+     * Default number of threads executing requests.
+     */
+    public static final int DEFAULT_WORKER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    /**
+     * Default size in bytes of the largest literal accepted from a logged in client.
+     */
+    public static final int DEFAULT_MAX_LITERAL_SIZE = 64 * 1024 * 1024;
+
+    private final int workerThreads;
+    private volatile int maxLiteralSize = DEFAULT_MAX_LITERAL_SIZE;
+    private ExecutorService workers;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+
+    public NioImapServer(ServerSetup setup, Managers managers) {
+        this(setup, managers, DEFAULT_WORKER_THREADS);
+    }
+
+    public NioImapServer(ServerSetup setup, Managers managers, int workerThreads) {
+        super(setup, managers);
+        if (setup.isSecure()) {
+            throw new IllegalArgumentException("Non blocking IO is not supported for " + setup.getProtocol());
+        }
+        if (workerThreads < 1) {
+            throw new IllegalArgumentException("At least one worker thread is required");
+        }
+        this.workerThreads = workerThreads;
+    }
+
+    public NioImapServer(ServerSetup setup, Managers managers, AtomicReference<Exception> serverOpeningExceptionRef) {
+        super(setup, managers, serverOpeningExceptionRef);
+        if (setup.isSecure()) {
+            throw new IllegalArgumentException("Non blocking IO is not supported for " + setup.getProtocol());
+        }
+        this.workerThreads = DEFAULT_WORKER_THREADS;
+    }
+
+    /**
+     * @return The size in bytes of the largest literal accepted from a logged in client.
+     */
+    public int getMaxLiteralSize() {
+        return maxLiteralSize;
+    }
+
+    /**
+     * Sets the size of the largest literal accepted from a logged in client. Larger
+     * literals are refused without being read, so messages bigger than this cannot be appended.
+     *
+     * @param maxLiteralSize Size in bytes.
+     */
+    public void setMaxLiteralSize(int maxLiteralSize) {
+        if (maxLiteralSize < 0) {
+            throw new IllegalArgumentException("Literal size must not be negative");
+        }
+        this.maxLiteralSize = maxLiteralSize;
+    }
+
+    /**
+     * Opens the selector and the listening channel.
+     */
+    protected synchronized void openServerChannel() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.bind(new InetSocketAddress(bindTo, setup.getPort()));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        workers = Executors.newFixedThreadPool(workerThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "GreenMail IMAP worker " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public synchronized void quit() {
+        super.quit();
+
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException ignored) {
+            //ignored
+        }
+        if (selector != null) {
+            if (Thread.currentThread() == this) {
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                    //ignored
+                }
+            } else {
+                // Closing the selector under the selector thread's feet breaks its iteration,
+                // let the thread close it on its way out
+                selector.wakeup();
+            }
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    public void run() {
+        try {
+            IOException serverOpeningException = null;
+            try {
+                openServerChannel();
+            } catch (IOException e) {
+                serverOpeningException = e;
+                throw new RuntimeException(e);
+            } finally {
+                serverOpened(serverOpeningException);
+            }
+
+            while (keepOn()) {
+                try {
+                    selector.select();
+                } catch (ClosedSelectorException e) {
+                    break;
+                } catch (IOException ignored) {
+                    continue;
+                }
+                try {
+                    Iterator keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = (SelectionKey) keys.next();
+                        keys.remove();
+                        handleKey(key);
+                    }
+                } catch (ClosedSelectorException e) {
+                    break;
+                }
+            }
+        } finally {
+            quit();
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            accept();
+            return;
+        }
+        NioImapConnection connection = (NioImapConnection) key.attachment();
+        try {
+            if (key.isWritable()) {
+                connection.writeQueued();
+            }
+            if (key.isValid() && key.isReadable()) {
+                connection.read();
+            }
+        } catch (IOException e) {
+            connection.close();
+        }
+    }
+
+    private void accept() {
+        SocketChannel channel;
+        try {
+            channel = serverChannel.accept();
+        } catch (IOException ignored) {
+            return;
+        }
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            NioImapConnection connection = new NioImapConnection(this, channel, key);
+            key.attach(connection);
+            handlers.add(connection);
+            connection.greet();
+        } catch (IOException e) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                //ignored
+            }
+        }
+    }
+
+    /**
+     * Schedules the requests received on a connection for execution.
+     */
+    void dispatch(NioImapConnection connection) {
+        try {
+            workers.execute(connection);
+        } catch (RuntimeException e) {
+            // Rejected while shutting down
+            connection.close();
+        }
+    }
+
+    /**
+     * Wakes the selector up so that a change of interest made by a worker thread takes effect.
+     */
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    Managers getManagers() {
+        return managers;
+    }
+}
@@ -57,6 +57,8 @@ import org.slf4j.LoggerFactory;
  */
 public class CommandParser {
     private static final char[] EMPTY_CHAR_ARRAY = new char[0];
+    private static final String WHITESPACE = " \n\r\t";
+    private static final String QUOTED_SPECIALS = "\"\\";
 
     /** New logger. */
     protected final Logger log = LoggerFactory.getLogger(getClass());
@@ -204,23 +206,16 @@ public class CommandParser {
     protected String consumeWord(ImapRequestLineReader request,
                                  CharacterValidator validator)
             throws ProtocolException {
-        StringBuffer atom = new StringBuffer();
-
-        char next = request.nextWordChar();
-        while (!isWhitespace(next)) {
-            if (validator.isValid(next)) {
-                atom.append(next);
-                request.consume();
-            } else {
+        request.nextWordChar();
+        int length = request.lengthUntil(WHITESPACE);
+        for (int i = 0; i < length; i++) {
+            char next = request.charAt(i);
+            if (!validator.isValid(next)) {
+                request.consume(i);
                 throw new ProtocolException("Invalid character: '" + next + "'");
             }
-            next = request.nextChar();
         }
-        return atom.toString();
-    }
-
-    private boolean isWhitespace(char next) {
-        return (next == ' ' || next == '\n' || next == '\r' || next == '\t');
+        return request.consume(length);
     }
 
     /**
@@ -302,8 +297,16 @@ public class CommandParser {
         // The 1st character must be '"'
         consumeChar(request, '"');
 
-        StringBuffer quoted = new StringBuffer();
+        // Take the characters up to the closing quote in one go, unless they are escaped
+        int length = request.lengthUntil(QUOTED_SPECIALS);
+        String plain = request.consume(length);
         char next = request.nextChar();
+        if (next == '"') {
+            consumeChar(request, '"');
+            return plain;
+        }
+
+        StringBuffer quoted = new StringBuffer(plain);
         while (next != '"') {
             if (next == '\\') {
                 request.consume();
@@ -86,23 +86,13 @@ class CopyCommand extends SelectedStateCommand implements UidEnabledCommand {
         List<Long> copiedUidsOld = new ArrayList<Long>();
         List<Long> copiedUidsNew = new ArrayList<Long>();
 
-        long[] uids = currentMailbox.getMessageUids();
+        long[] uids = currentMailbox.getMessageUids(idSet, useUids);
         for (int i = 0; i < uids.length; i++) {
             long uid = uids[i];
-            boolean inSet;
-            if (useUids) {
-                inSet = includes(idSet, uid);
-            } else {
-                int msn = currentMailbox.getMsn(uid);
-                inSet = includes(idSet, msn);
-            }
+            long copiedUid = currentMailbox.copyMessage(uid, toFolder);
 
-            if (inSet) {
-                long copiedUid = currentMailbox.copyMessage(uid, toFolder);
-                
-                copiedUidsOld.add(uid);
-                copiedUidsNew.add(copiedUid);
-            }
+            copiedUidsOld.add(uid);
+            copiedUidsNew.add(copiedUid);
         }
 
         session.unsolicitedResponses(response);
@@ -91,14 +91,8 @@ class ExpungeCommand extends SelectedStateCommand implements UidEnabledCommand
         MailFolder folder = session.getSelected();
         if (useUids)
         {
-            for (long uid : folder.getMessageUids())
-            {
-                if (includes(idSet, uid))
-                {
-                    response.expungeResponse(folder.getMsn(uid));
-                    folder.expunge(uid);
-                }
-            }
+            // The EXPUNGE responses are sent by unsolicitedResponses, like for a plain EXPUNGE
+            folder.expunge(IdRange.toPairs(idSet));
         }
         else
         {
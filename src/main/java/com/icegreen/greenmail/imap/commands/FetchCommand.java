@@ -35,22 +35,19 @@
  */
 package com.icegreen.greenmail.imap.commands;
 
-import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
-import java.nio.charset.Charset;
-import java.nio.charset.UnsupportedCharsetException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Set;
 
 import jakarta.mail.Flags;
-import jakarta.mail.internet.MimeMessage;
-import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.InternetHeaders;
 
 import com.icegreen.greenmail.imap.ImapRequestLineReader;
 import com.icegreen.greenmail.imap.ImapResponse;
@@ -59,8 +56,8 @@ import com.icegreen.greenmail.imap.ImapSessionFolder;
 import com.icegreen.greenmail.imap.ProtocolException;
 import com.icegreen.greenmail.store.FolderException;
 import com.icegreen.greenmail.store.MessageFlags;
+import com.icegreen.greenmail.store.MimePartTable;
 import com.icegreen.greenmail.store.SimpleStoredMessage;
-import com.icegreen.greenmail.util.GreenMailUtil;
 
 
 /**
@@ -99,17 +96,12 @@ class FetchCommand extends SelectedStateCommand implements UidEnabledCommand {
         }
 
         ImapSessionFolder mailbox = session.getSelected();
-        long[] uids = mailbox.getMessageUids();
+        long[] uids = mailbox.getMessageUids(idSet, useUids);
         for (int i = 0; i < uids.length; i++) {
             long uid = uids[i];
             int msn = mailbox.getMsn(uid);
-
-            if ((useUids && includes(idSet, uid)) ||
-                    (!useUids && includes(idSet, msn))) {
-                SimpleStoredMessage storedMessage = mailbox.getMessage(uid);
-                String msgData = outputMessage(fetch, storedMessage, mailbox, useUids);
-                response.fetchResponse(msn, msgData);
-            }
+            SimpleStoredMessage storedMessage = mailbox.getMessage(uid);
+            outputMessage(fetch, storedMessage, mailbox, useUids, msn, response);
         }
 
         boolean omitExpunged = (!useUids);
@@ -117,15 +109,19 @@ class FetchCommand extends SelectedStateCommand implements UidEnabledCommand {
         response.commandComplete(this);
     }
 
-    private String outputMessage(FetchRequest fetch, SimpleStoredMessage message,
-                                 ImapSessionFolder folder, boolean useUids)
+    /**
+     * Writes the FETCH response for a message. Literals are written as raw bytes
+     * rather than being collected in the response line.
+     */
+    private void outputMessage(FetchRequest fetch, SimpleStoredMessage message,
+                               ImapSessionFolder folder, boolean useUids,
+                               int msn, ImapResponse out)
             throws FolderException, ProtocolException {
         // Check if this fetch will cause the "SEEN" flag to be set on this message
         // If so, update the flags, and ensure that a flags response is included in the response.
         boolean ensureFlagsResponse = false;
-        if (fetch.isSetSeen() && !message.getFlags().contains(Flags.Flag.SEEN)) {
+        if (fetch.isSetSeen() && !message.hasFlags(MessageFlags.SEEN_BIT)) {
             folder.setFlags(new Flags(Flags.Flag.SEEN), true, message.getUid(), folder, useUids);
-            message.getFlags().add(Flags.Flag.SEEN);
             ensureFlagsResponse = true;
         }
 
@@ -134,7 +130,7 @@ class FetchCommand extends SelectedStateCommand implements UidEnabledCommand {
         // FLAGS response
         if (fetch.flags || ensureFlagsResponse) {
             response.append(" FLAGS ");
-            response.append(MessageFlags.format(message.getFlags()));
+            response.append(MessageFlags.format(message.getFlagBits()));
         }
 
         // INTERNALDATE response
@@ -149,7 +145,7 @@ class FetchCommand extends SelectedStateCommand implements UidEnabledCommand {
         // RFC822.SIZE response
         if (fetch.size) {
             response.append(" RFC822.SIZE ");
-            response.append(message.getAttributes().getSize());
+            response.append(message.getSize());
         }
 
         // ENVELOPE response
@@ -176,157 +172,137 @@ class FetchCommand extends SelectedStateCommand implements UidEnabledCommand {
             response.append(message.getUid());
         }
 
+        out.startFetchResponse(msn);
+        boolean first = true;
+        if (response.length() > 0) {
+            // Remove the leading " ".
+            out.fetchData(response.substring(1));
+            first = false;
+        }
+
         // BODY part responses.
         Collection elements = fetch.getBodyElements();
         for (Iterator iterator = elements.iterator(); iterator.hasNext();) {
             BodyFetchElement fetchElement = (BodyFetchElement) iterator.next();
-            response.append(SP);
-            response.append(fetchElement.getResponseName());
-            if (null == fetchElement.getPartial()) {
-                response.append(SP);
+            if (!first) {
+                out.fetchData(SP);
             }
+            first = false;
+            out.fetchData(fetchElement.getResponseName());
 
             // Various mechanisms for returning message body.
             String sectionSpecifier = fetchElement.getParameters();
 
-            MimeMessage mimeMessage = message.getMimeMessage();
             try {
-                handleBodyFetch(mimeMessage, sectionSpecifier, fetchElement.getPartial(), response);
+                handleBodyFetch(message, sectionSpecifier, fetchElement.getPartial(), out);
             } catch (Exception e) {
-                // TODO  chain exceptions
-                throw new FolderException(e.getMessage());
+                // A section read from a file can fail after part of its literal went out
+                out.abortFetchResponse();
+                FolderException failure = new FolderException(e.getMessage());
+                failure.initCause(e);
+                throw failure;
             }
         }
-
-        if (response.length() > 0) {
-            // Remove the leading " ".
-            return response.substring(1);
-        } else {
-            return "";
-        }
+        out.endFetchResponse();
     }
 
 
-    private void handleBodyFetch(MimeMessage mimeMessage,
+    private void handleBodyFetch(SimpleStoredMessage message,
                                  String sectionSpecifier,
                                  String partial,
-                                 StringBuffer response)
+                                 ImapResponse response)
             throws Exception {
-        if (sectionSpecifier.length() == 0) {
-            // TODO - need to use an InputStream from the response here.
-            ByteArrayOutputStream bout = new ByteArrayOutputStream();
-            mimeMessage.writeTo(bout);
-            byte[] bytes = bout.toByteArray();
-            bytes = doPartial(partial, bytes, response);
-            addLiteral(bytes, response);
-        } else if (sectionSpecifier.equalsIgnoreCase("HEADER")) {
-            Enumeration inum = mimeMessage.getAllHeaderLines();
-            addHeaders(inum, response);
-        } else if (sectionSpecifier.startsWith("HEADER.FIELDS.NOT")) {
-            String[] excludeNames = extractHeaderList(sectionSpecifier, "HEADER.FIELDS.NOT".length());
-            Enumeration inum = mimeMessage.getNonMatchingHeaderLines(excludeNames);
-            addHeaders(inum, response);
-        } else if (sectionSpecifier.startsWith("HEADER.FIELDS ")) {
-            String[] includeNames = extractHeaderList(sectionSpecifier, "HEADER.FIELDS ".length());
-            Enumeration inum = mimeMessage.getMatchingHeaderLines(includeNames);
-            addHeaders(inum, response);
-        } else if (sectionSpecifier.endsWith("MIME")) {
-            String[] strs = sectionSpecifier.trim().split("\\.");
-            int partNumber = Integer.parseInt(strs[0]) - 1;
-            MimeMultipart mp = (MimeMultipart) mimeMessage.getContent();
-            byte[] bytes = GreenMailUtil.getHeaderAsBytes(mp.getBodyPart(partNumber));
-            bytes = doPartial(partial, bytes, response);
-            addLiteral(bytes, response);
-        } else if (sectionSpecifier.equalsIgnoreCase("TEXT")) {
-            // TODO - need to use an InputStream from the response here.
-            // TODO - this is a hack. To get just the body content, I'm using a null
-            // input stream to take the headers. Need to have a way of ignoring headers.
-
-            byte[] bytes = GreenMailUtil.getBodyAsBytes(mimeMessage);
-            bytes = doPartial(partial, bytes, response);
-            addLiteral(bytes, response);
-        } else {
-            int partNumber = Integer.parseInt(sectionSpecifier) - 1;
-            /*
-            * JavaDoc of MimeMessage.getContent() says:
-            * 
-            * Return the content as a Java object. The type of this
-            * object is dependent on the content itself. For 
-            * example, the native format of a "text/plain" content
-            * is usually a String object. The native format for a "multipart"
-            * message is always a Multipart subclass. For content types that are
-            * unknown to the DataHandler system, an input stream is returned
-            * as the content. <p>
-            * 
-            * So we cannot just cast to MimeMultipart, we should check if
-            * it can be String at least.
-            */
-            Object content =  mimeMessage.getContent();
-            byte[] bytes = null;
-            if (content instanceof String) {
-                if (partNumber == 0) {
-                    try {
-                        bytes = ((String) content).getBytes(EIGHT_BIT_ENCODING);
-                    } catch (UnsupportedEncodingException e) {
-                        bytes = ((String) content).getBytes();
-                    }
-                } else {
-                    bytes = new byte[0];
-                }
-            } else if (content instanceof MimeMultipart) {
-                MimeMultipart mp = (MimeMultipart) mimeMessage.getContent();
-                bytes = GreenMailUtil.getBodyAsBytes(mp.getBodyPart(partNumber));
-            } else if (content instanceof InputStream) {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
-                InputStream input = (InputStream) content;
-                byte buffer[] = new byte[4096];
-                for(int n = 0; -1 != (n = input.read(buffer));)
-                {
-                    baos.write(buffer, 0, n);
-                }
-                bytes = baos.toByteArray();
+        // Every section is a slice of the raw message, found in the part table of the message,
+        // and only the requested window of it is read
+        ArrayList numbers = new ArrayList();
+        int pos = 0;
+        while (pos < sectionSpecifier.length() && Character.isDigit(sectionSpecifier.charAt(pos))) {
+            int dot = sectionSpecifier.indexOf('.', pos);
+            int stop = dot < 0 ? sectionSpecifier.length() : dot;
+            numbers.add(Integer.valueOf(sectionSpecifier.substring(pos, stop)));
+            pos = dot < 0 ? stop : stop + 1;
+        }
+        int[] path = new int[numbers.size()];
+        for (int i = 0; i < path.length; i++) {
+            path[i] = ((Integer) numbers.get(i)).intValue();
+        }
+        String rest = sectionSpecifier.substring(pos);
+
+        MimePartTable.Section section = message.getPartTable().getSection(path);
+        if (path.length > 0 && rest.length() > 0 && !rest.equalsIgnoreCase("MIME") && section != null) {
+            // HEADER and TEXT of a part are those of the message the part encloses
+            section = section.getMessage();
+        }
+        if (section == null) {
+            addLiteral(new byte[0], 0, 0, partial, response);
+        } else if (rest.length() == 0) {
+            if (path.length == 0) {
+                addRawLiteral(message, section.getHeaderStart(), section.getEnd(), partial, response);
             } else {
-                bytes = new byte[0];
+                addRawLiteral(message, section.getBodyStart(), section.getEnd(), partial, response);
             }
-            bytes = doPartial(partial, bytes, response);
-            addLiteral(bytes, response);
+        } else if (rest.equalsIgnoreCase("HEADER") || rest.equalsIgnoreCase("MIME")) {
+            addRawLiteral(message, section.getHeaderStart(), section.getBodyStart(), partial, response);
+        } else if (rest.equalsIgnoreCase("TEXT")) {
+            addRawLiteral(message, section.getBodyStart(), section.getEnd(), partial, response);
+        } else if (rest.startsWith("HEADER.FIELDS.NOT")) {
+            String[] excludeNames = extractHeaderList(rest, "HEADER.FIELDS.NOT".length());
+            Enumeration inum = getHeaders(message, section).getNonMatchingHeaderLines(excludeNames);
+            addHeaders(inum, partial, response);
+        } else if (rest.startsWith("HEADER.FIELDS ")) {
+            String[] includeNames = extractHeaderList(rest, "HEADER.FIELDS ".length());
+            Enumeration inum = getHeaders(message, section).getMatchingHeaderLines(includeNames);
+            addHeaders(inum, partial, response);
+        } else {
+            throw new FolderException("Unknown section " + sectionSpecifier);
         }
     }
 
-    private byte[] doPartial(String partial, byte[] bytes, StringBuffer response) {
+    private InternetHeaders getHeaders(SimpleStoredMessage message, MimePartTable.Section section)
+            throws FolderException, MessagingException {
+        return new InternetHeaders(new ByteArrayInputStream(message.getRawMessage(), section.getHeaderStart(),
+                section.getBodyStart() - section.getHeaderStart()));
+    }
+
+    /**
+     * Writes the section held by bytes[start..end) as a literal, or the window of it
+     * requested by a partial specifier.
+     */
+    private void addLiteral(byte[] bytes, int start, int end, String partial, ImapResponse response) {
+        int[] window = partialWindow(start, end, partial, response);
+        response.literal(bytes, window[0], window[1]);
+    }
+
+    /**
+     * Writes the section of the raw message from start to end as a literal, or the window
+     * of it requested by a partial specifier. Only the bytes written are read from the message.
+     */
+    private void addRawLiteral(SimpleStoredMessage message, int start, int end, String partial,
+                               ImapResponse response) throws FolderException, IOException {
+        int[] window = partialWindow(start, end, partial, response);
+        message.writeRawMessage(response.startLiteral(window[1]), window[0], window[1]);
+    }
+
+    /**
+     * Applies a partial specifier ("start" or "start.length") to the section from start to end,
+     * writing the origin of the window to the response.
+     *
+     * @return the offset and the length of the window.
+     */
+    private int[] partialWindow(int start, int end, String partial, ImapResponse response) {
+        int len = end - start;
         if (null != partial) {
             String[] strs = partial.split("\\.");
-            int start = Integer.parseInt(strs[0]);
-            int len;
+            int origin = Math.min(Integer.parseInt(strs[0]), len);
+            len -= origin;
             if (2 == strs.length) {
-                len = Integer.parseInt(strs[1]);
-            } else {
-                len = bytes.length;
+                len = Math.min(Integer.parseInt(strs[1]), len);
             }
-            start = Math.min(start, bytes.length);
-            len = Math.min(len, bytes.length);
-            byte[] newBytes = new byte[len];
-            System.arraycopy(bytes, start, newBytes, 0, len);
-            bytes = newBytes;
-            response.append("<");
-            response.append(start);
-            response.append("> ");
+            response.fetchData("<" + origin + ">");
+            start += origin;
         }
-        return bytes;
-    }
-
-    private void addLiteral(byte[] bytes, StringBuffer response) {
-        response.append('{');
-        response.append(bytes.length);
-        response.append('}');
-        response.append("\r\n");
-        String encodedBytes = null;
-        try {
-            encodedBytes = new String(bytes, Charset.forName(EIGHT_BIT_ENCODING));
-        } catch (UnsupportedCharsetException ex) {
-            encodedBytes = new String(bytes);
-        }
-        response.append(encodedBytes);
+        response.fetchData(SP);
+        return new int[]{start, len};
     }
 
     // TODO should do this at parse time.
@@ -352,26 +328,16 @@ class FetchCommand extends SelectedStateCommand implements UidEnabledCommand {
         return (String[]) strings.toArray(new String[0]);
     }
 
-    private void addHeaders(Enumeration inum, StringBuffer response) {
-        List lines = new ArrayList();
-        int count = 0;
+    private void addHeaders(Enumeration inum, String partial, ImapResponse response) {
+        StringBuffer headers = new StringBuffer();
         while (inum.hasMoreElements()) {
             String line = (String) inum.nextElement();
-            count += line.length() + 2;
-            lines.add(line);
-        }
-        response.append('{');
-        response.append(count + 2);
-        response.append('}');
-        response.append("\r\n");
-
-        Iterator lit = lines.iterator();
-        while (lit.hasNext()) {
-            String line = (String) lit.next();
-            response.append(line);
-            response.append("\r\n");
+            headers.append(line);
+            headers.append("\r\n");
         }
-        response.append("\r\n");
+        headers.append("\r\n");
+        byte[] bytes = headers.toString().getBytes(StandardCharsets.ISO_8859_1);
+        addLiteral(bytes, 0, bytes.length, partial, response);
     }
 
     /**
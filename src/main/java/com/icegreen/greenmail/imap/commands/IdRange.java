@@ -61,4 +61,23 @@ public class IdRange {
         return _lowVal <= uid && uid <= _highVal;
     }
 
+    /**
+     * Converts a message set to the form taken by the store: the lowest and highest
+     * value of each range, one after the other.
+     *
+     * @param idSet The ranges, or null.
+     * @return The pairs of values, or null.
+     */
+    public static long[] toPairs(IdRange[] idSet) {
+        if (idSet == null) {
+            return null;
+        }
+        long[] pairs = new long[idSet.length * 2];
+        for (int i = 0; i < idSet.length; i++) {
+            pairs[2 * i] = idSet[i]._lowVal;
+            pairs[2 * i + 1] = idSet[i]._highVal;
+        }
+        return pairs;
+    }
+
 }
@@ -33,11 +33,14 @@ import jakarta.mail.search.*;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 
+import com.icegreen.greenmail.store.UidSearchTerm;
+
 /**
  * Builder for search terms.
  *
@@ -138,10 +141,10 @@ public abstract class SearchTermBuilder {
                 builder = createDateSearchTermBuilder(ComparisonTerm.EQ, false);
                 break;
             case SENTSINCE:
-                builder = createDateSearchTermBuilder(ComparisonTerm.GT, false);
+                builder = createDateSearchTermBuilder(ComparisonTerm.GE, false);
                 break;
             case SINCE:
-                builder = createDateSearchTermBuilder(ComparisonTerm.GT, true);
+                builder = createDateSearchTermBuilder(ComparisonTerm.GE, true);
                 break;
             case SMALLER:
                 builder = createSizeSearchTermBuilder(ComparisonTerm.LT);
@@ -156,7 +159,8 @@ public abstract class SearchTermBuilder {
                 builder = createNotTerm();
                 break;
             case UID:
-                //TODO
+                builder = createUidSearchTermBuilder();
+                break;
             default:
                 throw new IllegalStateException("Unsupported search term '" + pTerm + '\'');
         }
@@ -289,7 +293,10 @@ public abstract class SearchTermBuilder {
     }
 
     /**
-     * @param comparison the comparison type. See {@link ComparisonTerm}
+     * The search keys name a day, the terms compare times: BEFORE is before the start of the day,
+     * SINCE from its start, and ON from its start to the start of the next day.
+     *
+     * @param comparison the comparison type. See {@link ComparisonTerm}, EQ for the whole day
      * @param isInternalDate true for internal (received) date
      * @return SearchTermBuilder
      */
@@ -301,7 +308,14 @@ public abstract class SearchTermBuilder {
                 String dateStr = getStringParameter(0);
                 try {
                     Date date = new SimpleDateFormat("dd-MMM-yyyy", Locale.ENGLISH).parse(dateStr);
-                    return isInternalDate ? new ReceivedDateTerm(comparison, date) : new SentDateTerm(comparison, date);
+                    if (comparison != ComparisonTerm.EQ) {
+                        return createDateTerm(comparison, date, isInternalDate);
+                    }
+                    Calendar nextDay = Calendar.getInstance();
+                    nextDay.setTime(date);
+                    nextDay.add(Calendar.DAY_OF_MONTH, 1);
+                    return new AndTerm(createDateTerm(ComparisonTerm.GE, date, isInternalDate),
+                            createDateTerm(ComparisonTerm.LT, nextDay.getTime(), isInternalDate));
                 } catch (ParseException e) {
                     throw new IllegalArgumentException("Date cannot be parsed", e);
                 }
@@ -309,6 +323,10 @@ public abstract class SearchTermBuilder {
         };
     }
 
+    private static SearchTerm createDateTerm(int comparison, Date date, boolean isInternalDate) {
+        return isInternalDate ? new ReceivedDateTerm(comparison, date) : new SentDateTerm(comparison, date);
+    }
+
     /**
      *
      * @param comparison the comparison type. See {@link ComparisonTerm}
@@ -332,6 +350,38 @@ public abstract class SearchTermBuilder {
         };
     }
 
+    private static SearchTermBuilder createUidSearchTermBuilder()
+    {
+        return new SearchTermBuilder() {
+            @Override
+            public SearchTerm build() {
+                String[] ranges = getStringParameter(0).split(",");
+                IdRange[] uidSet = new IdRange[ranges.length];
+                try
+                {
+                    for (int i = 0; i < ranges.length; i++)
+                    {
+                        int pos = ranges[i].indexOf(':');
+                        if (pos == -1) {
+                            uidSet[i] = new IdRange(parseUid(ranges[i]));
+                        } else {
+                            uidSet[i] = new IdRange(parseUid(ranges[i].substring(0, pos)),
+                                    parseUid(ranges[i].substring(pos + 1)));
+                        }
+                    }
+                } catch (NumberFormatException e)
+                {
+                    throw new IllegalArgumentException("UID set cannot be parsed", e);
+                }
+                return new UidSearchTerm(IdRange.toPairs(uidSet));
+            }
+        };
+    }
+
+    private static long parseUid(String uid) {
+        return "*".equals(uid) ? Long.MAX_VALUE : Long.parseLong(uid);
+    }
+
     private static SearchTermBuilder createSubjectTerm()
     {
         return new SearchTermBuilder() {
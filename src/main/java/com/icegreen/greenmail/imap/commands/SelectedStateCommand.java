@@ -47,14 +47,4 @@ abstract class SelectedStateCommand extends CommandTemplate {
     public boolean validForState(ImapSessionState state) {
         return (state == ImapSessionState.SELECTED);
     }
-
-    protected boolean includes(IdRange[] idSet, long id) {
-        for (int i = 0; i < idSet.length; i++) {
-            IdRange idRange = idSet[i];
-            if (idRange.includes(id)) {
-                return true;
-            }
-        }
-        return false;
-    }
 }
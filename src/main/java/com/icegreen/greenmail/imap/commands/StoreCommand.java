@@ -34,8 +34,6 @@ package com.icegreen.greenmail.imap.commands;
 import com.icegreen.greenmail.imap.*;
 import com.icegreen.greenmail.store.FolderException;
 import com.icegreen.greenmail.store.FolderListener;
-import com.icegreen.greenmail.store.MessageFlags;
-import com.icegreen.greenmail.store.SimpleStoredMessage;
 
 import jakarta.mail.Flags;
 
@@ -94,22 +92,13 @@ class StoreCommand extends SelectedStateCommand implements UidEnabledCommand {
             silentListener = mailbox;
         }
         
-        // TODO do this in one hit.
-        long[] uids = mailbox.getMessageUids();
-        for (int i = 0; i < uids.length; i++) {
-            long uid = uids[i];
-            int msn = mailbox.getMsn(uid);
-
-            if ((useUids && includes(idSet, uid)) ||
-                    (!useUids && includes(idSet, msn))) {
-                if (directive.getSign() < 0) {
-                    mailbox.setFlags(flags, false, uid, silentListener, useUids);
-                } else if (directive.getSign() > 0) {
-                    mailbox.setFlags(flags, true, uid, silentListener, useUids);
-                } else {
-                    mailbox.replaceFlags(flags, uid, silentListener, useUids);
-                }
-            }
+        long[] uids = mailbox.getMessageUids(idSet, useUids);
+        if (directive.getSign() < 0) {
+            mailbox.setFlags(flags, false, uids, silentListener, useUids);
+        } else if (directive.getSign() > 0) {
+            mailbox.setFlags(flags, true, uids, silentListener, useUids);
+        } else {
+            mailbox.replaceFlags(flags, uids, silentListener, useUids);
         }
 
         boolean omitExpunged = (!useUids);
@@ -117,18 +106,6 @@ class StoreCommand extends SelectedStateCommand implements UidEnabledCommand {
         response.commandComplete(this);
     }
 
-    private void storeFlags(SimpleStoredMessage storedMessage, StoreDirective directive, Flags newFlags) {
-        Flags messageFlags = storedMessage.getFlags();
-        if (directive.getSign() == 0) {
-            messageFlags.remove(MessageFlags.ALL_FLAGS);
-            messageFlags.add(newFlags);
-        } else if (directive.getSign() < 0) {
-            messageFlags.remove(newFlags);
-        } else if (directive.getSign() > 0) {
-            messageFlags.add(newFlags);
-        }
-    }
-
     /**
      * @see ImapCommand#getName
      */
@@ -81,7 +81,7 @@ public class Pop3Server extends AbstractServer {
                 Socket clientSocket = serverSocket.accept();
                 Pop3Handler pop3Handler = new Pop3Handler(new Pop3CommandRegistry(), managers.getUserManager(), clientSocket);
                 handlers.add(pop3Handler);
-                pop3Handler.start();
+                handlerExecutor.execute(pop3Handler);
             } catch (IOException ignored) {
                 //ignored
             }
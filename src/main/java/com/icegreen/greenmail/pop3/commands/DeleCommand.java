@@ -37,6 +37,7 @@ import com.icegreen.greenmail.foedus.util.MsgRangeFilter;
 import java.util.List;
 
 import com.icegreen.greenmail.store.MailFolder;
+import com.icegreen.greenmail.store.MessageFlags;
 import com.icegreen.greenmail.store.SimpleStoredMessage;
 
 import jakarta.mail.Flags;
@@ -64,15 +65,14 @@ public class DeleCommand
             }
 
             SimpleStoredMessage msg = (SimpleStoredMessage) msgList.get(0);
-            Flags flags = msg.getFlags();
 
-            if (flags.contains(Flags.Flag.DELETED)) {
+            if (msg.hasFlags(MessageFlags.DELETED_BIT)) {
                 conn.println("-ERR message already deleted");
 
                 return;
             }
 
-            flags.add(Flags.Flag.DELETED);
+            inbox.setFlags(new Flags(Flags.Flag.DELETED), true, msg.getUid(), null, false);
 
             conn.println("+OK message scheduled for deletion");
         } catch (Exception e) {
@@ -63,13 +63,13 @@ public class ListCommand
                 }
 
                 SimpleStoredMessage msg = (SimpleStoredMessage) msgList.get(0);
-                conn.println("+OK " + msgNumStr + " " + msg.getMimeMessage().getSize());
+                conn.println("+OK " + msgNumStr + " " + msg.getSize());
             } else {
                 List messages = inbox.getNonDeletedMessages();
                 conn.println("+OK");
                 for (Iterator i = messages.iterator(); i.hasNext();) {
                     SimpleStoredMessage msg = (SimpleStoredMessage) i.next();
-                    conn.println(inbox.getMsn(msg.getUid()) + " " + msg.getMimeMessage().getSize());
+                    conn.println(inbox.getMsn(msg.getUid()) + " " + msg.getSize());
                 }
 
                 conn.println(".");
@@ -33,9 +33,10 @@ package com.icegreen.greenmail.pop3.commands;
 import com.icegreen.greenmail.foedus.util.MsgRangeFilter;
 import com.icegreen.greenmail.pop3.Pop3Connection;
 import com.icegreen.greenmail.pop3.Pop3State;
-import com.icegreen.greenmail.util.GreenMailUtil;
+import com.icegreen.greenmail.imap.ImapConstants;
 
-import java.io.StringReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
 import java.util.List;
 
 import com.icegreen.greenmail.store.MailFolder;
@@ -66,12 +67,14 @@ public class RetrCommand
             }
 
             SimpleStoredMessage msg = (SimpleStoredMessage) msgList.get(0);
-            String email = GreenMailUtil.getWholeMessage(msg.getMimeMessage());
+            byte[] email = msg.getRawMessage();
             conn.println("+OK");
-            conn.print(new StringReader(email));
-            conn.println();
+            conn.print(new InputStreamReader(new ByteArrayInputStream(email), ImapConstants.EIGHT_BIT_ENCODING));
+            if (email.length < 2 || email[email.length - 2] != '\r' || email[email.length - 1] != '\n') {
+                conn.println();
+            }
             conn.println(".");
-            msg.getFlags().add(Flags.Flag.SEEN);
+            inbox.setFlags(new Flags(Flags.Flag.SEEN), true, msg.getUid(), null, false);
         } catch (Exception e) {
             conn.println("-ERR " + e);
         }
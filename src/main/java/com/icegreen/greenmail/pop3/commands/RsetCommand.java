@@ -25,12 +25,14 @@
  */
 package com.icegreen.greenmail.pop3.commands;
 
+import java.util.Arrays;
 import java.util.List;
 import jakarta.mail.Flags;
 
 import com.icegreen.greenmail.pop3.Pop3Connection;
 import com.icegreen.greenmail.pop3.Pop3State;
 import com.icegreen.greenmail.store.MailFolder;
+import com.icegreen.greenmail.store.MessageFlags;
 import com.icegreen.greenmail.store.SimpleStoredMessage;
 
 /**
@@ -69,15 +71,15 @@ public class RsetCommand extends Pop3Command {
         try {
             MailFolder inbox = state.getFolder();
             List msgList = inbox.getMessages();
+            long[] uids = new long[msgList.size()];
             int count = 0;
             for(int i=0;i<msgList.size();i++) {
                 SimpleStoredMessage msg = (SimpleStoredMessage) msgList.get(i);
-                Flags flags = msg.getFlags();
-                if (flags.contains(Flags.Flag.DELETED)) {
-                    count++;
-                    flags.remove(Flags.Flag.DELETED);
+                if (msg.hasFlags(MessageFlags.DELETED_BIT)) {
+                    uids[count++] = msg.getUid();
                 }
             }
+            inbox.setFlags(new Flags(Flags.Flag.DELETED), false, Arrays.copyOf(uids, count), null, false);
 
             conn.println("+OK maildrop has "+count+" messages undeleted.");
         } catch (Exception e) {
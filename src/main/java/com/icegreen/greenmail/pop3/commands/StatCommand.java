@@ -30,14 +30,13 @@
  */
 package com.icegreen.greenmail.pop3.commands;
 
-import com.icegreen.greenmail.mail.MailException;
 import com.icegreen.greenmail.pop3.Pop3Connection;
 import com.icegreen.greenmail.pop3.Pop3State;
 
-import jakarta.mail.MessagingException;
 import java.util.Iterator;
 import java.util.List;
 
+import com.icegreen.greenmail.store.FolderException;
 import com.icegreen.greenmail.store.MailFolder;
 import com.icegreen.greenmail.store.SimpleStoredMessage;
 
@@ -62,16 +61,12 @@ public class StatCommand
     }
 
     long sumMessageSizes(List messages)
-            throws MailException {
+            throws FolderException {
         long total = 0;
 
         for (Iterator i = messages.iterator(); i.hasNext();) {
             SimpleStoredMessage msg = (SimpleStoredMessage) i.next();
-            try {
-                total += msg.getMimeMessage().getSize();
-            } catch (MessagingException e) {
-                throw new RuntimeException(e);
-            }
+            total += msg.getSize();
         }
 
         return total;
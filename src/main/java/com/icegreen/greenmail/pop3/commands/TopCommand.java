@@ -33,11 +33,12 @@ package com.icegreen.greenmail.pop3.commands;
 import com.icegreen.greenmail.foedus.util.MsgRangeFilter;
 import com.icegreen.greenmail.pop3.Pop3Connection;
 import com.icegreen.greenmail.pop3.Pop3State;
-import com.icegreen.greenmail.util.GreenMailUtil;
+import com.icegreen.greenmail.imap.ImapConstants;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStreamReader;
 import java.util.List;
 
 import com.icegreen.greenmail.store.MailFolder;
@@ -71,7 +72,8 @@ public class TopCommand
 
             int numLines = Integer.parseInt(cmdLine[2]);
 
-            BufferedReader in = new BufferedReader(new StringReader(GreenMailUtil.getWholeMessage(msg.getMimeMessage())));
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new ByteArrayInputStream(msg.getRawMessage()), ImapConstants.EIGHT_BIT_ENCODING));
 
             conn.println("+OK");
 
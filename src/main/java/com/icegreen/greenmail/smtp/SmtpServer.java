@@ -80,7 +80,7 @@ public class SmtpServer extends AbstractServer {
                     Socket clientSocket = serverSocket.accept();
                     SmtpHandler smtpHandler = new SmtpHandler(new SmtpCommandRegistry(), managers.getSmtpManager(), new InMemoryWorkspace(), clientSocket);
                     handlers.add(smtpHandler);
-                    smtpHandler.start();
+                    handlerExecutor.execute(smtpHandler);
                 } catch (SocketException ignored) {
                 } catch (IOException e) {
                     e.printStackTrace();
@@ -0,0 +1,269 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import com.icegreen.greenmail.util.GreenMailUtil;
+
+import jakarta.mail.Flags;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeMessage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.SoftReference;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Store} keeping message contents in files, one file per message, for servers
+ * receiving more mail than fits in memory.
+ * <p/>
+ * The mailbox hierarchy and the per folder message tables (UIDs, flags and internal dates)
+ * stay in memory, as with {@link InMemoryStore}, along with the size of each message. A message
+ * is read and parsed from its file when a command needs it, and is then only softly referenced,
+ * so the garbage collector can reclaim it when memory runs low.
+ * <p/>
+ * The directory is used as a spool: the store does not reload its contents when created,
+ * and files are deleted once their message has been expunged. Files left in it by an earlier
+ * store are not overwritten, new files are numbered after them.
+ */
+public class FileStore extends InMemoryStore {
+    // Message files are spread over sub directories, to keep directories small
+    private static final int DIRECTORIES = 256;
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    private final File directory;
+    private final AtomicLong nextFileId = new AtomicLong(1);
+
+    /**
+     * @param directory The directory where message files are written, created if needed.
+     */
+    public FileStore(File directory) {
+        this.directory = directory;
+        nextFileId.set(findLastFileId(directory) + 1);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    SimpleStoredMessage createStoredMessage(MimeMessage message, Flags flags, Date internalDate)
+            throws FolderException {
+        if (message == null) {
+            return super.createStoredMessage(message, flags, internalDate);
+        }
+        byte[] raw = SimpleStoredMessage.toRawMessage(message);
+        long fileId = nextFileId.getAndIncrement();
+        File file = getFile(fileId);
+        try {
+            file.getParentFile().mkdirs();
+            OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(raw);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw new FolderException("Could not write message to " + file + ": " + e.getMessage());
+        }
+        return new FileStoredMessage(fileId, raw.length, SimpleStoredMessage.findBodyOffset(raw),
+                flags, internalDate);
+    }
+
+    void messagesDiscarded(SimpleStoredMessage[] messages) {
+        for (int i = 0; i < messages.length; i++) {
+            if (messages[i] instanceof FileStoredMessage) {
+                getFile(((FileStoredMessage) messages[i]).fileId).delete();
+            }
+        }
+    }
+
+    /**
+     * @return The highest id of the message files in the directory, 0 if there is none.
+     */
+    private static long findLastFileId(File directory) {
+        long last = 0;
+        File[] subDirectories = directory.listFiles();
+        if (subDirectories == null) {
+            return last;
+        }
+        for (int i = 0; i < subDirectories.length; i++) {
+            String[] names = subDirectories[i].list();
+            if (names == null) {
+                continue;
+            }
+            for (int j = 0; j < names.length; j++) {
+                if (names[j].endsWith(".eml")) {
+                    try {
+                        last = Math.max(last, Long.parseLong(names[j].substring(0, names[j].length() - 4)));
+                    } catch (NumberFormatException e) {
+                        // Not one of ours
+                    }
+                }
+            }
+        }
+        return last;
+    }
+
+    File getFile(long fileId) {
+        String subDirectory = Integer.toHexString((int) (fileId % DIRECTORIES));
+        return new File(new File(directory, subDirectory), fileId + ".eml");
+    }
+
+    /**
+     * A message whose content is read from its file on demand. Only the file id, sizes, flags,
+     * internal date and UID are strongly held.
+     */
+    private class FileStoredMessage extends SimpleStoredMessage {
+        private final long fileId;
+        private final int size;
+        private final int bodyOffset;
+        private volatile SoftReference rawMessage;
+        private volatile SoftReference mimeMessage;
+        private volatile SoftReference attributes;
+
+        FileStoredMessage(long fileId, int size, int bodyOffset, Flags flags, Date internalDate) {
+            super(null, flags, internalDate, 0);
+            this.fileId = fileId;
+            this.size = size;
+            this.bodyOffset = bodyOffset;
+        }
+
+        public byte[] getRawMessage() throws FolderException {
+            SoftReference reference = rawMessage;
+            byte[] raw = reference == null ? null : (byte[]) reference.get();
+            if (raw == null) {
+                File file = getFile(fileId);
+                try {
+                    InputStream in = new FileInputStream(file);
+                    try {
+                        raw = in.readAllBytes();
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    throw new FolderException("Could not read message from " + file + ": " + e.getMessage());
+                }
+                rawMessage = new SoftReference(raw);
+            }
+            return raw;
+        }
+
+        /**
+         * Reads only the requested range from the file, unless the whole message is at hand.
+         */
+        public void writeRawMessage(OutputStream out, int offset, int length) throws FolderException, IOException {
+            SoftReference reference = rawMessage;
+            byte[] raw = reference == null ? null : (byte[]) reference.get();
+            if (raw != null) {
+                out.write(raw, offset, length);
+                return;
+            }
+            File file = getFile(fileId);
+            RandomAccessFile in;
+            try {
+                in = new RandomAccessFile(file, "r");
+            } catch (IOException e) {
+                throw new FolderException("Could not read message from " + file + ": " + e.getMessage());
+            }
+            try {
+                byte[] buffer = new byte[Math.min(length, COPY_BUFFER_SIZE)];
+                try {
+                    in.seek(offset);
+                } catch (IOException e) {
+                    throw new FolderException("Could not read message from " + file + ": " + e.getMessage());
+                }
+                while (length > 0) {
+                    int count;
+                    try {
+                        count = in.read(buffer, 0, Math.min(buffer.length, length));
+                    } catch (IOException e) {
+                        throw new FolderException("Could not read message from " + file + ": " + e.getMessage());
+                    }
+                    if (count < 0) {
+                        throw new FolderException("Message file " + file + " is shorter than expected");
+                    }
+                    out.write(buffer, 0, count);
+                    length -= count;
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public int getBodyOffset() {
+            return bodyOffset;
+        }
+
+        /**
+         * @throws IllegalStateException if the file cannot be read, with the FolderException
+         *                               {@link #loadMimeMessage()} reports as its cause.
+         */
+        public MimeMessage getMimeMessage() {
+            try {
+                return loadMimeMessage();
+            } catch (FolderException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
+
+        MimeMessage loadMimeMessage() throws FolderException {
+            SoftReference reference = mimeMessage;
+            MimeMessage message = reference == null ? null : (MimeMessage) reference.get();
+            if (message == null) {
+                message = GreenMailUtil.newMimeMessage(new ByteArrayInputStream(getRawMessage()));
+                mimeMessage = new SoftReference(message);
+            }
+            return message;
+        }
+
+        public synchronized MailMessageAttributes getAttributes() throws FolderException {
+            SoftReference reference = attributes;
+            SimpleMessageAttributes messageAttributes =
+                    reference == null ? null : (SimpleMessageAttributes) reference.get();
+            if (messageAttributes == null) {
+                messageAttributes = new SimpleMessageAttributes();
+                try {
+                    messageAttributes.setAttributesFor(loadMimeMessage(), getRawMessage(), bodyOffset);
+                } catch (MessagingException e) {
+                    throw new FolderException("Could not parse mime message." + e.getMessage());
+                }
+                attributes = new SoftReference(messageAttributes);
+            }
+            return messageAttributes;
+        }
+    }
+}
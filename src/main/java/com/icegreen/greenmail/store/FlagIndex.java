@@ -0,0 +1,248 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import jakarta.mail.Flags;
+import jakarta.mail.search.AndTerm;
+import jakarta.mail.search.FlagTerm;
+import jakarta.mail.search.NotTerm;
+import jakarta.mail.search.OrTerm;
+import jakarta.mail.search.SearchTerm;
+
+/**
+ * Bitmaps of the messages of a folder having each system flag and each keyword, by position
+ * in the {@link MessageTable}.
+ * <p/>
+ * Searches made of flag and UID criteria, combined with AND, OR and NOT, are answered with
+ * bitmap operations alone, without looking at any message.
+ * <p/>
+ * Not thread safe, the folder changes the index under its write lock and searches under its read lock.
+ */
+final class FlagIndex {
+    // The system flags are the low bits of MessageFlags, from ANSWERED_BIT to SEEN_BIT
+    private static final int SYSTEM_FLAGS = 6;
+    private static final int SYSTEM_BITS = (1 << SYSTEM_FLAGS) - 1;
+
+    private final MessageTable messages;
+    private final MessageBitmap[] systemFlags = new MessageBitmap[SYSTEM_FLAGS];
+    // Case folded keyword -> bitmap
+    private final Map keywords = new HashMap();
+
+    FlagIndex(MessageTable messages) {
+        this.messages = messages;
+        for (int i = 0; i < SYSTEM_FLAGS; i++) {
+            systemFlags[i] = new MessageBitmap();
+        }
+    }
+
+    /**
+     * @param bit One of the system flag bits of {@link MessageFlags}.
+     */
+    MessageBitmap get(int bit) {
+        return systemFlags[Integer.numberOfTrailingZeros(bit)];
+    }
+
+    void messageAdded(int index, SimpleStoredMessage message) {
+        flagsChanged(index, 0, message.getFlagBits());
+        keywordsChanged(index, null, message.getUserFlags());
+    }
+
+    void flagsChanged(int index, int oldBits, int newBits) {
+        int changed = (oldBits ^ newBits) & SYSTEM_BITS;
+        while (changed != 0) {
+            int bit = Integer.lowestOneBit(changed);
+            if ((newBits & bit) != 0) {
+                get(bit).set(index);
+            } else {
+                get(bit).clear(index);
+            }
+            changed &= ~bit;
+        }
+    }
+
+    /**
+     * @param oldKeywords The user flags before the change, or null.
+     * @param newKeywords The user flags after the change, or null.
+     */
+    void keywordsChanged(int index, String[] oldKeywords, String[] newKeywords) {
+        Set present = new HashSet();
+        if (newKeywords != null) {
+            for (int i = 0; i < newKeywords.length; i++) {
+                String keyword = fold(newKeywords[i]);
+                present.add(keyword);
+                MessageBitmap bitmap = (MessageBitmap) keywords.get(keyword);
+                if (bitmap == null) {
+                    bitmap = new MessageBitmap();
+                    keywords.put(keyword, bitmap);
+                }
+                bitmap.set(index);
+            }
+        }
+        if (oldKeywords != null) {
+            for (int i = 0; i < oldKeywords.length; i++) {
+                String keyword = fold(oldKeywords[i]);
+                if (!present.contains(keyword)) {
+                    MessageBitmap bitmap = (MessageBitmap) keywords.get(keyword);
+                    if (bitmap != null) {
+                        bitmap.clear(index);
+                        if (bitmap.isEmpty()) {
+                            keywords.remove(keyword);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes expunged messages, must be called once they are removed from the table.
+     *
+     * @param indexes The positions of the messages, in ascending order.
+     */
+    void removeAll(int[] indexes, int count) {
+        for (int i = 0; i < SYSTEM_FLAGS; i++) {
+            systemFlags[i].removeAll(indexes, count);
+        }
+        Iterator iterator = keywords.values().iterator();
+        while (iterator.hasNext()) {
+            MessageBitmap bitmap = (MessageBitmap) iterator.next();
+            bitmap.removeAll(indexes, count);
+            if (bitmap.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    void clear() {
+        for (int i = 0; i < SYSTEM_FLAGS; i++) {
+            systemFlags[i].clear();
+        }
+        keywords.clear();
+    }
+
+    /**
+     * @return Whether the term is only made of criteria the index answers.
+     */
+    static boolean covers(SearchTerm term) {
+        if (term instanceof FlagTerm) {
+            Flags flags = ((FlagTerm) term).getFlags();
+            return (MessageFlags.toBits(flags) & ~SYSTEM_BITS) == 0;
+        }
+        if (term instanceof UidSearchTerm) {
+            return true;
+        }
+        if (term instanceof NotTerm) {
+            return covers(((NotTerm) term).getTerm());
+        }
+        SearchTerm[] terms = null;
+        if (term instanceof AndTerm) {
+            terms = ((AndTerm) term).getTerms();
+        } else if (term instanceof OrTerm) {
+            terms = ((OrTerm) term).getTerms();
+        }
+        if (terms == null) {
+            return false;
+        }
+        for (int i = 0; i < terms.length; i++) {
+            if (!covers(terms[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param term A term the index {@link #covers(SearchTerm) covers}.
+     * @return The UIDs of the messages matching the term, in ascending order.
+     */
+    long[] search(SearchTerm term) {
+        MessageBitmap matches = evaluate(term);
+        long[] uids = new long[matches.cardinality()];
+        int count = 0;
+        for (int i = matches.nextSetBit(0); i >= 0 && i < messages.size(); i = matches.nextSetBit(i + 1)) {
+            uids[count++] = messages.getUid(i);
+        }
+        return count == uids.length ? uids : Arrays.copyOf(uids, count);
+    }
+
+    private MessageBitmap evaluate(SearchTerm term) {
+        int size = messages.size();
+        if (term instanceof FlagTerm) {
+            FlagTerm flagTerm = (FlagTerm) term;
+            // Same semantics as FlagTerm: all of the flags are set, or none of them is
+            MessageBitmap any = new MessageBitmap();
+            MessageBitmap all = any.not(size);
+            int bits = MessageFlags.toBits(flagTerm.getFlags());
+            for (int i = 0; i < SYSTEM_FLAGS; i++) {
+                if ((bits & (1 << i)) != 0) {
+                    any = any.or(systemFlags[i]);
+                    all = all.and(systemFlags[i]);
+                }
+            }
+            String[] userFlags = flagTerm.getFlags().getUserFlags();
+            for (int i = 0; i < userFlags.length; i++) {
+                MessageBitmap bitmap = (MessageBitmap) keywords.get(fold(userFlags[i]));
+                if (bitmap == null) {
+                    bitmap = new MessageBitmap();
+                }
+                any = any.or(bitmap);
+                all = all.and(bitmap);
+            }
+            return flagTerm.getTestSet() ? all : any.not(size);
+        }
+        if (term instanceof UidSearchTerm) {
+            MessageBitmap result = new MessageBitmap();
+            long[] uidRanges = ((UidSearchTerm) term).getUidRanges();
+            for (int i = 0; i < uidRanges.length; i += 2) {
+                long high = uidRanges[i + 1];
+                int to = high == Long.MAX_VALUE ? size : messages.indexOfFirst(high + 1);
+                result.set(messages.indexOfFirst(uidRanges[i]), to);
+            }
+            return result;
+        }
+        if (term instanceof NotTerm) {
+            return evaluate(((NotTerm) term).getTerm()).not(size);
+        }
+        boolean and = term instanceof AndTerm;
+        SearchTerm[] terms = and ? ((AndTerm) term).getTerms() : ((OrTerm) term).getTerms();
+        MessageBitmap result = evaluate(terms[0]);
+        for (int i = 1; i < terms.length; i++) {
+            result = and ? result.and(evaluate(terms[i])) : result.or(evaluate(terms[i]));
+        }
+        return result;
+    }
+
+    private static String fold(String keyword) {
+        return TextIndex.fold(keyword, 0, keyword.length());
+    }
+}
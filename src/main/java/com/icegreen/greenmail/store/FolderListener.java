@@ -37,9 +37,32 @@ import jakarta.mail.Flags;
 public interface FolderListener {
     void expunged(int msn);
 
+    /**
+     * Notifies a batch of expunges, each MSN being relative to the mailbox state after
+     * the previous expunge in the batch.
+     */
+    default void expunged(int[] msns) {
+        for (int i = 0; i < msns.length; i++) {
+            expunged(msns[i]);
+        }
+    }
+
     void added(int msn);
 
     void flagsUpdated(int msn, Flags flags, Long uid);
 
+    /**
+     * Notifies the flag changes of a batch of messages, made in a single operation.
+     *
+     * @param msns  The MSNs of the changed messages.
+     * @param flags The new flags of each message.
+     * @param uids  The UIDs of the messages, or null if they are not to be reported.
+     */
+    default void flagsUpdated(int[] msns, Flags[] flags, long[] uids) {
+        for (int i = 0; i < msns.length; i++) {
+            flagsUpdated(msns[i], flags[i], uids == null ? null : Long.valueOf(uids[i]));
+        }
+    }
+
     void mailboxDeleted();
 }
\ No newline at end of file
@@ -0,0 +1,303 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import jakarta.mail.Address;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.search.AddressTerm;
+import jakarta.mail.search.FromTerm;
+import jakarta.mail.search.HeaderTerm;
+import jakarta.mail.search.RecipientTerm;
+import jakarta.mail.search.SearchTerm;
+import jakarta.mail.search.SubjectTerm;
+
+/**
+ * An index of the headers most searched for, kept for the folders it is switched on for.
+ * <p/>
+ * The addresses of the From, To, Cc and Bcc headers, as parsed by {@link MimeMessage}, find
+ * the messages matching a {@link FromTerm} or {@link RecipientTerm} by hash lookup. The
+ * <code>&lt;...&gt;</code> identifiers in Message-ID headers do the same for a {@link HeaderTerm}
+ * looking for a whole Message-ID. The words of the decoded subjects narrow down the messages a
+ * {@link SubjectTerm} has to match, as {@link TextIndex} does for message text.
+ * <p/>
+ * Not thread safe, the folder changes the index under its write lock and searches under its read lock.
+ */
+final class HeaderIndex {
+    private static final String MESSAGE_ID = "Message-ID";
+    private static final String[] NO_VALUES = new String[0];
+    private static final int HASH_ENTRY_SIZE = 36;
+    private static final int STRING_SIZE = 40;
+
+    /**
+     * The values of a message that could not be parsed.
+     */
+    static final Entry UNPARSED = new Entry();
+    private static final Entry EMPTY = new Entry();
+
+    // Folded address or Message-ID -> postings
+    private final Map from = new HashMap();
+    private final Map to = new HashMap();
+    private final Map cc = new HashMap();
+    private final Map bcc = new HashMap();
+    private final Map messageIds = new HashMap();
+    private final TextIndex subjects = new TextIndex();
+    // UID -> the values of the message, to remove it from the postings
+    private final Map entries = new HashMap();
+    private final Postings unparsed = new Postings();
+
+    /**
+     * Extracts the indexed header values of a message, without touching the index.
+     *
+     * @return The values, {@link #UNPARSED} when the headers cannot be parsed.
+     */
+    static Entry extract(MimeMessage message) {
+        if (message == null) {
+            return EMPTY;
+        }
+        Entry entry = new Entry();
+        try {
+            entry.from = addresses(message.getFrom());
+            entry.to = addresses(message.getRecipients(Message.RecipientType.TO));
+            entry.cc = addresses(message.getRecipients(Message.RecipientType.CC));
+            entry.bcc = addresses(message.getRecipients(Message.RecipientType.BCC));
+            entry.messageIds = messageIds(message.getHeader(MESSAGE_ID));
+            entry.subjectWords = TextIndex.tokenizeText(message.getSubject());
+        } catch (MessagingException e) {
+            return UNPARSED;
+        } catch (RuntimeException e) {
+            return UNPARSED;
+        }
+        return entry;
+    }
+
+    /**
+     * Keeps the addresses an {@link InternetAddress} search term can be equal to.
+     */
+    private static String[] addresses(Address[] addresses) {
+        if (addresses == null) {
+            return NO_VALUES;
+        }
+        Set values = new HashSet();
+        for (int i = 0; i < addresses.length; i++) {
+            String value = addresses[i] instanceof InternetAddress ? ((InternetAddress) addresses[i]).getAddress() : null;
+            if (value != null) {
+                values.add(TextIndex.fold(value, 0, value.length()));
+            }
+        }
+        return (String[]) values.toArray(new String[values.size()]);
+    }
+
+    /**
+     * Collects every substring from a <code>&lt;</code> to the next <code>&gt;</code>, which any
+     * occurrence of a whole Message-ID in the header values starts with.
+     */
+    private static String[] messageIds(String[] headers) {
+        if (headers == null) {
+            return NO_VALUES;
+        }
+        Set values = new HashSet();
+        for (int i = 0; i < headers.length; i++) {
+            String header = headers[i];
+            int start = header.indexOf('<');
+            while (start >= 0) {
+                int end = header.indexOf('>', start);
+                if (end < 0) {
+                    break;
+                }
+                values.add(TextIndex.fold(header, start, end + 1));
+                start = header.indexOf('<', start + 1);
+            }
+        }
+        return (String[]) values.toArray(new String[values.size()]);
+    }
+
+    /**
+     * @param entry The values from {@link #extract(MimeMessage)}.
+     */
+    void add(long uid, Entry entry) {
+        entries.put(Long.valueOf(uid), entry);
+        if (entry == UNPARSED) {
+            unparsed.add(uid);
+            return;
+        }
+        add(from, uid, entry.from);
+        add(to, uid, entry.to);
+        add(cc, uid, entry.cc);
+        add(bcc, uid, entry.bcc);
+        add(messageIds, uid, entry.messageIds);
+        subjects.add(uid, entry.subjectWords);
+        // Kept by the subject index
+        entry.subjectWords = NO_VALUES;
+    }
+
+    private static void add(Map postingsByValue, long uid, String[] values) {
+        for (int i = 0; i < values.length; i++) {
+            Postings.Keyed postings = (Postings.Keyed) postingsByValue.get(values[i]);
+            if (postings == null) {
+                postings = new Postings.Keyed(values[i]);
+                postingsByValue.put(values[i], postings);
+            }
+            postings.add(uid);
+            // Shares the value with the index
+            values[i] = postings.key;
+        }
+    }
+
+    void remove(long uid) {
+        Entry entry = (Entry) entries.remove(Long.valueOf(uid));
+        if (entry == null) {
+            return;
+        }
+        if (entry == UNPARSED) {
+            unparsed.remove(uid);
+            return;
+        }
+        remove(from, uid, entry.from);
+        remove(to, uid, entry.to);
+        remove(cc, uid, entry.cc);
+        remove(bcc, uid, entry.bcc);
+        remove(messageIds, uid, entry.messageIds);
+        subjects.remove(uid);
+    }
+
+    private static void remove(Map postingsByValue, long uid, String[] values) {
+        for (int i = 0; i < values.length; i++) {
+            Postings postings = (Postings) postingsByValue.get(values[i]);
+            postings.remove(uid);
+            if (postings.size() == 0) {
+                postingsByValue.remove(values[i]);
+            }
+        }
+    }
+
+    void clear() {
+        from.clear();
+        to.clear();
+        cc.clear();
+        bcc.clear();
+        messageIds.clear();
+        subjects.clear();
+        entries.clear();
+        unparsed.clear();
+    }
+
+    /**
+     * Finds the messages that may match a search term, which still have to be matched against it.
+     *
+     * @return The UIDs of the candidates in ascending order, or null if the term is not indexed.
+     */
+    long[] candidates(SearchTerm term) {
+        long[] candidates = null;
+        if (term instanceof FromTerm) {
+            candidates = lookup(from, (AddressTerm) term);
+        } else if (term instanceof RecipientTerm) {
+            Message.RecipientType type = ((RecipientTerm) term).getRecipientType();
+            if (Message.RecipientType.TO.equals(type)) {
+                candidates = lookup(to, (AddressTerm) term);
+            } else if (Message.RecipientType.CC.equals(type)) {
+                candidates = lookup(cc, (AddressTerm) term);
+            } else if (Message.RecipientType.BCC.equals(type)) {
+                candidates = lookup(bcc, (AddressTerm) term);
+            }
+        } else if (term instanceof SubjectTerm) {
+            candidates = subjects.candidates(((SubjectTerm) term).getPattern());
+        } else if (term instanceof HeaderTerm && MESSAGE_ID.equalsIgnoreCase(((HeaderTerm) term).getHeaderName())) {
+            String pattern = ((HeaderTerm) term).getPattern();
+            // A whole Message-ID starts at a '<' and ends at the next '>' of the header
+            if (pattern.length() > 1 && pattern.charAt(0) == '<' && pattern.indexOf('>') == pattern.length() - 1) {
+                candidates = lookup(messageIds, TextIndex.fold(pattern, 0, pattern.length()));
+            }
+        }
+        if (candidates == null || unparsed.size() == 0) {
+            return candidates;
+        }
+        return Postings.union(candidates, unparsed.toArray());
+    }
+
+    private static long[] lookup(Map postingsByValue, AddressTerm term) {
+        Address address = term.getAddress();
+        String value = address instanceof InternetAddress ? ((InternetAddress) address).getAddress() : null;
+        if (value == null) {
+            return null;
+        }
+        return lookup(postingsByValue, TextIndex.fold(value, 0, value.length()));
+    }
+
+    private static long[] lookup(Map postingsByValue, String value) {
+        Postings postings = (Postings) postingsByValue.get(value);
+        return postings == null ? Postings.NO_UIDS : postings.toArray();
+    }
+
+    /**
+     * @return An estimate of the heap used by the index, in bytes.
+     */
+    long getMemoryUsage() {
+        long bytes = subjects.getMemoryUsage() + unparsed.getMemoryUsage()
+                + getMemoryUsage(from) + getMemoryUsage(to) + getMemoryUsage(cc)
+                + getMemoryUsage(bcc) + getMemoryUsage(messageIds);
+        Iterator iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = (Entry) iterator.next();
+            bytes += HASH_ENTRY_SIZE + 16 + 16 + 6 * 4;
+            if (entry != UNPARSED) {
+                bytes += 4L * (entry.from.length + entry.to.length + entry.cc.length + entry.bcc.length
+                        + entry.messageIds.length);
+            }
+        }
+        return bytes;
+    }
+
+    private static long getMemoryUsage(Map postingsByValue) {
+        long bytes = 0;
+        Iterator iterator = postingsByValue.values().iterator();
+        while (iterator.hasNext()) {
+            Postings.Keyed postings = (Postings.Keyed) iterator.next();
+            bytes += HASH_ENTRY_SIZE + STRING_SIZE + 2L * postings.key.length() + 4 + postings.getMemoryUsage();
+        }
+        return bytes;
+    }
+
+    /**
+     * The indexed header values of a message.
+     */
+    static final class Entry {
+        private String[] from = NO_VALUES;
+        private String[] to = NO_VALUES;
+        private String[] cc = NO_VALUES;
+        private String[] bcc = NO_VALUES;
+        private String[] messageIds = NO_VALUES;
+        private String[] subjectWords = NO_VALUES;
+    }
+}
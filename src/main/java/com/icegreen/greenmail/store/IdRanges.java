@@ -0,0 +1,87 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Operations on message sets passed to the store as pairs of longs, the lowest and the
+ * highest id of each range, so that the store does not depend on how a protocol parses them.
+ * {@link Long#MAX_VALUE} as highest id stands for "*".
+ */
+final class IdRanges {
+
+    private IdRanges() {
+    }
+
+    static boolean includes(long[] ranges, long id) {
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] <= id && id <= ranges[i + 1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sorts a set of ranges by their low value and merges the ranges that overlap or touch,
+     * so that each id is included by at most one range. Empty ranges are dropped.
+     *
+     * @param ranges The ranges, as given. The array is not modified.
+     * @return The ranges including the same ids, ascending and disjoint.
+     */
+    static long[] normalize(long[] ranges) {
+        long[][] sorted = new long[ranges.length / 2][];
+        int count = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] <= ranges[i + 1]) {
+                sorted[count++] = new long[]{ranges[i], ranges[i + 1]};
+            }
+        }
+        Arrays.sort(sorted, 0, count, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                return Long.compare(((long[]) o1)[0], ((long[]) o2)[0]);
+            }
+        });
+
+        long[] merged = new long[count * 2];
+        int mergedCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (mergedCount > 0) {
+                long lastHigh = merged[mergedCount - 1];
+                // Nothing comes after "*"
+                if (lastHigh == Long.MAX_VALUE || sorted[i][0] <= lastHigh + 1) {
+                    merged[mergedCount - 1] = Math.max(lastHigh, sorted[i][1]);
+                    continue;
+                }
+            }
+            merged[mergedCount++] = sorted[i][0];
+            merged[mergedCount++] = sorted[i][1];
+        }
+        return mergedCount == merged.length ? merged : Arrays.copyOf(merged, mergedCount);
+    }
+}
@@ -41,6 +41,16 @@ import jakarta.mail.Message;
 import jakarta.mail.internet.MimeMessage;
 import jakarta.mail.search.SearchTerm;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * A simple in-memory implementation of {@link Store}, used for testing
@@ -51,8 +61,16 @@ import java.util.*;
  */
 public class InMemoryStore
         implements Store, ImapConstants {
+    // Logger.
+    protected final Logger log = LoggerFactory.getLogger(getClass());
     private RootFolder rootMailbox = new RootFolder();
     private static final Flags PERMANENT_FLAGS = new Flags();
+    // Messages waiting for their attributes to be precomputed, beyond which new messages are left to FETCH
+    private static final int PRECOMPUTE_QUEUE_SIZE = 10000;
+    private volatile ThreadPoolExecutor attributeExecutor;
+    // Folders with at least this many messages are searched in parallel
+    private static final int DEFAULT_PARALLEL_SEARCH_THRESHOLD = 10000;
+    private volatile int parallelSearchThreshold = DEFAULT_PARALLEL_SEARCH_THRESHOLD;
 
     static {
         PERMANENT_FLAGS.add(Flags.Flag.ANSWERED);
@@ -63,18 +81,32 @@ public class InMemoryStore
     }
 
     public MailFolder getMailbox(String absoluteMailboxName) {
-        StringTokenizer tokens = new StringTokenizer(absoluteMailboxName, HIERARCHY_DELIMITER);
-
-        // The first token must be "#mail"
-        if (!tokens.hasMoreTokens() ||
-                !tokens.nextToken().equalsIgnoreCase(USER_NAMESPACE)) {
-            return null;
-        }
-
-        HierarchicalFolder parent = rootMailbox;
-        while (parent != null && tokens.hasMoreTokens()) {
-            String childName = tokens.nextToken();
-            parent = parent.getChild(childName);
+        // Walks the name segments like a StringTokenizer would, ignoring empty ones,
+        // without allocating a tokenizer for every lookup.
+        HierarchicalFolder parent = null;
+        int length = absoluteMailboxName.length();
+        int start = 0;
+        while (start < length) {
+            int end = absoluteMailboxName.indexOf(HIERARCHY_DELIMITER_CHAR, start);
+            if (end < 0) {
+                end = length;
+            }
+            if (end > start) {
+                String segment = absoluteMailboxName.substring(start, end);
+                if (parent == null) {
+                    // The first segment must be "#mail"
+                    if (!segment.equalsIgnoreCase(USER_NAMESPACE)) {
+                        return null;
+                    }
+                    parent = rootMailbox;
+                } else {
+                    parent = parent.getChild(segment);
+                    if (parent == null) {
+                        return null;
+                    }
+                }
+            }
+            start = end + 1;
         }
         return parent;
     }
@@ -92,8 +124,8 @@ public class InMemoryStore
         }
         HierarchicalFolder castParent = (HierarchicalFolder) parent;
         HierarchicalFolder child = new HierarchicalFolder(castParent, mailboxName);
-        castParent.getChildren().add(child);
         child.setSelectable(selectable);
+        castParent.addChild(child);
         return child;
     }
 
@@ -109,12 +141,12 @@ public class InMemoryStore
         }
 
         HierarchicalFolder parent = toDelete.getParent();
-        parent.getChildren().remove(toDelete);
+        parent.removeChild(toDelete);
     }
 
     public void renameMailbox(MailFolder existingFolder, String newName) throws FolderException {
         HierarchicalFolder toRename = (HierarchicalFolder) existingFolder;
-        toRename.setName(newName);
+        toRename.rename(newName);
     }
 
     public Collection getChildren(MailFolder parent) {
@@ -132,53 +164,72 @@ public class InMemoryStore
      */
     public Collection listMailboxes(String searchPattern)
             throws FolderException {
-        int starIndex = searchPattern.indexOf('*');
-        int percentIndex = searchPattern.indexOf('%');
-
-        // We only handle wildcard at the end of the search pattern.
-        if ((starIndex > -1 && starIndex < searchPattern.length() - 1) ||
-                (percentIndex > -1 && percentIndex < searchPattern.length() - 1)) {
-            throw new FolderException("WIldcard characters are only handled as the last character of a list argument.");
-        }
-
         ArrayList mailboxes = new ArrayList();
-        if (starIndex != -1 || percentIndex != -1) {
-            int lastDot = searchPattern.lastIndexOf(HIERARCHY_DELIMITER);
-            String parentName;
-            if (lastDot < 0) {
-                parentName = USER_NAMESPACE;
-            } else {
-                parentName = searchPattern.substring(0, lastDot);
-            }
-            String matchPattern = searchPattern.substring(lastDot + 1, searchPattern.length() - 1);
-
-            HierarchicalFolder parent = (HierarchicalFolder) getMailbox(parentName);
-            // If the parent from the search pattern doesn't exist,
-            // return empty.
-            if (parent != null) {
-                Iterator children = parent.getChildren().iterator();
-                while (children.hasNext()) {
-                    HierarchicalFolder child = (HierarchicalFolder) children.next();
-                    if (child.getName().startsWith(matchPattern)) {
-                        mailboxes.add(child);
-
-                        if (starIndex != -1) {
-                            addAllChildren(child, mailboxes);
-                        }
-                    }
-                }
-            }
-
-        } else {
+        if (!MailboxPattern.hasWildcards(searchPattern)) {
             MailFolder folder = getMailbox(searchPattern);
             if (folder != null) {
                 mailboxes.add(folder);
             }
+            return mailboxes;
         }
 
+        // A pattern without hierarchy is relative to the user namespace
+        String qualifiedPattern = searchPattern;
+        if (searchPattern.indexOf(HIERARCHY_DELIMITER_CHAR) < 0) {
+            qualifiedPattern = USER_NAMESPACE + HIERARCHY_DELIMITER_CHAR + searchPattern;
+        }
+        MailboxPattern pattern = new MailboxPattern(qualifiedPattern);
+        long[] states = pattern.advance(pattern.start(), USER_NAMESPACE);
+        if (!pattern.isDead(states)) {
+            addMatchingChildren(rootMailbox, pattern, states, mailboxes);
+        }
         return mailboxes;
     }
 
+    /**
+     * Adds the descendants of a mailbox matching a pattern, parents before their children.
+     * Subtrees no name in can match are skipped, and literal pattern segments are looked up
+     * by name instead of testing every child.
+     *
+     * @param states The pattern states after matching the full name of the mailbox.
+     */
+    private void addMatchingChildren(HierarchicalFolder mailbox, MailboxPattern pattern,
+                                     long[] states, Collection mailboxes) {
+        Collection candidates;
+        Collection literalNames = pattern.literalChildNames(states);
+        if (literalNames == null) {
+            synchronized (mailbox.children) {
+                candidates = new ArrayList(mailbox.children.values());
+            }
+        } else {
+            candidates = new ArrayList(literalNames.size());
+            Iterator names = literalNames.iterator();
+            while (names.hasNext()) {
+                HierarchicalFolder child = mailbox.getChild((String) names.next());
+                if (child != null && !candidates.contains(child)) {
+                    candidates.add(child);
+                }
+            }
+        }
+
+        Iterator iterator = candidates.iterator();
+        while (iterator.hasNext()) {
+            HierarchicalFolder child = (HierarchicalFolder) iterator.next();
+            long[] childStates = pattern.advanceChild(states, child.getName());
+            if (pattern.isDead(childStates)) {
+                continue;
+            }
+            if (pattern.isMatch(childStates)) {
+                mailboxes.add(child);
+            }
+            if (pattern.matchesAllDescendants(childStates)) {
+                addAllChildren(child, mailboxes);
+            } else {
+                addMatchingChildren(child, pattern, childStates, mailboxes);
+            }
+        }
+    }
+
     private void addAllChildren(HierarchicalFolder mailbox, Collection mailboxes) {
         Collection children = mailbox.getChildren();
         Iterator iterator = children.iterator();
@@ -199,29 +250,200 @@ public class InMemoryStore
         }
     }
 
+    /**
+     * Makes the store parse the attributes FETCH needs (ENVELOPE, BODYSTRUCTURE, ...) of new
+     * messages in the background, instead of on the first FETCH of each message. A FETCH of a
+     * message still being parsed waits for it.
+     *
+     * @param threads The number of threads parsing messages, 0 (the default) to parse on FETCH.
+     */
+    public synchronized void setAttributePrecomputeThreads(int threads) {
+        ThreadPoolExecutor executor = attributeExecutor;
+        if (threads <= 0) {
+            attributeExecutor = null;
+            if (executor != null) {
+                executor.shutdown();
+            }
+        } else if (executor == null) {
+            executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue(PRECOMPUTE_QUEUE_SIZE), new ThreadFactory() {
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "GreenMail attribute precompute");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }, new ThreadPoolExecutor.DiscardPolicy());
+            executor.allowCoreThreadTimeOut(true);
+            attributeExecutor = executor;
+        } else if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+    }
+
+    /**
+     * Sets the folder size from which SEARCH evaluates messages in parallel, on the shared
+     * {@link ForkJoinPool#commonPool() fork join pool}. Smaller folders are searched on the
+     * calling thread, where splitting the work costs more than it saves, as are all folders
+     * when the pool has a single thread.
+     *
+     * @param messages The minimum number of messages, 0 or less to always search sequentially.
+     *                 Defaults to {@value #DEFAULT_PARALLEL_SEARCH_THRESHOLD}.
+     */
+    public void setParallelSearchThreshold(int messages) {
+        parallelSearchThreshold = messages;
+    }
+
+    /**
+     * Switches the text index of a folder on or off. The index holds the words of the headers
+     * and text parts of the messages, so that SEARCH BODY, TEXT and HEADER only match the
+     * messages containing the words searched for. It costs parsing each message on append and
+     * the memory reported by {@link #getTextIndexMemoryUsage(MailFolder)}.
+     * <p/>
+     * Switching it on indexes the messages already in the folder before returning, searches
+     * keep matching all the messages until then.
+     */
+    public void setTextIndexed(MailFolder folder, boolean indexed) {
+        ((HierarchicalFolder) folder).setTextIndexed(indexed);
+    }
+
+    /**
+     * Switches the header index of a folder on or off. The index holds the From, To, Cc and Bcc
+     * addresses, the Message-IDs and the subject words of the messages, so that searches for
+     * them only match the messages they may find. It costs parsing the headers of each message
+     * on append and memory, reported along with the text index by
+     * {@link #getTextIndexMemoryUsage(MailFolder)}.
+     * <p/>
+     * Switching it on indexes the messages already in the folder before returning, searches
+     * keep matching all the messages until then.
+     */
+    public void setHeaderIndexed(MailFolder folder, boolean indexed) {
+        ((HierarchicalFolder) folder).setHeaderIndexed(indexed);
+    }
+
+    /**
+     * @return An estimate of the heap used by the text and header indexes of a folder in bytes,
+     *         0 if the folder is not indexed.
+     */
+    public long getTextIndexMemoryUsage(MailFolder folder) {
+        return ((HierarchicalFolder) folder).getTextIndexMemoryUsage();
+    }
+
+    /**
+     * Queues a new message for its attributes to be parsed, if precomputing is enabled.
+     * When the queue is full the message is left to be parsed on FETCH.
+     */
+    void precomputeAttributes(final SimpleStoredMessage message) {
+        ThreadPoolExecutor executor = attributeExecutor;
+        if (executor == null) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        message.getAttributes();
+                    } catch (Exception e) {
+                        // FETCH will report it
+                        log.debug("Could not precompute attributes of message " + message.getUid(), e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Precomputing was just disabled
+        }
+    }
+
+    /**
+     * Creates the stored form of a message being appended to a folder, before the folder
+     * is locked. The UID is set once it has been allocated.
+     */
+    SimpleStoredMessage createStoredMessage(MimeMessage message, Flags flags, Date internalDate)
+            throws FolderException {
+        SimpleStoredMessage storedMessage = new SimpleStoredMessage(message, flags, internalDate, 0);
+        // Serialized once on delivery, for all the reads to come
+        storedMessage.getRawMessage();
+        return storedMessage;
+    }
+
+    /**
+     * Called with the messages removed from a folder by an expunge or by deleting
+     * all of its messages, once the folder is unlocked.
+     */
+    void messagesDiscarded(SimpleStoredMessage[] messages) {
+    }
+
+    /**
+     * @return The date of the Date header, or null if the message has none that can be parsed.
+     */
+    private static Date getSentDate(MimeMessage message) {
+        if (message == null) {
+            return null;
+        }
+        try {
+            return message.getSentDate();
+        } catch (MessagingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The key of a child mailbox name in its parent's index, child names being case insensitive.
+     */
+    private static String childKey(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
     private class HierarchicalFolder implements MailFolder {
-        private Collection children;
+        // Children indexed by case insensitive name, in creation order
+        private final Map children;
         private HierarchicalFolder parent;
 
         protected String name;
+        private volatile String fullName;
         private boolean isSelectable = false;
 
-        private List mailMessages = Collections.synchronizedList(new LinkedList());
+        // Guards the message table, the UID sequence and the counters. Scalar reads such as
+        // message counts are optimistic, lookups take the read lock and changes the write lock.
+        // Changes that notify listeners first take the monitor of the listener list and keep
+        // it until the notifications are sent, so listeners see changes in the order they happened.
+        private final StampedLock lock = new StampedLock();
+        private final MessageTable mailMessages = new MessageTable();
         private long nextUid = 1;
         private long uidValidity;
 
-        private List _mailboxListeners = Collections.synchronizedList(new LinkedList());
+        // Kept up to date on every change, so that SELECT and STATUS don't need to walk the messages.
+        // A hint is an index before which there is no unseen (resp. recent) message.
+        private int unseenCount;
+        private int recentCount;
+        private int firstUnseenHint;
+        private int firstRecentHint;
+
+        private final FlagIndex flagIndex = new FlagIndex(mailMessages);
+        private final RangeIndex internalDates = new RangeIndex();
+        private final RangeIndex sentDates = new RangeIndex();
+        private final RangeIndex sizes = new RangeIndex();
+        // Maintained on every change while switched on, used by searches once it holds every message
+        private TextIndex textIndex;
+        private boolean textIndexReady;
+        private HeaderIndex headerIndex;
+        private boolean headerIndexReady;
+
+        private final List _mailboxListeners = new ArrayList();
 
         public HierarchicalFolder(HierarchicalFolder parent,
                                   String name) {
             this.name = name;
-            this.children = new ArrayList();
+            this.children = new LinkedHashMap();
             this.parent = parent;
             this.uidValidity = System.currentTimeMillis();
         }
 
         public Collection getChildren() {
-            return children;
+            return children.values();
         }
 
         public HierarchicalFolder getParent() {
@@ -229,18 +451,52 @@ public class InMemoryStore
         }
 
         public HierarchicalFolder getChild(String name) {
-            Iterator iterator = children.iterator();
-            while (iterator.hasNext()) {
-                HierarchicalFolder child = (HierarchicalFolder) iterator.next();
-                if (child.getName().equalsIgnoreCase(name)) {
-                    return child;
+            synchronized (children) {
+                return (HierarchicalFolder) children.get(childKey(name));
+            }
+        }
+
+        void addChild(HierarchicalFolder child) throws FolderException {
+            String key = childKey(child.getName());
+            synchronized (children) {
+                if (children.containsKey(key)) {
+                    throw new FolderException("Mailbox already exists.");
                 }
+                children.put(key, child);
             }
-            return null;
         }
 
-        public void setName(String name) {
-            this.name = name;
+        void removeChild(HierarchicalFolder child) {
+            String key = childKey(child.getName());
+            synchronized (children) {
+                if (children.get(key) == child) {
+                    children.remove(key);
+                }
+            }
+        }
+
+        void rename(String newName) throws FolderException {
+            synchronized (parent.children) {
+                String newKey = childKey(newName);
+                Object existing = parent.children.get(newKey);
+                if (existing != null && existing != this) {
+                    throw new FolderException("Mailbox already exists.");
+                }
+                parent.children.remove(childKey(name));
+                name = newName;
+                parent.children.put(newKey, this);
+            }
+            invalidateFullName();
+        }
+
+        private void invalidateFullName() {
+            fullName = null;
+            synchronized (children) {
+                Iterator iterator = children.values().iterator();
+                while (iterator.hasNext()) {
+                    ((HierarchicalFolder) iterator.next()).invalidateFullName();
+                }
+            }
         }
 
         public String getName() {
@@ -248,7 +504,12 @@ public class InMemoryStore
         }
 
         public String getFullName() {
-            return parent.getFullName() + HIERARCHY_DELIMITER_CHAR + name;
+            String result = fullName;
+            if (result == null) {
+                result = parent.getFullName() + HIERARCHY_DELIMITER_CHAR + name;
+                fullName = result;
+            }
+            return result;
         }
 
         public Flags getPermanentFlags() {
@@ -256,7 +517,17 @@ public class InMemoryStore
         }
 
         public int getMessageCount() {
-            return mailMessages.size();
+            long stamp = lock.tryOptimisticRead();
+            int count = mailMessages.size();
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    count = mailMessages.size();
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return count;
         }
 
         public long getUidValidity() {
@@ -264,15 +535,28 @@ public class InMemoryStore
         }
 
         public long getUidNext() {
-            return nextUid;
+            long stamp = lock.tryOptimisticRead();
+            long uidNext = nextUid;
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    uidNext = nextUid;
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return uidNext;
         }
 
         public int getUnseenCount() {
-            int count = 0;
-            for (int i = 0; i < mailMessages.size(); i++) {
-                SimpleStoredMessage message = (SimpleStoredMessage) mailMessages.get(i);
-                if (!message.getFlags().contains(Flags.Flag.SEEN)) {
-                    count++;
+            long stamp = lock.tryOptimisticRead();
+            int count = unseenCount;
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    count = unseenCount;
+                } finally {
+                    lock.unlockRead(stamp);
                 }
             }
             return count;
@@ -284,41 +568,122 @@ public class InMemoryStore
          * the first unseen.
          */
         public int getFirstUnseen() {
-            for (int i = 0; i < mailMessages.size(); i++) {
-                SimpleStoredMessage message = (SimpleStoredMessage) mailMessages.get(i);
-                if (!message.getFlags().contains(Flags.Flag.SEEN)) {
-                    return i + 1;
+            long stamp = lock.readLock();
+            try {
+                if (unseenCount == 0) {
+                    return -1;
+                }
+                // There is an unseen message at or after the hint. The hint is moved forward to it
+                // only under the write lock, when no other reader holds the lock.
+                int index = flagIndex.get(MessageFlags.SEEN_BIT).nextClearBit(firstUnseenHint);
+                if (index != firstUnseenHint) {
+                    long writeStamp = lock.tryConvertToWriteLock(stamp);
+                    if (writeStamp != 0) {
+                        stamp = writeStamp;
+                        firstUnseenHint = index;
+                    }
                 }
+                return index + 1;
+            } finally {
+                lock.unlock(stamp);
             }
-            return -1;
         }
 
         public int getRecentCount(boolean reset) {
-            int count = 0;
-            for (int i = 0; i < mailMessages.size(); i++) {
-                SimpleStoredMessage message = (SimpleStoredMessage) mailMessages.get(i);
-                if (message.getFlags().contains(Flags.Flag.RECENT)) {
-                    count++;
-                    if (reset) {
-                        message.getFlags().remove(Flags.Flag.RECENT);
+            if (!reset) {
+                long stamp = lock.tryOptimisticRead();
+                int count = recentCount;
+                if (!lock.validate(stamp)) {
+                    stamp = lock.readLock();
+                    try {
+                        count = recentCount;
+                    } finally {
+                        lock.unlockRead(stamp);
                     }
                 }
+                return count;
+            }
+
+            long stamp = lock.writeLock();
+            try {
+                int count = recentCount;
+                for (int i = firstRecentHint; count > 0 && i < mailMessages.size(); i++) {
+                    SimpleStoredMessage message = mailMessages.get(i);
+                    message.setFlagBits(message.getFlagBits() & ~MessageFlags.RECENT_BIT);
+                }
+                flagIndex.get(MessageFlags.RECENT_BIT).clear();
+                recentCount = 0;
+                firstRecentHint = mailMessages.size();
+                return count;
+            } finally {
+                lock.unlockWrite(stamp);
             }
-            return count;
         }
 
-        public int getMsn(long uid) throws FolderException {
-            for (int i = 0; i < mailMessages.size(); i++) {
-                SimpleStoredMessage message = (SimpleStoredMessage) mailMessages.get(i);
-                if (message.getUid() == uid) {
-                    return i + 1;
+        /**
+         * Updates the counters after the flags of the message at the given index changed.
+         * Must be called holding the lock on the message table.
+         */
+        private void flagsChanged(int index, int oldBits, int newBits) {
+            boolean wasSeen = (oldBits & MessageFlags.SEEN_BIT) != 0;
+            boolean seen = (newBits & MessageFlags.SEEN_BIT) != 0;
+            if (wasSeen != seen) {
+                unseenCount += seen ? -1 : 1;
+                if (!seen && index < firstUnseenHint) {
+                    firstUnseenHint = index;
+                }
+            }
+            boolean wasRecent = (oldBits & MessageFlags.RECENT_BIT) != 0;
+            boolean recent = (newBits & MessageFlags.RECENT_BIT) != 0;
+            if (wasRecent != recent) {
+                recentCount += recent ? 1 : -1;
+                if (recent && index < firstRecentHint) {
+                    firstRecentHint = index;
                 }
             }
-            throw new FolderException("No such message.");
+        }
+
+        /**
+         * Updates the counters after the message at the given index has been removed.
+         * Must be called holding the lock on the message table.
+         */
+        private void messageRemoved(int index, SimpleStoredMessage message) {
+            if (headerIndex != null) {
+                headerIndex.remove(message.getUid());
+            }
+            if (textIndex != null) {
+                textIndex.remove(message.getUid());
+            }
+            if (!message.hasFlags(MessageFlags.SEEN_BIT)) {
+                unseenCount--;
+            }
+            if (message.hasFlags(MessageFlags.RECENT_BIT)) {
+                recentCount--;
+            }
+            if (index < firstUnseenHint) {
+                firstUnseenHint--;
+            }
+            if (index < firstRecentHint) {
+                firstRecentHint--;
+            }
+        }
+
+        public int getMsn(long uid) throws FolderException {
+            int index;
+            long stamp = lock.readLock();
+            try {
+                index = mailMessages.indexOf(uid);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            if (index < 0) {
+                throw new FolderException("No such message.");
+            }
+            return index + 1;
         }
 
         public void signalDeletion() {
-            // Notify all the listeners of the new message
+            // Notify all the listeners of the deletion
             synchronized (_mailboxListeners) {
                 for (int j = 0; j < _mailboxListeners.size(); j++) {
                     FolderListener listener = (FolderListener) _mailboxListeners.get(j);
@@ -330,26 +695,43 @@ public class InMemoryStore
 
         public List getMessages(MsgRangeFilter range) {
             List ret = new ArrayList();
-            for (int i = 0; i < mailMessages.size(); i++) {
-                if (range.includes(i+1)) {
-                    ret.add(mailMessages.get(i));
+            long stamp = lock.readLock();
+            try {
+                for (int i = 0; i < mailMessages.size(); i++) {
+                    if (range.includes(i+1)) {
+                        ret.add(mailMessages.get(i));
+                    }
                 }
+            } finally {
+                lock.unlockRead(stamp);
             }
 
             return ret;
         }
 
         public List getMessages() {
-            return mailMessages;
+            long stamp = lock.readLock();
+            try {
+                return mailMessages.toList();
+            } finally {
+                lock.unlockRead(stamp);
+            }
         }
 
         public List getNonDeletedMessages() {
             List ret = new ArrayList();
-            for (int i = 0; i < mailMessages.size(); i++) {
-                SimpleStoredMessage message = (SimpleStoredMessage) mailMessages.get(i);
-                if (!message.getFlags().contains(Flags.Flag.DELETED)) {
-                    ret.add(message);
+            long stamp = lock.readLock();
+            try {
+                MessageBitmap deleted = flagIndex.get(MessageFlags.DELETED_BIT);
+                if (deleted.isEmpty()) {
+                    return mailMessages.toList();
                 }
+                int size = mailMessages.size();
+                for (int i = deleted.nextClearBit(0); i < size; i = deleted.nextClearBit(i + 1)) {
+                    ret.add(mailMessages.get(i));
+                }
+            } finally {
+                lock.unlockRead(stamp);
             }
             return ret;
         }
@@ -368,75 +750,308 @@ public class InMemoryStore
 
         public long appendMessage(MimeMessage message,
                                   Flags flags,
-                                  Date internalDate) {
-            long uid = nextUid;
-            nextUid++;
-
-//            flags.setRecent(true);
-            SimpleStoredMessage storedMessage = new SimpleStoredMessage(message, flags,
-                    internalDate, uid);
-            storedMessage.getFlags().add(Flags.Flag.RECENT);
-
-            mailMessages.add(storedMessage);
-            int newMsn = mailMessages.size();
-
-            // Notify all the listeners of the new message
+                                  Date internalDate) throws FolderException {
+            // Created before locking, as a store may write the message somewhere
+            SimpleStoredMessage storedMessage = createStoredMessage(message, flags, internalDate);
+            HeaderIndex.Entry headers = isHeaderIndexed() ? HeaderIndex.extract(message) : null;
+            Date sentDate = getSentDate(message);
+            int size;
+            try {
+                size = storedMessage.getSize();
+            } catch (FolderException e) {
+                // Left to be matched when searched
+                size = -1;
+            }
+            String[] words = isTextIndexed() ? TextIndex.tokenize(message) : null;
+            long uid;
             synchronized (_mailboxListeners) {
+                int newMsn;
+                long stamp = lock.writeLock();
+                try {
+                    // UIDs are allocated under the write lock so that they are unique and appended in ascending order
+                    uid = nextUid;
+                    nextUid++;
+
+//                    flags.setRecent(true);
+                    storedMessage.setUid(uid);
+                    storedMessage.setFlagBits(storedMessage.getFlagBits() | MessageFlags.RECENT_BIT);
+
+                    mailMessages.add(storedMessage);
+                    if (headerIndex != null) {
+                        headerIndex.add(uid, headers != null ? headers : HeaderIndex.extract(message));
+                    }
+                    if (storedMessage.getInternalDate() != null) {
+                        internalDates.add(uid, storedMessage.getInternalDate().getTime());
+                    }
+                    if (sentDate != null) {
+                        sentDates.add(uid, sentDate.getTime());
+                    }
+                    if (size >= 0) {
+                        sizes.add(uid, size);
+                    } else {
+                        sizes.addUnknown(uid);
+                    }
+                    if (textIndex != null) {
+                        // Only parsed under the lock if indexing was switched on meanwhile
+                        textIndex.add(uid, words != null ? words : TextIndex.tokenize(message));
+                    }
+                    newMsn = mailMessages.size();
+                    flagIndex.messageAdded(newMsn - 1, storedMessage);
+                    // A new message counts as a change from seen and not recent
+                    flagsChanged(newMsn - 1, MessageFlags.SEEN_BIT, storedMessage.getFlagBits());
+                } finally {
+                    lock.unlockWrite(stamp);
+                }
+
+                // Notify all the listeners of the new message
                 for (int j = 0; j < _mailboxListeners.size(); j++) {
                     FolderListener listener = (FolderListener) _mailboxListeners.get(j);
                     listener.added(newMsn);
                 }
             }
-
+            if (message != null) {
+                precomputeAttributes(storedMessage);
+            }
             return uid;
         }
 
         public void setFlags(Flags flags, boolean value, long uid, FolderListener silentListener, boolean addUid) throws FolderException {
-            int msn = getMsn(uid);
-            SimpleStoredMessage message = (SimpleStoredMessage) mailMessages.get(msn - 1);
+            changeFlags(flags, value ? 1 : -1, new long[]{uid}, silentListener, addUid);
+        }
 
-            if (value) {
-                message.getFlags().add(flags);
-            } else {
-                message.getFlags().remove(flags);
+        public void replaceFlags(Flags flags, long uid, FolderListener silentListener, boolean addUid) throws FolderException {
+            changeFlags(flags, 0, new long[]{uid}, silentListener, addUid);
+        }
+
+        public void setFlags(Flags flags, boolean value, long[] uids, FolderListener silentListener, boolean addUid) throws FolderException {
+            changeFlags(flags, value ? 1 : -1, uids, silentListener, addUid);
+        }
+
+        public void replaceFlags(Flags flags, long[] uids, FolderListener silentListener, boolean addUid) throws FolderException {
+            changeFlags(flags, 0, uids, silentListener, addUid);
+        }
+
+        /**
+         * Applies a flag change to messages in one pass under the write lock, then notifies
+         * listeners with a single batch. No message is changed if one of them does not exist.
+         *
+         * @param sign Greater than zero to add the flags, less than zero to remove them,
+         *             zero to replace the flags of the messages.
+         */
+        private void changeFlags(Flags flags, int sign, long[] uids, FolderListener silentListener, boolean addUid)
+                throws FolderException {
+            if (uids.length == 0) {
+                return;
             }
+            synchronized (_mailboxListeners) {
+                int[] msns = new int[uids.length];
+                SimpleStoredMessage[] updated = new SimpleStoredMessage[uids.length];
+                long stamp = lock.writeLock();
+                try {
+                    for (int i = 0; i < uids.length; i++) {
+                        int index = mailMessages.indexOf(uids[i]);
+                        if (index < 0) {
+                            throw new FolderException("No such message.");
+                        }
+                        // Resolved to indexes first, then turned into MSNs as the messages are changed
+                        msns[i] = index;
+                    }
+                    for (int i = 0; i < uids.length; i++) {
+                        int index = msns[i];
+                        SimpleStoredMessage message = mailMessages.get(index);
+                        int oldBits = message.getFlagBits();
+                        String[] oldKeywords = message.getUserFlags();
+                        message.changeFlags(flags, sign);
+                        flagsChanged(index, oldBits, message.getFlagBits());
+                        flagIndex.flagsChanged(index, oldBits, message.getFlagBits());
+                        if (message.getUserFlags() != oldKeywords) {
+                            flagIndex.keywordsChanged(index, oldKeywords, message.getUserFlags());
+                        }
+                        msns[i] = index + 1;
+                        updated[i] = message;
+                    }
+                } finally {
+                    lock.unlockWrite(stamp);
+                }
 
-            Long uidNotification = null;
-            if (addUid) {
-                uidNotification = new Long(uid);
+                notifyFlagUpdate(msns, updated, addUid ? uids : null, silentListener);
             }
-            notifyFlagUpdate(msn, message.getFlags(), uidNotification, silentListener);
         }
 
-        public void replaceFlags(Flags flags, long uid, FolderListener silentListener, boolean addUid) throws FolderException {
-            int msn = getMsn(uid);
-            SimpleStoredMessage message = (SimpleStoredMessage) mailMessages.get(msn - 1);
-            message.getFlags().remove(MessageFlags.ALL_FLAGS);
-            message.getFlags().add(flags);
+        /**
+         * Must be called holding the monitor of the listener list.
+         */
+        private void notifyFlagUpdate(int[] msns, SimpleStoredMessage[] messages, long[] uids,
+                                      FolderListener silentListener) {
+            // Listeners are handed flags only when there are listeners to notify
+            Flags[] flags = null;
+            for (int i = 0; i < _mailboxListeners.size(); i++) {
+                FolderListener listener = (FolderListener) _mailboxListeners.get(i);
+
+                if (listener == silentListener) {
+                    continue;
+                }
 
-            Long uidNotification = null;
-            if (addUid) {
-                uidNotification = new Long(uid);
+                if (flags == null) {
+                    flags = new Flags[messages.length];
+                    for (int j = 0; j < messages.length; j++) {
+                        flags[j] = messages[j].getFlags();
+                    }
+                }
+                listener.flagsUpdated(msns, flags, uids);
             }
-            notifyFlagUpdate(msn, message.getFlags(), uidNotification, silentListener);
         }
 
-        private void notifyFlagUpdate(int msn, Flags flags, Long uidNotification, FolderListener silentListener) {
-            synchronized (_mailboxListeners) {
-                for (int i = 0; i < _mailboxListeners.size(); i++) {
-                    FolderListener listener = (FolderListener) _mailboxListeners.get(i);
+        private boolean isTextIndexed() {
+            long stamp = lock.readLock();
+            try {
+                return textIndex != null;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
 
-                    if (listener == silentListener) {
-                        continue;
+        void setTextIndexed(boolean indexed) {
+            TextIndex index;
+            List messages;
+            long stamp = lock.writeLock();
+            try {
+                if (!indexed || textIndex != null) {
+                    if (!indexed) {
+                        textIndex = null;
+                        textIndexReady = false;
                     }
+                    return;
+                }
+                index = new TextIndex();
+                textIndex = index;
+                textIndexReady = false;
+                messages = mailMessages.toList();
+            } finally {
+                lock.unlockWrite(stamp);
+            }
 
-                    listener.flagsUpdated(msn, flags, uidNotification);
+            // Parsed without the lock, messages appended meanwhile index themselves
+            String[][] words = new String[messages.size()][];
+            for (int i = 0; i < words.length; i++) {
+                try {
+                    words[i] = TextIndex.tokenize(((SimpleStoredMessage) messages.get(i)).loadMimeMessage());
+                } catch (FolderException e) {
+                    // Matched one by one when searched
+                    words[i] = TextIndex.UNPARSED;
                 }
             }
+
+            stamp = lock.writeLock();
+            try {
+                if (textIndex != index) {
+                    // Switched off meanwhile
+                    return;
+                }
+                for (int i = 0; i < words.length; i++) {
+                    long uid = ((SimpleStoredMessage) messages.get(i)).getUid();
+                    if (mailMessages.indexOf(uid) >= 0) {
+                        index.add(uid, words[i]);
+                    }
+                }
+                textIndexReady = true;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        private boolean isHeaderIndexed() {
+            long stamp = lock.readLock();
+            try {
+                return headerIndex != null;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        void setHeaderIndexed(boolean indexed) {
+            HeaderIndex index;
+            List messages;
+            long stamp = lock.writeLock();
+            try {
+                if (!indexed || headerIndex != null) {
+                    if (!indexed) {
+                        headerIndex = null;
+                        headerIndexReady = false;
+                    }
+                    return;
+                }
+                index = new HeaderIndex();
+                headerIndex = index;
+                headerIndexReady = false;
+                messages = mailMessages.toList();
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+
+            // Parsed without the lock, messages appended meanwhile index themselves
+            HeaderIndex.Entry[] entries = new HeaderIndex.Entry[messages.size()];
+            for (int i = 0; i < entries.length; i++) {
+                try {
+                    entries[i] = HeaderIndex.extract(((SimpleStoredMessage) messages.get(i)).loadMimeMessage());
+                } catch (FolderException e) {
+                    // Matched one by one when searched
+                    entries[i] = HeaderIndex.UNPARSED;
+                }
+            }
+
+            stamp = lock.writeLock();
+            try {
+                if (headerIndex != index) {
+                    // Switched off meanwhile
+                    return;
+                }
+                for (int i = 0; i < entries.length; i++) {
+                    long uid = ((SimpleStoredMessage) messages.get(i)).getUid();
+                    if (mailMessages.indexOf(uid) >= 0) {
+                        index.add(uid, entries[i]);
+                    }
+                }
+                headerIndexReady = true;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        long getTextIndexMemoryUsage() {
+            long stamp = lock.readLock();
+            try {
+                return (textIndex == null ? 0 : textIndex.getMemoryUsage())
+                        + (headerIndex == null ? 0 : headerIndex.getMemoryUsage());
+            } finally {
+                lock.unlockRead(stamp);
+            }
         }
 
         public void deleteAllMessages() {
-            mailMessages.clear();
+            List deleted;
+            long stamp = lock.writeLock();
+            try {
+                deleted = mailMessages.toList();
+                mailMessages.clear();
+                flagIndex.clear();
+                if (headerIndex != null) {
+                    headerIndex.clear();
+                }
+                internalDates.clear();
+                sentDates.clear();
+                sizes.clear();
+                if (textIndex != null) {
+                    textIndex.clear();
+                }
+                unseenCount = 0;
+                recentCount = 0;
+                firstUnseenHint = 0;
+                firstRecentHint = 0;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            messagesDiscarded((SimpleStoredMessage[]) deleted.toArray(new SimpleStoredMessage[deleted.size()]));
         }
 
         public void store(MovingMessage mail) throws Exception {
@@ -451,35 +1066,101 @@ public class InMemoryStore
         }
 
         public SimpleStoredMessage getMessage(long uid) {
-            for (int i = 0; i < mailMessages.size(); i++) {
-                SimpleStoredMessage message = (SimpleStoredMessage) mailMessages.get(i);
-                if (message.getUid() == uid) {
-                    return message;
-                }
+            long stamp = lock.readLock();
+            try {
+                int index = mailMessages.indexOf(uid);
+                return index < 0 ? null : mailMessages.get(index);
+            } finally {
+                lock.unlockRead(stamp);
             }
-            return null;
         }
 
         public long[] getMessageUids() {
-            long[] uids = new long[mailMessages.size()];
-            for (int i = 0; i < mailMessages.size(); i++) {
-                SimpleStoredMessage message = (SimpleStoredMessage) mailMessages.get(i);
-                uids[i] = message.getUid();
+            long stamp = lock.readLock();
+            try {
+                return mailMessages.getUids();
+            } finally {
+                lock.unlockRead(stamp);
             }
-            return uids;
         }
 
-        private void deleteMessage(int msn) {
-            mailMessages.remove(msn - 1); //NOTE BY WAEL: is this really correct, the number of items in the iterating list is changed see expunge()
+        public long[] getMessageUids(long[] idRanges, boolean useUids) {
+            long[] ranges = IdRanges.normalize(idRanges);
+            long stamp = lock.readLock();
+            try {
+                int size = mailMessages.size();
+                long[] selected = new long[Math.min(size, 16)];
+                int count = 0;
+                for (int i = 0; i < ranges.length; i += 2) {
+                    // Each range maps to a run of consecutive table indexes
+                    long low = ranges[i];
+                    long high = ranges[i + 1];
+                    int from;
+                    int to;
+                    if (useUids) {
+                        from = mailMessages.indexOfFirst(low);
+                        to = high == Long.MAX_VALUE ? size : mailMessages.indexOfFirst(high + 1);
+                    } else {
+                        from = (int) Math.min(Math.max(low - 1, 0), size);
+                        to = (int) Math.min(high, size);
+                    }
+                    for (int index = from; index < to; index++) {
+                        if (count == selected.length) {
+                            selected = Arrays.copyOf(selected, Math.min(size, count * 2));
+                        }
+                        selected[count++] = mailMessages.getUid(index);
+                    }
+                }
+                return count == selected.length ? selected : Arrays.copyOf(selected, count);
+            } finally {
+                lock.unlockRead(stamp);
+            }
         }
 
-        public long[] search(SearchTerm searchTerm) {
+        public long[] search(SearchTerm searchTerm) throws FolderException {
             ArrayList matchedMessages = new ArrayList();
-
-            for (int i = 0; i < mailMessages.size(); i++) {
-                SimpleStoredMessage message = (SimpleStoredMessage) mailMessages.get(i);
-                if (searchTerm.match(message.getMimeMessage())) {
-                    matchedMessages.add(message);
+            List messages;
+            SearchPlan plan;
+            long stamp = lock.readLock();
+            try {
+                // The indexes must be looked up along with the messages they describe
+                plan = SearchPlan.compile(searchTerm, textIndexReady ? textIndex : null,
+                        headerIndexReady ? headerIndex : null, flagIndex,
+                        internalDates, sentDates, sizes);
+                long[] matches = plan.getMatches();
+                if (matches != null) {
+                    return matches;
+                }
+                long[] candidates = plan.getCandidates();
+                if (candidates != null) {
+                    messages = new ArrayList(candidates.length);
+                    for (int i = 0; i < candidates.length; i++) {
+                        int index = mailMessages.indexOf(candidates[i]);
+                        if (index >= 0) {
+                            messages.add(mailMessages.get(index));
+                        }
+                    }
+                } else {
+                    messages = mailMessages.toList();
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            int threshold = parallelSearchThreshold;
+            if (threshold > 0 && messages.size() >= threshold && ForkJoinPool.getCommonPoolParallelism() > 1) {
+                // Messages are in UID order, so are the results
+                boolean[] matched = plan.matchesParallel(messages, ForkJoinPool.commonPool());
+                for (int i = 0; i < matched.length; i++) {
+                    if (matched[i]) {
+                        matchedMessages.add(messages.get(i));
+                    }
+                }
+            } else {
+                for (int i = 0; i < messages.size(); i++) {
+                    SimpleStoredMessage message = (SimpleStoredMessage) messages.get(i);
+                    if (plan.matches(message)) {
+                        matchedMessages.add(message);
+                    }
                 }
             }
 
@@ -497,7 +1178,7 @@ public class InMemoryStore
             SimpleStoredMessage originalMessage = getMessage(uid);
             MimeMessage newMime = null;
             try {
-                newMime = new MimeMessage(originalMessage.getMimeMessage());
+                newMime = new MimeMessage(originalMessage.loadMimeMessage());
             } catch (MessagingException e) {
                 // TODO chain.
                 throw new FolderException("Messaging exception: " + e.getMessage());
@@ -510,37 +1191,59 @@ public class InMemoryStore
         }
 
         public void expunge(long uid) throws FolderException {
-            for (int i = 0; i < mailMessages.size(); i++) {
-                SimpleStoredMessage message = (SimpleStoredMessage) mailMessages.get(i);
-                if (message.getUid() == uid) {
-                    if (message.getFlags().contains(Flags.Flag.DELETED))
-                    {
-                        expungeMessage(i + 1);
-                    }
-                    break;
-                }
-            }
+            expunge(new long[] {uid, uid});
         }
 
         public void expunge() throws FolderException {
-            for (int i = 0; i < mailMessages.size(); i++) {
-                SimpleStoredMessage message = (SimpleStoredMessage) mailMessages.get(i);
-                if (message.getFlags().contains(Flags.Flag.DELETED)) {
-                    expungeMessage(i + 1);
-                }
-            }
+            expunge((long[]) null);
         }
 
-        private void expungeMessage(int msn) {
-            // Notify all the listeners of the pending delete
+        public void expunge(long[] uidRanges) throws FolderException {
+            SimpleStoredMessage[] expunged;
             synchronized (_mailboxListeners) {
-                deleteMessage(msn);
+                int[] msns;
+                long stamp = lock.writeLock();
+                try {
+                    MessageBitmap deleted = flagIndex.get(MessageFlags.DELETED_BIT);
+                    int[] indexes = new int[deleted.cardinality()];
+                    int count = 0;
+                    for (int i = deleted.nextSetBit(0); i >= 0; i = deleted.nextSetBit(i + 1)) {
+                        if (uidRanges == null || IdRanges.includes(uidRanges, mailMessages.getUid(i))) {
+                            indexes[count++] = i;
+                        }
+                    }
+                    if (count == 0) {
+                        return;
+                    }
+
+                    // Each expunge renumbers the messages after it, so the nth removed message
+                    // is reported with its MSN minus the n-1 messages removed before it.
+                    msns = new int[count];
+                    expunged = new SimpleStoredMessage[count];
+                    long[] uids = new long[count];
+                    for (int i = 0; i < count; i++) {
+                        int index = indexes[i] - i;
+                        expunged[i] = mailMessages.get(indexes[i]);
+                        uids[i] = expunged[i].getUid();
+                        messageRemoved(index, expunged[i]);
+                        msns[i] = index + 1;
+                    }
+                    mailMessages.removeAll(Arrays.copyOf(indexes, count));
+                    flagIndex.removeAll(indexes, count);
+                    // The messages are anywhere in the ordered indexes, each is compacted in one pass
+                    internalDates.removeAll(uids);
+                    sentDates.removeAll(uids);
+                    sizes.removeAll(uids);
+                } finally {
+                    lock.unlockWrite(stamp);
+                }
+
                 for (int j = 0; j < _mailboxListeners.size(); j++) {
                     FolderListener expungeListener = (FolderListener) _mailboxListeners.get(j);
-                    expungeListener.expunged(msn);
+                    expungeListener.expunged(msns);
                 }
             }
-
+            messagesDiscarded(expunged);
         }
 
         public void addListener(FolderListener listener) {
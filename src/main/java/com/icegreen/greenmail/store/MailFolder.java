@@ -42,6 +42,7 @@ import jakarta.mail.Flags;
 import jakarta.mail.Message;
 import jakarta.mail.internet.MimeMessage;
 import jakarta.mail.search.SearchTerm;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
@@ -86,6 +87,21 @@ public interface MailFolder {
 
     void expunge(long uid) throws FolderException;
 
+    /**
+     * Expunges, in a single operation, all messages flagged as deleted with a UID in the given set.
+     * Listeners are notified with one batch of MSNs, in the order the removals happened.
+     *
+     * @param uidRanges The UID set, as pairs of the lowest and highest UID of each range.
+     */
+    default void expunge(long[] uidRanges) throws FolderException {
+        long[] uids = getMessageUids();
+        for (int i = 0; i < uids.length; i++) {
+            if (IdRanges.includes(uidRanges, uids[i])) {
+                expunge(uids[i]);
+            }
+        }
+    }
+
     void addListener(FolderListener listener);
 
     void removeListener(FolderListener listener);
@@ -97,7 +113,27 @@ public interface MailFolder {
 
     long[] getMessageUids();
 
-    long[] search(SearchTerm searchTerm);
+    /**
+     * Looks up the messages selected by a message set, visiting only the messages in the set.
+     *
+     * @param idRanges The message set, as pairs of the lowest and highest id of each range,
+     *                 with {@link Long#MAX_VALUE} standing for "*".
+     * @param useUids  Whether the set holds UIDs, as for the UID commands, or MSNs.
+     * @return The UIDs of the selected messages, in ascending order.
+     */
+    default long[] getMessageUids(long[] idRanges, boolean useUids) {
+        long[] uids = getMessageUids();
+        long[] selected = new long[uids.length];
+        int count = 0;
+        for (int i = 0; i < uids.length; i++) {
+            if (IdRanges.includes(idRanges, useUids ? uids[i] : i + 1)) {
+                selected[count++] = uids[i];
+            }
+        }
+        return count == selected.length ? selected : Arrays.copyOf(selected, count);
+    }
+
+    long[] search(SearchTerm searchTerm) throws FolderException;
 
     long copyMessage(long uid, MailFolder toFolder)
             throws FolderException;
@@ -106,6 +142,32 @@ public interface MailFolder {
 
     void replaceFlags(Flags flags, long uid, FolderListener silentListener, boolean addUid) throws FolderException;
 
+    /**
+     * Adds or removes flags on several messages in a single operation. Listeners are notified
+     * with one batch of flag updates.
+     *
+     * @param uids The UIDs of the messages, all of which must exist.
+     */
+    default void setFlags(Flags flags, boolean value, long[] uids, FolderListener silentListener, boolean addUid)
+            throws FolderException {
+        for (int i = 0; i < uids.length; i++) {
+            setFlags(flags, value, uids[i], silentListener, addUid);
+        }
+    }
+
+    /**
+     * Replaces the flags of several messages in a single operation. Listeners are notified
+     * with one batch of flag updates.
+     *
+     * @param uids The UIDs of the messages, all of which must exist.
+     */
+    default void replaceFlags(Flags flags, long[] uids, FolderListener silentListener, boolean addUid)
+            throws FolderException {
+        for (int i = 0; i < uids.length; i++) {
+            replaceFlags(flags, uids[i], silentListener, addUid);
+        }
+    }
+
     int getMsn(long uid) throws FolderException;
 
     void signalDeletion();
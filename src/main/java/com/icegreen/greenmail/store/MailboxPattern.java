@@ -0,0 +1,237 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+import com.icegreen.greenmail.imap.ImapConstants;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A LIST mailbox pattern (RFC 3501, section 6.3.8), matched incrementally against the
+ * segments of a mailbox name while walking down the mailbox hierarchy.
+ * <pre>
+ *   '*' - matches any number of characters, including the hierarchy delimiter
+ *   '%' - matches any number of characters, but not the hierarchy delimiter
+ * </pre>
+ * Wildcards may appear anywhere in the pattern. Matching is case insensitive, like mailbox lookups.
+ * <p/>
+ * The pattern is run as a non deterministic automaton whose states are positions in the pattern,
+ * kept as a bit set in a <code>long[]</code> (a single word for patterns shorter than 64 characters).
+ * The states are the result of matching a name prefix. No state left means no name starting with
+ * that prefix can match, so the whole subtree can be skipped.
+ */
+final class MailboxPattern implements ImapConstants {
+    private final char[] pattern;
+    private final int words;
+    // For each position, the last position reachable by letting wildcards match nothing
+    private final int[] closureEnd;
+    // The first position from which only '*' are left in the pattern
+    private final int anyFrom;
+
+    MailboxPattern(String pattern) {
+        int length = pattern.length();
+        this.pattern = new char[length];
+        for (int i = 0; i < length; i++) {
+            this.pattern[i] = Character.toLowerCase(pattern.charAt(i));
+        }
+        words = (length >> 6) + 1;
+
+        closureEnd = new int[length + 1];
+        closureEnd[length] = length;
+        for (int p = length - 1; p >= 0; p--) {
+            closureEnd[p] = isWildcard(this.pattern[p]) ? closureEnd[p + 1] : p;
+        }
+
+        int p = length;
+        while (p > 0 && this.pattern[p - 1] == '*') {
+            p--;
+        }
+        anyFrom = p < length ? p : length + 1;
+    }
+
+    static boolean hasWildcards(String pattern) {
+        return pattern.indexOf('*') >= 0 || pattern.indexOf('%') >= 0;
+    }
+
+    /**
+     * @return The states before anything has been matched.
+     */
+    long[] start() {
+        long[] states = new long[words];
+        enter(states, 0);
+        return states;
+    }
+
+    /**
+     * Matches more characters of a name.
+     *
+     * @param states The states after matching the name so far, not modified.
+     * @param text   The next characters of the name.
+     * @return The states after also matching the text, no state if no name with this prefix can match.
+     */
+    long[] advance(long[] states, CharSequence text) {
+        return advance(states, -1, text);
+    }
+
+    /**
+     * @return The states after matching the hierarchy delimiter and then a child name.
+     */
+    long[] advanceChild(long[] states, String childName) {
+        return advance(states, HIERARCHY_DELIMITER_CHAR, childName);
+    }
+
+    private long[] advance(long[] states, int first, CharSequence text) {
+        long[] current = states;
+        long[] next = new long[words];
+        long[] spare = null;
+        for (int i = first < 0 ? 0 : -1; i < text.length(); i++) {
+            char c = i < 0 ? (char) first : Character.toLowerCase(text.charAt(i));
+            if (!step(current, c, next)) {
+                return next;
+            }
+            if (spare == null) {
+                spare = new long[words];
+            } else {
+                spare = current;
+            }
+            current = next;
+            next = spare;
+        }
+        return current == states ? states.clone() : current;
+    }
+
+    /**
+     * @return <code>true</code> if no name continuing the name matched so far can match.
+     */
+    boolean isDead(long[] states) {
+        for (int w = 0; w < states.length; w++) {
+            if (states[w] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return <code>true</code> if the name matched so far matches the whole pattern.
+     */
+    boolean isMatch(long[] states) {
+        return isSet(states, pattern.length);
+    }
+
+    /**
+     * @return <code>true</code> if every name continuing the name matched so far matches,
+     *         that is if the rest of the pattern is only made of '*'.
+     */
+    boolean matchesAllDescendants(long[] states) {
+        for (int p = anyFrom; p <= pattern.length; p++) {
+            if (isSet(states, p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lists the only child names that can continue a match, which is possible when the pattern
+     * continues with literal segments only. This lets a caller look the children up by name
+     * instead of testing every child.
+     *
+     * @return The candidate child names, or <code>null</code> if any child might match.
+     */
+    Collection<String> literalChildNames(long[] states) {
+        long[] afterDelimiter = new long[words];
+        step(states, HIERARCHY_DELIMITER_CHAR, afterDelimiter);
+        List<String> names = new ArrayList<String>();
+        for (int p = 0; p < pattern.length; p++) {
+            if (!isSet(afterDelimiter, p)) {
+                continue;
+            }
+            int end = p;
+            while (end < pattern.length && pattern[end] != HIERARCHY_DELIMITER_CHAR) {
+                if (isWildcard(pattern[end])) {
+                    return null;
+                }
+                end++;
+            }
+            if (end > p) {
+                names.add(new String(pattern, p, end - p));
+            }
+            // An empty child name never matches
+        }
+        return names;
+    }
+
+    /**
+     * Computes the states after matching one more character into <code>next</code>,
+     * leaving <code>states</code> unchanged.
+     *
+     * @return <code>false</code> if no state is left.
+     */
+    private boolean step(long[] states, char c, long[] next) {
+        boolean alive = false;
+        for (int w = 0; w < words; w++) {
+            next[w] = 0;
+        }
+        for (int w = 0; w < words; w++) {
+            long word = states[w];
+            while (word != 0) {
+                int p = (w << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                if (p == pattern.length) {
+                    continue;
+                }
+                char expected = pattern[p];
+                if (expected == '*' || (expected == '%' && c != HIERARCHY_DELIMITER_CHAR)) {
+                    enter(next, p);
+                    alive = true;
+                } else if (expected == c) {
+                    enter(next, p + 1);
+                    alive = true;
+                }
+            }
+        }
+        return alive;
+    }
+
+    /**
+     * Sets a state, and the states reachable from it by letting wildcards match nothing.
+     */
+    private void enter(long[] states, int p) {
+        for (int q = p; q <= closureEnd[p]; q++) {
+            states[q >> 6] |= 1L << q;
+        }
+    }
+
+    private static boolean isSet(long[] states, int p) {
+        return (states[p >> 6] & (1L << p)) != 0;
+    }
+
+    private static boolean isWildcard(char c) {
+        return c == '*' || c == '%';
+    }
+}
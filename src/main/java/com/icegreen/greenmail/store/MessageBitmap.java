@@ -0,0 +1,196 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import java.util.Arrays;
+
+/**
+ * A set of message positions in the {@link MessageTable} of a folder, one bit per message.
+ * <p/>
+ * Only the words up to the last set bit are allocated, so the bitmaps of flags few messages
+ * have, such as \Deleted or most keywords, stay small whatever the size of the folder.
+ * <p/>
+ * Not thread safe, guarded by the lock of the folder.
+ */
+final class MessageBitmap {
+    private static final long[] NO_WORDS = new long[0];
+
+    private long[] words = NO_WORDS;
+
+    boolean get(int index) {
+        int word = index >>> 6;
+        return word < words.length && (words[word] & (1L << index)) != 0;
+    }
+
+    void set(int index) {
+        int word = index >>> 6;
+        if (word >= words.length) {
+            words = Arrays.copyOf(words, Math.max(word + 1, 2 * words.length));
+        }
+        words[word] |= 1L << index;
+    }
+
+    /**
+     * Sets the bits from the first index included to the second one excluded.
+     */
+    void set(int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        set(to - 1);
+        int first = from >>> 6;
+        int last = (to - 1) >>> 6;
+        for (int word = first; word <= last; word++) {
+            long bits = -1L;
+            if (word == first) {
+                bits &= -1L << from;
+            }
+            if (word == last) {
+                bits &= -1L >>> (63 - ((to - 1) & 63));
+            }
+            words[word] |= bits;
+        }
+    }
+
+    void clear(int index) {
+        int word = index >>> 6;
+        if (word < words.length) {
+            words[word] &= ~(1L << index);
+        }
+    }
+
+    void clear() {
+        words = NO_WORDS;
+    }
+
+    boolean isEmpty() {
+        return nextSetBit(0) < 0;
+    }
+
+    /**
+     * @return The first set bit at or after the index, -1 if there is none.
+     */
+    int nextSetBit(int from) {
+        return nextSetBit(words, from);
+    }
+
+    private static int nextSetBit(long[] words, int from) {
+        int word = from >>> 6;
+        if (word >= words.length) {
+            return -1;
+        }
+        long bits = words[word] & (-1L << from);
+        while (bits == 0) {
+            if (++word == words.length) {
+                return -1;
+            }
+            bits = words[word];
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    /**
+     * @return The first clear bit at or after the index.
+     */
+    int nextClearBit(int from) {
+        int word = from >>> 6;
+        if (word >= words.length) {
+            return from;
+        }
+        long bits = ~words[word] & (-1L << from);
+        while (bits == 0) {
+            if (++word == words.length) {
+                return word << 6;
+            }
+            bits = ~words[word];
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    int cardinality() {
+        int count = 0;
+        for (int i = 0; i < words.length; i++) {
+            count += Long.bitCount(words[i]);
+        }
+        return count;
+    }
+
+    /**
+     * Removes the bits of expunged messages, moving the following ones down like the messages.
+     *
+     * @param indexes The positions removed, in ascending order.
+     */
+    void removeAll(int[] indexes, int count) {
+        long[] removed = words;
+        words = NO_WORDS;
+        int skipped = 0;
+        for (int bit = nextSetBit(removed, 0); bit >= 0; bit = nextSetBit(removed, bit + 1)) {
+            while (skipped < count && indexes[skipped] < bit) {
+                skipped++;
+            }
+            if (skipped < count && indexes[skipped] == bit) {
+                continue;
+            }
+            set(bit - skipped);
+        }
+    }
+
+    MessageBitmap and(MessageBitmap other) {
+        MessageBitmap result = new MessageBitmap();
+        int length = Math.min(words.length, other.words.length);
+        result.words = new long[length];
+        for (int i = 0; i < length; i++) {
+            result.words[i] = words[i] & other.words[i];
+        }
+        return result;
+    }
+
+    MessageBitmap or(MessageBitmap other) {
+        long[] longer = words.length >= other.words.length ? words : other.words;
+        long[] shorter = longer == words ? other.words : words;
+        MessageBitmap result = new MessageBitmap();
+        result.words = longer.clone();
+        for (int i = 0; i < shorter.length; i++) {
+            result.words[i] |= shorter[i];
+        }
+        return result;
+    }
+
+    /**
+     * @return The positions below size that are not set.
+     */
+    MessageBitmap not(int size) {
+        MessageBitmap result = new MessageBitmap();
+        result.words = new long[(size + 63) >>> 6];
+        for (int i = 0; i < result.words.length; i++) {
+            result.words[i] = i < words.length ? ~words[i] : -1L;
+        }
+        if ((size & 63) != 0) {
+            result.words[result.words.length - 1] &= (1L << size) - 1;
+        }
+        return result;
+    }
+}
@@ -31,6 +31,8 @@
  */
 package com.icegreen.greenmail.store;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 import jakarta.mail.Flags;
 
 
@@ -61,36 +63,109 @@ public class MessageFlags {
     public static final String FLAGGED = "\\FLAGGED";
     public static final String SEEN = "\\SEEN";
 
+    /**
+     * Bits of the system flags, as stored by {@link SimpleStoredMessage#getFlagBits()}.
+     */
+    public static final int ANSWERED_BIT = 1;
+    public static final int DELETED_BIT = 2;
+    public static final int DRAFT_BIT = 4;
+    public static final int FLAGGED_BIT = 8;
+    public static final int RECENT_BIT = 16;
+    public static final int SEEN_BIT = 32;
+    public static final int USER_BIT = 64;
+
+    private static final Flags.Flag[] SYSTEM_FLAGS = {
+            Flags.Flag.ANSWERED, Flags.Flag.DELETED, Flags.Flag.DRAFT,
+            Flags.Flag.FLAGGED, Flags.Flag.RECENT, Flags.Flag.SEEN, Flags.Flag.USER
+    };
+    private static final String[] FLAG_NAMES = {
+            "\\Answered", "\\Deleted", "\\Draft", "\\Flagged", "\\Recent", "\\Seen"
+    };
+
+    // The formatted flags of every combination of the flags in FLAG_NAMES, indexed by their bits
+    private static final String[] FORMATTED = new String[1 << FLAG_NAMES.length];
+
+    static {
+        for (int bits = 0; bits < FORMATTED.length; bits++) {
+            StringBuffer buf = new StringBuffer();
+            buf.append("(");
+            for (int i = 0; i < FLAG_NAMES.length; i++) {
+                if ((bits & (1 << i)) != 0) {
+                    if (buf.length() > 1) {
+                        buf.append(' ');
+                    }
+                    buf.append(FLAG_NAMES[i]);
+                }
+            }
+            buf.append(")");
+            FORMATTED[bits] = buf.toString();
+        }
+    }
+
+    // User flags are shared by all the messages having them, up to a number of distinct
+    // keywords beyond which clients making up keywords would only fill the map
+    private static final ConcurrentHashMap KEYWORDS = new ConcurrentHashMap();
+    private static final int MAX_SHARED_KEYWORDS = 1024;
+
     /**
      * Returns IMAP formatted String of MessageFlags for named user
      */
     public static String format(Flags flags) {
-        StringBuffer buf = new StringBuffer();
-        buf.append("(");
-        if (flags.contains(Flags.Flag.ANSWERED)) {
-            buf.append("\\Answered ");
-        }
-        if (flags.contains(Flags.Flag.DELETED)) {
-            buf.append("\\Deleted ");
-        }
-        if (flags.contains(Flags.Flag.DRAFT)) {
-            buf.append("\\Draft ");
+        return format(toBits(flags));
+    }
+
+    /**
+     * Returns the IMAP formatted system flags of the given bits.
+     */
+    public static String format(int bits) {
+        return FORMATTED[bits & (FORMATTED.length - 1)];
+    }
+
+    /**
+     * @return The bits of the system flags set in the given flags.
+     */
+    public static int toBits(Flags flags) {
+        int bits = 0;
+        for (int i = 0; i < SYSTEM_FLAGS.length; i++) {
+            if (flags.contains(SYSTEM_FLAGS[i])) {
+                bits |= 1 << i;
+            }
         }
-        if (flags.contains(Flags.Flag.FLAGGED)) {
-            buf.append("\\Flagged ");
+        return bits;
+    }
+
+    /**
+     * @return A new Flags holding the system flags of the given bits and the user flags.
+     */
+    public static Flags toFlags(int bits, String[] userFlags) {
+        Flags flags = new Flags();
+        for (int i = 0; i < SYSTEM_FLAGS.length; i++) {
+            if ((bits & (1 << i)) != 0) {
+                flags.add(SYSTEM_FLAGS[i]);
+            }
         }
-        if (flags.contains(Flags.Flag.RECENT)) {
-            buf.append("\\Recent ");
+        if (userFlags != null) {
+            for (int i = 0; i < userFlags.length; i++) {
+                flags.add(userFlags[i]);
+            }
         }
-        if (flags.contains(Flags.Flag.SEEN)) {
-            buf.append("\\Seen ");
+        return flags;
+    }
+
+    /**
+     * @return The shared instance of a user flag, or the flag itself once the number of
+     * shared keywords has reached its limit.
+     */
+    static String internKeyword(String keyword) {
+        String shared = (String) KEYWORDS.get(keyword);
+        if (shared != null) {
+            return shared;
         }
-        // Remove the trailing space, if necessary.
-        if (buf.length() > 1) {
-            buf.setLength(buf.length() - 1);
+        if (KEYWORDS.size() >= MAX_SHARED_KEYWORDS) {
+            return keyword;
         }
-        buf.append(")");
-        return buf.toString();
+        shared = (String) KEYWORDS.putIfAbsent(keyword, keyword);
+        return shared != null ? shared : keyword;
     }
 }
 
@@ -0,0 +1,184 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Array backed table of the messages of a folder, kept in ascending UID order.
+ * <p/>
+ * The position of a message in the table is its message sequence number minus one,
+ * so MSN to message lookups are a plain array access and UID to MSN lookups are a
+ * binary search over a primitive <code>long[]</code>.
+ * <p/>
+ * This class is not thread safe, callers are expected to guard access to it.
+ */
+final class MessageTable {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] uids;
+    private SimpleStoredMessage[] messages;
+    private int size;
+
+    MessageTable() {
+        uids = new long[INITIAL_CAPACITY];
+        messages = new SimpleStoredMessage[INITIAL_CAPACITY];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Appends a message to the end of the table.
+     *
+     * @param message The message, its UID must be greater than any UID already in the table.
+     */
+    void add(SimpleStoredMessage message) {
+        long uid = message.getUid();
+        if (size > 0 && uids[size - 1] >= uid) {
+            throw new IllegalArgumentException("UID " + uid + " is not greater than last UID " + uids[size - 1]);
+        }
+        if (size == uids.length) {
+            int capacity = uids.length + (uids.length >> 1);
+            uids = Arrays.copyOf(uids, capacity);
+            messages = Arrays.copyOf(messages, capacity);
+        }
+        uids[size] = uid;
+        messages[size] = message;
+        size++;
+    }
+
+    /**
+     * @param index The zero based index, ie the MSN minus one.
+     */
+    SimpleStoredMessage get(int index) {
+        checkIndex(index);
+        return messages[index];
+    }
+
+    /**
+     * @param index The zero based index, ie the MSN minus one.
+     */
+    long getUid(int index) {
+        checkIndex(index);
+        return uids[index];
+    }
+
+    /**
+     * Finds the position of a message by UID.
+     *
+     * @return The zero based index, or <code>-1</code> if there is no message with this UID.
+     */
+    int indexOf(long uid) {
+        int index = Arrays.binarySearch(uids, 0, size, uid);
+        return index < 0 ? -1 : index;
+    }
+
+    /**
+     * Finds where the messages with a UID of at least the given one start.
+     *
+     * @return The zero based index of the first message with a UID greater than or equal
+     *         to the given UID, {@link #size()} if there is none.
+     */
+    int indexOfFirst(long uid) {
+        int index = Arrays.binarySearch(uids, 0, size, uid);
+        return index < 0 ? -index - 1 : index;
+    }
+
+    SimpleStoredMessage remove(int index) {
+        checkIndex(index);
+        SimpleStoredMessage removed = messages[index];
+        int tail = size - index - 1;
+        if (tail > 0) {
+            System.arraycopy(uids, index + 1, uids, index, tail);
+            System.arraycopy(messages, index + 1, messages, index, tail);
+        }
+        size--;
+        messages[size] = null;
+        return removed;
+    }
+
+    /**
+     * Removes several messages in a single pass, compacting the table.
+     *
+     * @param indexes The zero based indexes of the messages to remove, in strictly ascending order.
+     * @throws IllegalArgumentException  if the indexes are not strictly ascending, leaving the table unchanged.
+     * @throws IndexOutOfBoundsException if an index is out of bounds, leaving the table unchanged.
+     */
+    void removeAll(int[] indexes) {
+        if (indexes.length == 0) {
+            return;
+        }
+        for (int i = 0; i < indexes.length; i++) {
+            checkIndex(indexes[i]);
+            if (i > 0 && indexes[i] <= indexes[i - 1]) {
+                throw new IllegalArgumentException("Indexes not strictly ascending: " + indexes[i - 1] + ", " + indexes[i]);
+            }
+        }
+        int write = indexes[0];
+        int next = 0;
+        for (int read = write; read < size; read++) {
+            if (next < indexes.length && indexes[next] == read) {
+                next++;
+                continue;
+            }
+            uids[write] = uids[read];
+            messages[write] = messages[read];
+            write++;
+        }
+        Arrays.fill(messages, write, size, null);
+        size = write;
+    }
+
+    void clear() {
+        Arrays.fill(messages, 0, size, null);
+        size = 0;
+    }
+
+    long[] getUids() {
+        return Arrays.copyOf(uids, size);
+    }
+
+    /**
+     * @return A snapshot of the messages, in MSN order.
+     */
+    List<SimpleStoredMessage> toList() {
+        List<SimpleStoredMessage> list = new ArrayList<SimpleStoredMessage>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(messages[i]);
+        }
+        return list;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+}
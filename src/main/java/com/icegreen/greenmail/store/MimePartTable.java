@@ -0,0 +1,307 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import jakarta.mail.internet.ContentType;
+import jakarta.mail.internet.ParseException;
+
+/**
+ * Byte offsets of the MIME parts of a raw message, found by a single scan over the raw bytes.
+ * <p/>
+ * Parts are addressed like IMAP body sections: a path of part numbers, the parts of a
+ * <code>message/rfc822</code> part being the parts of the message it encloses, and part 1 of
+ * a message that is not multipart being its body. Once the table is built any section can be
+ * served as a slice of the raw message, without parsing the message again.
+ * <p/>
+ * Instances are immutable.
+ */
+public final class MimePartTable {
+    // Guards against messages nesting parts without end
+    private static final int MAX_DEPTH = 64;
+
+    private final Section root;
+
+    MimePartTable(byte[] raw) {
+        root = parseEntity(raw, 0, raw.length, "text/plain", 0);
+    }
+
+    /**
+     * @return The message itself, its header being the message header.
+     */
+    public Section getRoot() {
+        return root;
+    }
+
+    /**
+     * Finds a part by its section path, eg <code>{1, 2, 3}</code> for section <code>1.2.3</code>.
+     *
+     * @return The part, or null if there is no such part.
+     */
+    public Section getSection(int[] path) {
+        Section current = root;
+        boolean message = true;
+        for (int i = 0; i < path.length; i++) {
+            Section container = current;
+            if (!message && current.message != null) {
+                // The parts of an enclosed message are numbered as if it were the part itself
+                container = current.message;
+                message = true;
+            }
+            int number = path[i];
+            if (container.parts != null) {
+                if (number < 1 || number > container.parts.length) {
+                    return null;
+                }
+                current = container.parts[number - 1];
+            } else if (message && number == 1) {
+                current = new Section(container.headerStart, container.bodyStart, container.end);
+            } else {
+                return null;
+            }
+            message = false;
+        }
+        return current;
+    }
+
+    private static Section parseEntity(byte[] raw, int start, int end, String defaultType, int depth) {
+        int bodyStart = findBodyStart(raw, start, end);
+        Section section = new Section(start, bodyStart, end);
+        if (depth >= MAX_DEPTH) {
+            return section;
+        }
+        ContentType contentType = getContentType(raw, start, bodyStart, defaultType);
+        if (contentType == null) {
+            return section;
+        }
+        if (contentType.match("multipart/*")) {
+            String boundary = contentType.getParameter("boundary");
+            if (boundary != null) {
+                String partType = contentType.match("multipart/digest") ? "message/rfc822" : "text/plain";
+                section.parts = parseParts(raw, bodyStart, end, boundary, partType, depth + 1);
+            }
+        } else if (contentType.match("message/rfc822")) {
+            section.message = parseEntity(raw, bodyStart, end, "text/plain", depth + 1);
+        }
+        return section;
+    }
+
+    private static Section[] parseParts(byte[] raw, int start, int end, String boundary, String partType,
+                                        int depth) {
+        byte[] delimiter = ("--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        List parts = new ArrayList();
+        int partStart = -1;
+        int lineStart = start;
+        while (lineStart < end) {
+            int lineEnd = indexOf(raw, (byte) '\n', lineStart, end);
+            int next = lineEnd < 0 ? end : lineEnd + 1;
+            if (startsWith(raw, lineStart, end, delimiter)) {
+                int after = lineStart + delimiter.length;
+                boolean close = after + 1 < end && raw[after] == '-' && raw[after + 1] == '-';
+                if (close || isDelimiterEnd(raw, after, next)) {
+                    if (partStart >= 0) {
+                        // The line break before the delimiter belongs to the delimiter
+                        parts.add(parseEntity(raw, partStart, lineBreakStart(raw, partStart, lineStart),
+                                partType, depth));
+                    }
+                    if (close) {
+                        partStart = -1;
+                        break;
+                    }
+                    partStart = next;
+                }
+            }
+            lineStart = next;
+        }
+        if (partStart >= 0 && partStart < end) {
+            // Missing close delimiter, the last part runs to the end
+            parts.add(parseEntity(raw, partStart, end, partType, depth));
+        }
+        return (Section[]) parts.toArray(new Section[parts.size()]);
+    }
+
+    private static boolean isDelimiterEnd(byte[] raw, int from, int to) {
+        // Only transport padding may follow a delimiter
+        for (int i = from; i < to; i++) {
+            if (raw[i] != ' ' && raw[i] != '\t' && raw[i] != '\r' && raw[i] != '\n') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int lineBreakStart(byte[] raw, int partStart, int delimiterStart) {
+        int end = delimiterStart;
+        if (end > partStart && raw[end - 1] == '\n') {
+            end--;
+            if (end > partStart && raw[end - 1] == '\r') {
+                end--;
+            }
+        }
+        return end;
+    }
+
+    private static ContentType getContentType(byte[] raw, int start, int end, String defaultType) {
+        String value = getHeader(raw, start, end, "content-type");
+        try {
+            return new ContentType(value != null ? value : defaultType);
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The unfolded value of the first header with the given lower case name, or null.
+     */
+    private static String getHeader(byte[] raw, int start, int end, String name) {
+        int lineStart = start;
+        while (lineStart < end) {
+            int lineEnd = indexOf(raw, (byte) '\n', lineStart, end);
+            if (lineEnd < 0) {
+                lineEnd = end;
+            }
+            if (matchesName(raw, lineStart, lineEnd, name)) {
+                StringBuffer value = new StringBuffer();
+                value.append(new String(raw, lineStart + name.length() + 1, lineEnd - lineStart - name.length() - 1,
+                        StandardCharsets.ISO_8859_1));
+                // Continuation lines start with white space
+                int next = lineEnd + 1;
+                while (next < end && (raw[next] == ' ' || raw[next] == '\t')) {
+                    int nextEnd = indexOf(raw, (byte) '\n', next, end);
+                    if (nextEnd < 0) {
+                        nextEnd = end;
+                    }
+                    value.append(new String(raw, next, nextEnd - next, StandardCharsets.ISO_8859_1));
+                    next = nextEnd + 1;
+                }
+                return value.toString().replace('\r', ' ').replace('\n', ' ').trim();
+            }
+            lineStart = lineEnd + 1;
+        }
+        return null;
+    }
+
+    private static boolean matchesName(byte[] raw, int lineStart, int lineEnd, String name) {
+        int length = name.length();
+        if (lineEnd - lineStart <= length || raw[lineStart + length] != ':') {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (Character.toLowerCase((char) (raw[lineStart + i] & 0xff)) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The index just after the empty line ending the headers of the entity
+     *         starting at start, or end if there is none.
+     */
+    static int findBodyStart(byte[] raw, int start, int end) {
+        int lineStart = start;
+        while (lineStart < end) {
+            int lineEnd = indexOf(raw, (byte) '\n', lineStart, end);
+            if (lineEnd < 0) {
+                return end;
+            }
+            if (lineEnd == lineStart || (lineEnd == lineStart + 1 && raw[lineStart] == '\r')) {
+                return lineEnd + 1;
+            }
+            lineStart = lineEnd + 1;
+        }
+        return end;
+    }
+
+    private static int indexOf(byte[] raw, byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (raw[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(byte[] raw, int from, int to, byte[] prefix) {
+        if (to - from < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (raw[from + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A MIME entity of the message, as offsets into the raw message.
+     */
+    public static final class Section {
+        private final int headerStart;
+        private final int bodyStart;
+        private final int end;
+        private Section[] parts;
+        private Section message;
+
+        Section(int headerStart, int bodyStart, int end) {
+            this.headerStart = headerStart;
+            this.bodyStart = bodyStart;
+            this.end = end;
+        }
+
+        /**
+         * @return The offset of the header of the entity, its MIME header for a body part.
+         */
+        public int getHeaderStart() {
+            return headerStart;
+        }
+
+        /**
+         * @return The offset of the body, just after the empty line ending the header.
+         */
+        public int getBodyStart() {
+            return bodyStart;
+        }
+
+        /**
+         * @return The offset just after the body.
+         */
+        public int getEnd() {
+            return end;
+        }
+
+        /**
+         * @return The message enclosed by a <code>message/rfc822</code> entity, or null.
+         */
+        public Section getMessage() {
+            return message;
+        }
+    }
+}
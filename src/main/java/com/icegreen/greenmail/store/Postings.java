@@ -0,0 +1,190 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import java.util.Arrays;
+
+/**
+ * The UIDs of the messages a search index entry refers to, in ascending order, along with
+ * the operations the indexes combine them with.
+ * <p/>
+ * Not thread safe, guarded by the lock of the folder like the indexes holding it.
+ */
+class Postings {
+    static final long[] NO_UIDS = new long[0];
+    // Beyond this many postings, they are merged rather than searched for each UID
+    private static final int RETAIN_SEARCH_LIMIT = 16;
+
+    private long[] uids = new long[1];
+    private int size;
+
+    void add(long uid) {
+        // Appended messages come in UID order, only building an index inserts
+        int index = size == 0 || uids[size - 1] < uid ? size : Arrays.binarySearch(uids, 0, size, uid);
+        if (index < 0) {
+            index = -index - 1;
+        } else if (index < size) {
+            return;
+        }
+        if (size == uids.length) {
+            uids = Arrays.copyOf(uids, size * 2);
+        }
+        System.arraycopy(uids, index, uids, index + 1, size - index);
+        uids[index] = uid;
+        size++;
+    }
+
+    void remove(long uid) {
+        int index = Arrays.binarySearch(uids, 0, size, uid);
+        if (index >= 0) {
+            System.arraycopy(uids, index + 1, uids, index, size - index - 1);
+            size--;
+        }
+    }
+
+    boolean contains(long uid) {
+        return Arrays.binarySearch(uids, 0, size, uid) >= 0;
+    }
+
+    void clear() {
+        uids = new long[1];
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long[] toArray() {
+        return Arrays.copyOf(uids, size);
+    }
+
+    /**
+     * @return An estimate of the heap used, in bytes.
+     */
+    long getMemoryUsage() {
+        return 16 + 8 + 16 + 8L * uids.length;
+    }
+
+    static int size(Postings[] postings) {
+        int size = 0;
+        for (int i = 0; i < postings.length; i++) {
+            size += postings[i].size;
+        }
+        return size;
+    }
+
+    /**
+     * @return The UIDs of all the postings, in ascending order without duplicates.
+     */
+    static long[] toArray(Postings[] postings) {
+        if (postings.length == 1) {
+            return postings[0].toArray();
+        }
+        long[] uids = new long[size(postings)];
+        int count = 0;
+        for (int i = 0; i < postings.length; i++) {
+            System.arraycopy(postings[i].uids, 0, uids, count, postings[i].size);
+            count += postings[i].size;
+        }
+        Arrays.sort(uids);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || uids[i] != uids[distinct - 1]) {
+                uids[distinct++] = uids[i];
+            }
+        }
+        return Arrays.copyOf(uids, distinct);
+    }
+
+    /**
+     * @return The UIDs also in any of the postings.
+     */
+    static long[] retain(long[] uids, Postings[] postings) {
+        if (postings.length > RETAIN_SEARCH_LIMIT) {
+            return intersect(uids, toArray(postings));
+        }
+        long[] result = new long[uids.length];
+        int count = 0;
+        for (int i = 0; i < uids.length; i++) {
+            for (int j = 0; j < postings.length; j++) {
+                if (postings[j].contains(uids[i])) {
+                    result[count++] = uids[i];
+                    break;
+                }
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    static long[] intersect(long[] a, long[] b) {
+        long[] result = new long[Math.min(a.length, b.length)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    static long[] union(long[] a, long[] b) {
+        long[] result = new long[a.length + b.length];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                result[count++] = a[i++];
+            } else if (i == a.length || b[j] < a[i]) {
+                result[count++] = b[j++];
+            } else {
+                result[count++] = a[i++];
+                j++;
+            }
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    /**
+     * The postings of an index key, holding the key so that the index can share it.
+     */
+    static final class Keyed extends Postings {
+        final String key;
+
+        Keyed(String key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import java.util.Arrays;
+
+import jakarta.mail.search.ComparisonTerm;
+
+/**
+ * The messages of a folder ordered by a numeric value, such as their internal date or size,
+ * so that the messages compared to a value are found by binary search and a range scan.
+ * <p/>
+ * Messages are mostly appended in value order and then simply go at the end. Others are
+ * kept in a short unordered tail, which is scanned by searches and merged into the ordered
+ * entries once it grows. Messages whose value is not known are always found, they have to
+ * be matched one by one.
+ * <p/>
+ * Not thread safe, the folder changes the index under its write lock and searches under its read lock.
+ */
+final class RangeIndex {
+    // Beyond this many unordered entries, they are sorted and merged into the ordered ones
+    private static final int MAX_UNSORTED = 1024;
+
+    private long[] values = new long[16];
+    private long[] uids = new long[16];
+    // Entries before this one are ordered by value, the following ones by arrival
+    private int sorted;
+    private int size;
+    private final Postings unknown = new Postings();
+
+    void add(long uid, long value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+            uids = Arrays.copyOf(uids, size * 2);
+        }
+        values[size] = value;
+        uids[size] = uid;
+        size++;
+        if (sorted == size - 1 && (sorted == 0 || values[sorted - 1] <= value)) {
+            sorted++;
+        } else if (size - sorted > MAX_UNSORTED) {
+            sortTail();
+        }
+    }
+
+    /**
+     * Adds a message whose value could not be determined.
+     */
+    void addUnknown(long uid) {
+        unknown.add(uid);
+    }
+
+    /**
+     * @param removed The UIDs of the messages to remove, in ascending order.
+     */
+    void removeAll(long[] removed) {
+        int count = 0;
+        int sortedCount = 0;
+        for (int i = 0; i < size; i++) {
+            if (Arrays.binarySearch(removed, uids[i]) < 0) {
+                values[count] = values[i];
+                uids[count] = uids[i];
+                count++;
+                if (i < sorted) {
+                    sortedCount++;
+                }
+            }
+        }
+        size = count;
+        sorted = sortedCount;
+        if (unknown.size() > 0) {
+            for (int i = 0; i < removed.length; i++) {
+                unknown.remove(removed[i]);
+            }
+        }
+    }
+
+    void clear() {
+        values = new long[16];
+        uids = new long[16];
+        sorted = 0;
+        size = 0;
+        unknown.clear();
+    }
+
+    /**
+     * @return Whether {@link #search(int, long)} finds exactly the matching messages, as no
+     *         message has an unknown value.
+     */
+    boolean isExact() {
+        return unknown.size() == 0;
+    }
+
+    /**
+     * @param comparison One of the {@link ComparisonTerm} constants, the value of the
+     *                   messages is on the left-hand side.
+     * @return The UIDs of the messages matching, and of those with an unknown value, in ascending order.
+     */
+    long[] search(int comparison, long operand) {
+        int lower = lowerBound(operand);
+        int upper = lower;
+        while (upper < sorted && values[upper] == operand) {
+            upper++;
+        }
+        long[] result;
+        int count;
+        switch (comparison) {
+            case ComparisonTerm.LE:
+                result = new long[upper + size - sorted];
+                count = copy(result, 0, 0, upper);
+                break;
+            case ComparisonTerm.LT:
+                result = new long[lower + size - sorted];
+                count = copy(result, 0, 0, lower);
+                break;
+            case ComparisonTerm.EQ:
+                result = new long[upper - lower + size - sorted];
+                count = copy(result, 0, lower, upper);
+                break;
+            case ComparisonTerm.NE:
+                result = new long[sorted - (upper - lower) + size - sorted];
+                count = copy(result, 0, 0, lower);
+                count = copy(result, count, upper, sorted);
+                break;
+            case ComparisonTerm.GT:
+                result = new long[sorted - upper + size - sorted];
+                count = copy(result, 0, upper, sorted);
+                break;
+            case ComparisonTerm.GE:
+                result = new long[sorted - lower + size - sorted];
+                count = copy(result, 0, lower, sorted);
+                break;
+            default:
+                return unknown.toArray();
+        }
+        for (int i = sorted; i < size; i++) {
+            if (SearchPlan.compare(comparison, values[i], operand)) {
+                result[count++] = uids[i];
+            }
+        }
+        return toResult(result, count);
+    }
+
+    /**
+     * Looks up the messages with a value in a range with a single search, as for a whole day.
+     *
+     * @param from The lowest value matching.
+     * @param to   The value after the highest value matching.
+     * @return The UIDs of the messages matching, and of those with an unknown value, in ascending order.
+     */
+    long[] searchRange(long from, long to) {
+        int lower = lowerBound(from);
+        int upper = Math.max(lower, lowerBound(to));
+        long[] result = new long[upper - lower + size - sorted];
+        int count = copy(result, 0, lower, upper);
+        for (int i = sorted; i < size; i++) {
+            if (from <= values[i] && values[i] < to) {
+                result[count++] = uids[i];
+            }
+        }
+        return toResult(result, count);
+    }
+
+    private long[] toResult(long[] result, int count) {
+        result = count == result.length ? result : Arrays.copyOf(result, count);
+        Arrays.sort(result);
+        return unknown.size() == 0 ? result : Postings.union(result, unknown.toArray());
+    }
+
+    private int copy(long[] result, int count, int from, int to) {
+        System.arraycopy(uids, from, result, count, to - from);
+        return count + to - from;
+    }
+
+    /**
+     * @return The first of the ordered entries not less than the value.
+     */
+    private int lowerBound(long value) {
+        int low = 0;
+        int high = sorted;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Sorts the unordered entries and merges them into the ordered ones.
+     */
+    private void sortTail() {
+        long[] tmpValues = new long[size];
+        long[] tmpUids = new long[size];
+        mergeSort(tmpValues, tmpUids, sorted, size);
+        merge(tmpValues, tmpUids, 0, sorted, size);
+        sorted = size;
+    }
+
+    private void mergeSort(long[] tmpValues, long[] tmpUids, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(tmpValues, tmpUids, from, middle);
+        mergeSort(tmpValues, tmpUids, middle, to);
+        merge(tmpValues, tmpUids, from, middle, to);
+    }
+
+    /**
+     * Merges two adjacent ordered ranges, keeping the order of entries with the same value.
+     */
+    private void merge(long[] tmpValues, long[] tmpUids, int from, int middle, int to) {
+        if (from == middle || values[middle - 1] <= values[middle]) {
+            return;
+        }
+        System.arraycopy(values, from, tmpValues, from, to - from);
+        System.arraycopy(uids, from, tmpUids, from, to - from);
+        int i = from;
+        int j = middle;
+        for (int k = from; k < to; k++) {
+            if (j == to || (i < middle && tmpValues[i] <= tmpValues[j])) {
+                values[k] = tmpValues[i];
+                uids[k] = tmpUids[i++];
+            } else {
+                values[k] = tmpValues[j];
+                uids[k] = tmpUids[j++];
+            }
+        }
+    }
+}
@@ -0,0 +1,574 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import jakarta.mail.Flags;
+import jakarta.mail.search.AndTerm;
+import jakarta.mail.search.BodyTerm;
+import jakarta.mail.search.ComparisonTerm;
+import jakarta.mail.search.DateTerm;
+import jakarta.mail.search.FlagTerm;
+import jakarta.mail.search.HeaderTerm;
+import jakarta.mail.search.NotTerm;
+import jakarta.mail.search.OrTerm;
+import jakarta.mail.search.ReceivedDateTerm;
+import jakarta.mail.search.SearchTerm;
+import jakarta.mail.search.SentDateTerm;
+import jakarta.mail.search.SizeTerm;
+import jakarta.mail.search.StringTerm;
+
+/**
+ * A search term compiled for evaluation against stored messages.
+ * <p/>
+ * Flag, UID, internal date and size criteria are checked against what the folder stores
+ * about a message. Other criteria, such as header and body matches, are left to the
+ * search term itself and need the parsed message. The operands of AND and OR are
+ * reordered so that these expensive criteria only run on messages the cheap ones did
+ * not already decide. Flag and UID criteria and their combinations are answered by the
+ * {@link FlagIndex} of the folder, date and size criteria by its {@link RangeIndex range indexes},
+ * and the results of AND and OR operands answered by indexes are combined without looking at
+ * any message. Criteria the {@link HeaderIndex} covers, and with a
+ * {@link TextIndex} BODY, TEXT and HEADER criteria, are only matched against the messages the
+ * index finds may match them.
+ * <p/>
+ * Plans are immutable and can be shared by threads, a large folder can be searched in
+ * {@link #matchesParallel parallel}.
+ */
+final class SearchPlan {
+    // Relative costs, used to order the operands of AND and OR
+    private static final int COST_FLAGS = 1;
+    private static final int COST_DATE = 2;
+    private static final int COST_SIZE = 4;
+    private static final int COST_INDEXED = 50;
+    private static final int COST_MESSAGE = 100;
+
+    // Messages evaluated by one fork join task
+    private static final int PARALLEL_CHUNK = 1024;
+
+    private static final Comparator BY_COST = new Comparator() {
+        public int compare(Object o1, Object o2) {
+            return ((Node) o1).cost - ((Node) o2).cost;
+        }
+    };
+
+    private final Node root;
+
+    private SearchPlan(Node root) {
+        this.root = root;
+    }
+
+    static SearchPlan compile(SearchTerm term) {
+        return compile(term, null, null, null, null, null, null);
+    }
+
+    /**
+     * The indexes are only read while compiling, under the read lock of the folder along with
+     * the messages to search.
+     *
+     * @param index         The text index of the folder, or null.
+     * @param headerIndex   The header index of the folder, or null.
+     * @param flagIndex     The flag index of the folder, or null.
+     * @param internalDates The internal dates of the messages in milliseconds, or null.
+     * @param sentDates     The dates of the Date headers in milliseconds, or null.
+     * @param sizes         The RFC 822 sizes of the messages, or null.
+     */
+    static SearchPlan compile(SearchTerm term, TextIndex index, HeaderIndex headerIndex, FlagIndex flagIndex,
+                              RangeIndex internalDates, RangeIndex sentDates, RangeIndex sizes) {
+        return new SearchPlan(compileTerm(term,
+                new Indexes(index, headerIndex, flagIndex, internalDates, sentDates, sizes)));
+    }
+
+    boolean matches(SimpleStoredMessage message) throws FolderException {
+        return root.matches(message);
+    }
+
+    /**
+     * @return The UIDs of the messages matching, in ascending order, when the indexes
+     *         answered the whole search, otherwise null.
+     */
+    long[] getMatches() {
+        return root instanceof ExactMatch ? ((ExactMatch) root).uids : null;
+    }
+
+    /**
+     * @return The UIDs of the only messages that can match in ascending order, when the
+     *         indexes narrowed the whole search down, otherwise null.
+     */
+    long[] getCandidates() {
+        if (root instanceof IndexedMatch || root instanceof ExactMatch) {
+            return candidates(root);
+        }
+        if (root instanceof Junction && ((Junction) root).and) {
+            long[] candidates = null;
+            Node[] operands = ((Junction) root).operands;
+            for (int i = 0; i < operands.length; i++) {
+                long[] operandCandidates = candidates(operands[i]);
+                if (operandCandidates != null) {
+                    candidates = candidates == null ? operandCandidates : Postings.intersect(candidates, operandCandidates);
+                }
+            }
+            return candidates;
+        }
+        return null;
+    }
+
+    private static long[] candidates(Node node) {
+        if (node instanceof IndexedMatch) {
+            return ((IndexedMatch) node).candidates;
+        }
+        return node instanceof ExactMatch ? ((ExactMatch) node).uids : null;
+    }
+
+    /**
+     * Evaluates the plan for every message, splitting them into chunks evaluated concurrently.
+     *
+     * @return Whether each message matches, by index.
+     */
+    boolean[] matchesParallel(List messages, ForkJoinPool pool) throws FolderException {
+        boolean[] matched = new boolean[messages.size()];
+        FolderException[] failure = new FolderException[1];
+        pool.invoke(new ChunkTask(messages, matched, failure, 0, matched.length));
+        // Joining the task makes the failure of any chunk visible
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return matched;
+    }
+
+    private final class ChunkTask extends RecursiveAction {
+        // Tasks only live for one search, they are never serialized
+        private static final long serialVersionUID = 1L;
+
+        private final transient List messages;
+        private final transient boolean[] matched;
+        // Shared by the tasks of a search, the first failure stops the chunks not started yet
+        private final transient FolderException[] failure;
+        private final int from;
+        private final int to;
+
+        ChunkTask(List messages, boolean[] matched, FolderException[] failure, int from, int to) {
+            this.messages = messages;
+            this.matched = matched;
+            this.failure = failure;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from > PARALLEL_CHUNK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ChunkTask(messages, matched, failure, from, middle),
+                        new ChunkTask(messages, matched, failure, middle, to));
+                return;
+            }
+            try {
+                for (int i = from; i < to && failure[0] == null; i++) {
+                    matched[i] = root.matches((SimpleStoredMessage) messages.get(i));
+                }
+            } catch (FolderException e) {
+                failure[0] = e;
+            }
+        }
+    }
+
+    private static Node compileTerm(SearchTerm term, Indexes index) {
+        if (index.flagIndex != null && FlagIndex.covers(term)) {
+            return new ExactMatch(index.flagIndex.search(term));
+        }
+        if (term instanceof AndTerm) {
+            Node range = compileDateRange((AndTerm) term, index);
+            if (range != null) {
+                return range;
+            }
+            List operands = new ArrayList();
+            flatten(term, true, operands, index);
+            return junction(operands, true);
+        }
+        if (term instanceof OrTerm) {
+            List operands = new ArrayList();
+            flatten(term, false, operands, index);
+            return junction(operands, false);
+        }
+        if (term instanceof NotTerm) {
+            return new Not(compileTerm(((NotTerm) term).getTerm(), index));
+        }
+        if (term instanceof FlagTerm) {
+            FlagTerm flagTerm = (FlagTerm) term;
+            return new FlagMatch(flagTerm.getFlags(), flagTerm.getTestSet());
+        }
+        if (term instanceof UidSearchTerm) {
+            return new UidMatch((UidSearchTerm) term);
+        }
+        if (term instanceof ReceivedDateTerm) {
+            ReceivedDateTerm dateTerm = (ReceivedDateTerm) term;
+            return range(index.internalDates, dateTerm.getComparison(), dateTerm.getDate().getTime(),
+                    new InternalDateMatch(dateTerm.getComparison(), dateTerm.getDate()));
+        }
+        if (term instanceof SentDateTerm) {
+            SentDateTerm dateTerm = (SentDateTerm) term;
+            return range(index.sentDates, dateTerm.getComparison(), dateTerm.getDate().getTime(),
+                    new MessageMatch(term));
+        }
+        if (term instanceof SizeTerm) {
+            SizeTerm sizeTerm = (SizeTerm) term;
+            return range(index.sizes, sizeTerm.getComparison(), sizeTerm.getNumber(), new SizeMatch(sizeTerm));
+        }
+        long[] candidates = index.candidates(term);
+        if (candidates != null) {
+            return new IndexedMatch(new MessageMatch(term), candidates);
+        }
+        return new MessageMatch(term);
+    }
+
+    /**
+     * Compiles the bounds of a day, as SEARCH ON and SENTON build them, to a single lookup of
+     * the range instead of intersecting everything since the day with everything before the next.
+     *
+     * @return null unless the term is a lower and an upper bound on the same date.
+     */
+    private static Node compileDateRange(AndTerm term, Indexes index) {
+        SearchTerm[] terms = term.getTerms();
+        if (terms.length != 2 || !(terms[0] instanceof DateTerm) || terms[0].getClass() != terms[1].getClass()) {
+            return null;
+        }
+        DateTerm lower = (DateTerm) terms[0];
+        DateTerm upper = (DateTerm) terms[1];
+        if (lower.getComparison() == ComparisonTerm.LT) {
+            lower = (DateTerm) terms[1];
+            upper = (DateTerm) terms[0];
+        }
+        if (lower.getComparison() != ComparisonTerm.GE || upper.getComparison() != ComparisonTerm.LT) {
+            return null;
+        }
+        boolean received = lower instanceof ReceivedDateTerm;
+        if (!received && !(lower instanceof SentDateTerm)) {
+            return null;
+        }
+        List operands = new ArrayList();
+        if (received) {
+            operands.add(new InternalDateMatch(lower.getComparison(), lower.getDate()));
+            operands.add(new InternalDateMatch(upper.getComparison(), upper.getDate()));
+        } else {
+            operands.add(new MessageMatch(lower));
+            operands.add(new MessageMatch(upper));
+        }
+        Node node = new Junction(operands, true);
+        RangeIndex rangeIndex = received ? index.internalDates : index.sentDates;
+        if (rangeIndex == null) {
+            return node;
+        }
+        long[] uids = rangeIndex.searchRange(lower.getDate().getTime(), upper.getDate().getTime());
+        return rangeIndex.isExact() ? (Node) new ExactMatch(uids) : new IndexedMatch(node, uids);
+    }
+
+    /**
+     * @param node Matches the criterion against a message.
+     */
+    private static Node range(RangeIndex index, int comparison, long operand, Node node) {
+        if (index == null) {
+            return node;
+        }
+        long[] uids = index.search(comparison, operand);
+        return index.isExact() ? (Node) new ExactMatch(uids) : new IndexedMatch(node, uids);
+    }
+
+    /**
+     * Operands all answered by indexes are combined into a single result.
+     */
+    private static Node junction(List operands, boolean and) {
+        long[] uids = null;
+        for (int i = 0; i < operands.size(); i++) {
+            if (!(operands.get(i) instanceof ExactMatch)) {
+                return new Junction(operands, and);
+            }
+            long[] operandUids = ((ExactMatch) operands.get(i)).uids;
+            if (uids == null) {
+                uids = operandUids;
+            } else {
+                uids = and ? Postings.intersect(uids, operandUids) : Postings.union(uids, operandUids);
+            }
+        }
+        return new ExactMatch(uids);
+    }
+
+    /**
+     * Collects the operands of nested terms of the same kind, so that they are all ordered together.
+     */
+    private static void flatten(SearchTerm term, boolean and, List operands, Indexes index) {
+        SearchTerm[] terms = null;
+        if (and && term instanceof AndTerm) {
+            terms = ((AndTerm) term).getTerms();
+        } else if (!and && term instanceof OrTerm) {
+            terms = ((OrTerm) term).getTerms();
+        }
+        if (terms == null) {
+            operands.add(compileTerm(term, index));
+            return;
+        }
+        for (int i = 0; i < terms.length; i++) {
+            flatten(terms[i], and, operands, index);
+        }
+    }
+
+    /**
+     * Compares like {@link ComparisonTerm} subclasses do.
+     */
+    static boolean compare(int comparison, long value, long operand) {
+        switch (comparison) {
+            case ComparisonTerm.LE:
+                return value <= operand;
+            case ComparisonTerm.LT:
+                return value < operand;
+            case ComparisonTerm.EQ:
+                return value == operand;
+            case ComparisonTerm.NE:
+                return value != operand;
+            case ComparisonTerm.GT:
+                return value > operand;
+            case ComparisonTerm.GE:
+                return value >= operand;
+            default:
+                return false;
+        }
+    }
+
+    private abstract static class Node {
+        final int cost;
+
+        Node(int cost) {
+            this.cost = cost;
+        }
+
+        abstract boolean matches(SimpleStoredMessage message) throws FolderException;
+    }
+
+    private static final class Junction extends Node {
+        private final Node[] operands;
+        private final boolean and;
+
+        Junction(List operands, boolean and) {
+            super(totalCost(operands));
+            this.operands = (Node[]) operands.toArray(new Node[operands.size()]);
+            // Stable, so operands of the same cost keep the order of the request
+            Arrays.sort(this.operands, BY_COST);
+            this.and = and;
+        }
+
+        private static int totalCost(List operands) {
+            int cost = 0;
+            for (int i = 0; i < operands.size(); i++) {
+                cost += ((Node) operands.get(i)).cost;
+            }
+            return cost;
+        }
+
+        boolean matches(SimpleStoredMessage message) throws FolderException {
+            for (int i = 0; i < operands.length; i++) {
+                if (operands[i].matches(message) != and) {
+                    return !and;
+                }
+            }
+            return and;
+        }
+    }
+
+    private static final class Not extends Node {
+        private final Node operand;
+
+        Not(Node operand) {
+            super(operand.cost);
+            this.operand = operand;
+        }
+
+        boolean matches(SimpleStoredMessage message) throws FolderException {
+            return !operand.matches(message);
+        }
+    }
+
+    /**
+     * Same semantics as {@link FlagTerm}: all of the flags are set, or none of them is.
+     */
+    private static final class FlagMatch extends Node {
+        private final int bits;
+        private final String[] userFlags;
+        private final boolean set;
+
+        FlagMatch(Flags flags, boolean set) {
+            super(COST_FLAGS);
+            this.bits = MessageFlags.toBits(flags);
+            this.userFlags = flags.getUserFlags();
+            this.set = set;
+        }
+
+        boolean matches(SimpleStoredMessage message) {
+            int messageBits = message.getFlagBits();
+            if (set ? (messageBits & bits) != bits : (messageBits & bits) != 0) {
+                return false;
+            }
+            for (int i = 0; i < userFlags.length; i++) {
+                if (message.hasUserFlag(userFlags[i]) != set) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class UidMatch extends Node {
+        private final UidSearchTerm term;
+
+        UidMatch(UidSearchTerm term) {
+            super(COST_FLAGS);
+            this.term = term;
+        }
+
+        boolean matches(SimpleStoredMessage message) {
+            return term.includes(message.getUid());
+        }
+    }
+
+    private static final class InternalDateMatch extends Node {
+        private final int comparison;
+        private final long time;
+
+        InternalDateMatch(int comparison, Date date) {
+            super(COST_DATE);
+            this.comparison = comparison;
+            this.time = date.getTime();
+        }
+
+        boolean matches(SimpleStoredMessage message) {
+            Date internalDate = message.getInternalDate();
+            return internalDate != null && compare(comparison, internalDate.getTime(), time);
+        }
+    }
+
+    /**
+     * Compares the RFC 822 size of the message, as reported by RFC822.SIZE.
+     */
+    private static final class SizeMatch extends Node {
+        private final SizeTerm term;
+
+        SizeMatch(SizeTerm term) {
+            super(COST_SIZE);
+            this.term = term;
+        }
+
+        boolean matches(SimpleStoredMessage message) throws FolderException {
+            try {
+                return compare(term.getComparison(), message.getSize(), term.getNumber());
+            } catch (FolderException e) {
+                // Size unknown without the raw message, let the parsed message answer
+                return term.match(message.loadMimeMessage());
+            }
+        }
+    }
+
+    private static final class MessageMatch extends Node {
+        private final SearchTerm term;
+
+        MessageMatch(SearchTerm term) {
+            super(COST_MESSAGE);
+            this.term = term;
+        }
+
+        boolean matches(SimpleStoredMessage message) throws FolderException {
+            return term.match(message.loadMimeMessage());
+        }
+    }
+
+    /**
+     * A criterion only matched against the messages found by an index.
+     */
+    private static final class IndexedMatch extends Node {
+        private final Node node;
+        private final long[] candidates;
+
+        IndexedMatch(Node node, long[] candidates) {
+            super(Math.min(node.cost, COST_INDEXED));
+            this.node = node;
+            this.candidates = candidates;
+        }
+
+        boolean matches(SimpleStoredMessage message) throws FolderException {
+            return Arrays.binarySearch(candidates, message.getUid()) >= 0 && node.matches(message);
+        }
+    }
+
+    /**
+     * Criteria answered by an index, matching the messages with the given UIDs.
+     */
+    private static final class ExactMatch extends Node {
+        private final long[] uids;
+
+        ExactMatch(long[] uids) {
+            super(COST_FLAGS);
+            this.uids = uids;
+        }
+
+        boolean matches(SimpleStoredMessage message) {
+            return Arrays.binarySearch(uids, message.getUid()) >= 0;
+        }
+    }
+
+    private static final class Indexes {
+        private final TextIndex textIndex;
+        private final HeaderIndex headerIndex;
+        private final FlagIndex flagIndex;
+        private final RangeIndex internalDates;
+        private final RangeIndex sentDates;
+        private final RangeIndex sizes;
+
+        Indexes(TextIndex textIndex, HeaderIndex headerIndex, FlagIndex flagIndex,
+                RangeIndex internalDates, RangeIndex sentDates, RangeIndex sizes) {
+            this.textIndex = textIndex;
+            this.headerIndex = headerIndex;
+            this.flagIndex = flagIndex;
+            this.internalDates = internalDates;
+            this.sentDates = sentDates;
+            this.sizes = sizes;
+        }
+
+        /**
+         * @return The candidates for a term from the first index covering it, null if none does.
+         */
+        long[] candidates(SearchTerm term) {
+            long[] candidates = headerIndex == null ? null : headerIndex.candidates(term);
+            if (candidates == null && textIndex != null && (term instanceof BodyTerm || term instanceof HeaderTerm)) {
+                candidates = textIndex.candidates(((StringTerm) term).getPattern());
+            }
+            return candidates;
+        }
+    }
+}
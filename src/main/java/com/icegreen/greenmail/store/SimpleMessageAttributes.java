@@ -36,7 +36,10 @@
 package com.icegreen.greenmail.store;
 
 
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
@@ -50,6 +53,7 @@ import jakarta.mail.MessagingException;
 import jakarta.mail.internet.AddressException;
 import jakarta.mail.internet.InternetAddress;
 import jakarta.mail.internet.MailDateFormat;
+import jakarta.mail.internet.MimeBodyPart;
 import jakarta.mail.internet.MimeMessage;
 import jakarta.mail.internet.MimeMultipart;
 import jakarta.mail.internet.MimePart;
@@ -84,6 +88,9 @@ public class SimpleMessageAttributes
     private final static boolean DEBUG = false;
     private final static String MULTIPART = "MULTIPART";
     private final static String MESSAGE = "MESSAGE";
+    // Immutable and thread safe, unlike SimpleDateFormat
+    private final static DateTimeFormatter INTERNAL_DATE_FORMAT =
+            DateTimeFormatter.ofPattern("dd-MMM-yyyy hh:mm:ss Z", Locale.ENGLISH);
 
     private int uid;
     private int messageSequenceNumber;
@@ -121,7 +128,11 @@ public class SimpleMessageAttributes
     SimpleMessageAttributes() {
     }
 
-    void setAttributesFor(MimeMessage msg) throws MessagingException {
+    /**
+     * @param raw        The message in RFC 822 format, which sizes and line counts are taken from.
+     * @param bodyOffset Where the body starts in the raw message.
+     */
+    void setAttributesFor(MimeMessage msg, byte[] raw, int bodyOffset) throws MessagingException {
         try {
             internalDate = msg.getSentDate();
         } catch (MessagingException me) {
@@ -135,9 +146,9 @@ public class SimpleMessageAttributes
          * mrogers
          * Internal Date Format must conform to RFC 3501
          */
-        internalDateString = new SimpleDateFormat("dd-MMM-yyyy hh:mm:ss Z", Locale.ENGLISH).format(internalDate);
+        internalDateString = INTERNAL_DATE_FORMAT.format(internalDate.toInstant().atZone(ZoneId.systemDefault()));
         interalDateEnvelopeString = new MailDateFormat().format(internalDate);
-        parseMimePart(msg);
+        parseMimePart(msg, raw, bodyOffset, raw.length);
         envelope = null;
         bodyStructure = null;
     }
@@ -151,7 +162,18 @@ public class SimpleMessageAttributes
      * TODO this is a mess, and should be completely revamped.
      */
     void parseMimePart(MimePart part) throws MessagingException {
-        size = GreenMailUtil.getBody(part).length();
+        byte[] body = getRawBody(part);
+        parseMimePart(part, body, 0, body.length);
+    }
+
+    /**
+     * Parses key data items from a part whose body has already been read.
+     *
+     * @param body The body of the part, as sent to clients, between bodyStart and bodyEnd.
+     */
+    void parseMimePart(MimePart part, byte[] body, int bodyStart, int bodyEnd) throws MessagingException {
+        size = bodyEnd - bodyStart;
+        lineCount = countLines(body, bodyStart, bodyEnd);
 
         // Section 1 - Message Headers
         if (part instanceof MimeMessage)
@@ -249,17 +271,6 @@ public class SimpleMessageAttributes
 //                getLogger().debug("Messaging Exception for getEncoding(): " + me);
         }
 
-        try {
-            // TODO this doesn't work
-            lineCount = getLineCount(part);
-        } catch (MessagingException me) {
-            me.printStackTrace();
-//            if (DEBUG) getLogger().debug("Messaging Exception for getLineCount(): " + me);
-        } catch (Exception e) {
-            e.printStackTrace();
-//            if (DEBUG) getLogger().debug("Exception for getLineCount(): " + e);
-        }
-
         // Recurse through any embedded parts
         if (primaryType.equalsIgnoreCase(MULTIPART)) {
             MimeMultipart container;
@@ -311,8 +322,40 @@ public class SimpleMessageAttributes
         }
     }
 
-    private int getLineCount(MimePart part) throws MessagingException {
-        return GreenMailUtil.getLineCount(GreenMailUtil.getBody(part));
+    /**
+     * @return The body of a part without decoding it, as sent to clients.
+     */
+    private byte[] getRawBody(MimePart part) throws MessagingException {
+        if (part instanceof MimeBodyPart) {
+            try {
+                InputStream in = ((MimeBodyPart) part).getRawInputStream();
+                try {
+                    return in.readAllBytes();
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                throw new MessagingException("Could not read body part", e);
+            }
+        }
+        return GreenMailUtil.getBodyAsBytes(part);
+    }
+
+    /**
+     * Counts lines like {@link java.io.BufferedReader#readLine()} would, a line ending
+     * with CRLF, CR or LF.
+     */
+    static int countLines(byte[] bytes, int start, int end) {
+        int lines = 0;
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == '\n' || (bytes[i] == '\r' && (i + 1 == end || bytes[i + 1] != '\n'))) {
+                lines++;
+            }
+        }
+        if (end > start && bytes[end - 1] != '\n' && bytes[end - 1] != '\r') {
+            lines++;
+        }
+        return lines;
     }
 
     /**
@@ -31,10 +31,19 @@
  */
 package com.icegreen.greenmail.store;
 
+import com.icegreen.greenmail.util.GreenMailUtil;
 import jakarta.mail.Flags;
 import jakarta.mail.MessagingException;
 import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.util.SharedByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 
 /**
  * A mail message with all of the extra stuff that IMAP requires.
@@ -46,11 +55,22 @@ import java.util.Date;
  */
 public class SimpleStoredMessage
         implements StoredMessage {
-    private MimeMessage mimeMessage;
-    private Flags flags;
+    // Held until the message is serialized, then only softly through parsedMessage, the raw
+    // message being the copy kept
+    private volatile MimeMessage mimeMessage;
+    private volatile SoftReference parsedMessage;
+    // System flags as MessageFlags bits, and the shared user flags or null if there are none.
+    // Changed by the folder holding its lock, read without locking.
+    private volatile int flagBits;
+    private volatile String[] userFlags;
     private Date internalDate;
     private long uid;
-    private SimpleMessageAttributes attributes;
+    private volatile SimpleMessageAttributes attributes;
+    // The RFC 822 form of the message, serialized once and shared by all readers
+    private volatile byte[] rawMessage;
+    private int size = -1;
+    private int bodyOffset;
+    private volatile MimePartTable partTable;
 
     public SimpleStoredMessage(MimeMessage mimeMessage, Date internalDate, long uid)
             throws MessagingException {
@@ -60,17 +80,141 @@ public class SimpleStoredMessage
     SimpleStoredMessage(MimeMessage mimeMessage, Flags flags,
                         Date internalDate, long uid) {
         this.mimeMessage = mimeMessage;
-        this.flags = flags;
+        if (flags != null) {
+            changeFlags(flags, 1);
+        }
         this.internalDate = internalDate;
         this.uid = uid;
     }
 
+    /**
+     * Once the message is serialized, the message given when it was stored is only softly
+     * held, and parsed again from the {@link #getRawMessage() raw message} if it was cleared.
+     */
     public MimeMessage getMimeMessage() {
-        return mimeMessage;
+        MimeMessage message = mimeMessage;
+        if (message != null) {
+            return message;
+        }
+        // Set before the raw message, null if there is no message
+        SoftReference reference = parsedMessage;
+        if (reference == null) {
+            return null;
+        }
+        message = (MimeMessage) reference.get();
+        if (message == null) {
+            // Shares the content with the raw message
+            message = GreenMailUtil.newMimeMessage(new SharedByteArrayInputStream(rawMessage));
+            parsedMessage = new SoftReference(message);
+        }
+        return message;
     }
 
+    /**
+     * Same as {@link #getMimeMessage()}, for the store code. Stores reading messages back
+     * from elsewhere report failures as a FolderException.
+     */
+    MimeMessage loadMimeMessage() throws FolderException {
+        return getMimeMessage();
+    }
+
+    /**
+     * @return A copy of the flags of the message. Changes to it do not affect the message,
+     *         flags are changed through the folder.
+     */
     public Flags getFlags() {
-        return flags;
+        return MessageFlags.toFlags(flagBits, userFlags);
+    }
+
+    /**
+     * @return The system flags of the message, as {@link MessageFlags} bits.
+     */
+    public int getFlagBits() {
+        return flagBits;
+    }
+
+    /**
+     * @param bits One or more {@link MessageFlags} bits.
+     * @return Whether all of the given flags are set.
+     */
+    public boolean hasFlags(int bits) {
+        return (flagBits & bits) == bits;
+    }
+
+    /**
+     * @return Whether the message has the given user flag, compared ignoring case as
+     *         {@link Flags#contains(String)} does.
+     */
+    public boolean hasUserFlag(String flag) {
+        String[] current = userFlags;
+        if (current != null) {
+            for (int i = 0; i < current.length; i++) {
+                if (current[i].equalsIgnoreCase(flag)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The user flags, or null if there is none. A change replaces the array, so it
+     *         can be kept to compare with the flags after a change.
+     */
+    String[] getUserFlags() {
+        return userFlags;
+    }
+
+    void setFlagBits(int bits) {
+        flagBits = bits;
+    }
+
+    /**
+     * Adds the given flags if sign is positive, removes them if it is negative, or else
+     * replaces the system flags with them. User flags are only added or removed.
+     */
+    void changeFlags(Flags flags, int sign) {
+        int bits = MessageFlags.toBits(flags);
+        if (sign > 0) {
+            flagBits |= bits;
+        } else if (sign < 0) {
+            flagBits &= ~bits;
+        } else {
+            flagBits = bits;
+        }
+        String[] changed = flags.getUserFlags();
+        if (changed.length > 0) {
+            userFlags = changeUserFlags(userFlags, changed, sign >= 0);
+        }
+    }
+
+    /**
+     * Keywords are case-insensitive, as in IMAP: a message keeps the spelling a keyword was
+     * first set with, and any spelling removes it.
+     */
+    private static String[] changeUserFlags(String[] current, String[] changed, boolean add) {
+        List result = new ArrayList();
+        if (current != null) {
+            result.addAll(Arrays.asList(current));
+        }
+        for (int i = 0; i < changed.length; i++) {
+            int existing = indexOfKeyword(result, changed[i]);
+            if (add && existing < 0) {
+                result.add(MessageFlags.internKeyword(changed[i]));
+            } else if (!add && existing >= 0) {
+                result.remove(existing);
+            }
+        }
+        return result.isEmpty() ? null : (String[]) result.toArray(new String[result.size()]);
+    }
+
+    private static int indexOfKeyword(List keywords, String keyword) {
+        for (int i = 0; i < keywords.size(); i++) {
+            if (((String) keywords.get(i)).equalsIgnoreCase(keyword)) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     public Date getInternalDate() {
@@ -81,15 +225,130 @@ public class SimpleStoredMessage
         return uid;
     }
 
+    void setUid(long uid) {
+        this.uid = uid;
+    }
+
+    /**
+     * The attributes are parsed once, by the first caller. Callers arriving while they are being
+     * parsed, for example by {@link InMemoryStore#setAttributePrecomputeThreads precomputing}, wait for them.
+     */
     public MailMessageAttributes getAttributes() throws FolderException {
-        if (attributes == null) {
-            attributes = new SimpleMessageAttributes();
-            try {
-                attributes.setAttributesFor(mimeMessage);
-            } catch (MessagingException e) {
-                throw new FolderException("Could not parse mime message." + e.getMessage());
+        SimpleMessageAttributes messageAttributes = attributes;
+        if (messageAttributes == null) {
+            synchronized (this) {
+                messageAttributes = attributes;
+                if (messageAttributes == null) {
+                    messageAttributes = new SimpleMessageAttributes();
+                    try {
+                        messageAttributes.setAttributesFor(loadMimeMessage(), getRawMessage(), getBodyOffset());
+                    } catch (MessagingException e) {
+                        throw new FolderException("Could not parse mime message." + e.getMessage());
+                    }
+                    attributes = messageAttributes;
+                }
+            }
+        }
+        return messageAttributes;
+    }
+
+    /**
+     * The message as it is sent to clients, in RFC 822 format. It is serialized once, and
+     * the same array is returned to every caller, which must not modify it.
+     */
+    public byte[] getRawMessage() throws FolderException {
+        byte[] raw = rawMessage;
+        if (raw == null) {
+            synchronized (this) {
+                raw = rawMessage;
+                if (raw == null) {
+                    MimeMessage message = mimeMessage;
+                    raw = toRawMessage(message);
+                    size = raw.length;
+                    bodyOffset = findBodyOffset(raw);
+                    if (message != null) {
+                        parsedMessage = new SoftReference(message);
+                    }
+                    rawMessage = raw;
+                    mimeMessage = null;
+                }
+            }
+        }
+        return raw;
+    }
+
+    /**
+     * Writes a range of the {@link #getRawMessage() raw message} to the given stream.
+     * Stores keeping messages outside of memory read only the requested range.
+     *
+     * @param out    The stream to write to.
+     * @param offset The offset of the range in the raw message.
+     * @param length The length of the range.
+     * @throws IOException if the stream fails.
+     */
+    public void writeRawMessage(OutputStream out, int offset, int length) throws FolderException, IOException {
+        out.write(getRawMessage(), offset, length);
+    }
+
+    /**
+     * @return The size in bytes of the {@link #getRawMessage() raw message}.
+     */
+    public int getSize() throws FolderException {
+        if (rawMessage == null) {
+            getRawMessage();
+        }
+        return size;
+    }
+
+    /**
+     * @return The index in the {@link #getRawMessage() raw message} where the body starts,
+     *         just after the empty line ending the headers.
+     */
+    public int getBodyOffset() throws FolderException {
+        if (rawMessage == null) {
+            getRawMessage();
+        }
+        return bodyOffset;
+    }
+
+    /**
+     * The offsets of the MIME parts in the {@link #getRawMessage() raw message}, found once
+     * and kept for the life of the message.
+     */
+    public MimePartTable getPartTable() throws FolderException {
+        MimePartTable table = partTable;
+        if (table == null) {
+            table = new MimePartTable(getRawMessage());
+            partTable = table;
+        }
+        return table;
+    }
+
+    static byte[] toRawMessage(MimeMessage message) throws FolderException {
+        if (message == null) {
+            return new byte[0];
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            message.writeTo(out);
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new FolderException("Could not serialize mime message. " + e.getMessage());
+        } catch (MessagingException e) {
+            throw new FolderException("Could not serialize mime message. " + e.getMessage());
+        }
+    }
+
+    static int findBodyOffset(byte[] raw) {
+        if (raw.length >= 2 && raw[0] == '\r' && raw[1] == '\n') {
+            // No headers
+            return 2;
+        }
+        for (int i = 0; i + 3 < raw.length; i++) {
+            if (raw[i] == '\r' && raw[i + 1] == '\n' && raw[i + 2] == '\r' && raw[i + 3] == '\n') {
+                return i + 4;
             }
         }
-        return attributes;
+        return raw.length;
     }
 }
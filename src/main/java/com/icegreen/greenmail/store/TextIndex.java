@@ -0,0 +1,393 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import jakarta.mail.Header;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Part;
+import jakarta.mail.Session;
+import jakarta.mail.internet.ContentType;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.internet.MimePart;
+import jakarta.mail.internet.MimePartDataSource;
+import jakarta.mail.internet.MimeUtility;
+
+/**
+ * An inverted index of the words in the messages of a folder, narrowing down the messages a
+ * BODY, TEXT or HEADER search has to match.
+ * <p/>
+ * A word is a run of letters and digits, case folded as {@link String#regionMatches(boolean, int, String, int, int)}
+ * does. The index holds the words of the header values and of the <code>text/*</code> parts of
+ * each message, decoded as {@link jakarta.mail.search.BodyTerm} decodes them. A search string
+ * can only be found in a message holding all of its words, the first and last of which may be
+ * part of a longer word. Messages that could not be parsed are candidates for every search.
+ * The words containing a single search word are found through the trigrams of the words,
+ * only searches for one or two characters scan all the words.
+ * <p/>
+ * Not thread safe, the folder changes the index under its write lock and searches under its read lock.
+ */
+final class TextIndex {
+    /**
+     * The words of a message that could not be parsed.
+     */
+    static final String[] UNPARSED = new String[0];
+    private static final String[] NO_WORDS = new String[0];
+    private static final int MAX_DEPTH = 64;
+    private static final int TRIGRAM_LENGTH = 3;
+
+    // Rough object sizes of a 64 bit JVM with compressed references, for memory accounting
+    private static final int TREE_ENTRY_SIZE = 40;
+    private static final int HASH_ENTRY_SIZE = 36;
+    private static final int OBJECT_SIZE = 16;
+    private static final int STRING_SIZE = 40;
+
+    private static final Comparator BY_SIZE = new Comparator() {
+        public int compare(Object o1, Object o2) {
+            return Postings.size((Postings[]) o1) - Postings.size((Postings[]) o2);
+        }
+    };
+
+    // Word -> postings, sorted to look up the words starting with a prefix
+    private final TreeMap words = new TreeMap();
+    // UID -> the words of the message, to remove it from the postings
+    private final Map messageWords = new HashMap();
+    // Three characters -> the words containing them, to look up the words containing a string
+    private final Map trigrams = new HashMap();
+    private final Postings unparsed = new Postings();
+
+    /**
+     * Extracts the words of a message, without touching the index.
+     *
+     * @return The distinct words, {@link #UNPARSED} when the message cannot be parsed.
+     */
+    static String[] tokenize(MimeMessage message) {
+        if (message == null) {
+            return NO_WORDS;
+        }
+        Set tokens = new HashSet();
+        try {
+            Enumeration headers = message.getAllHeaders();
+            while (headers.hasMoreElements()) {
+                addWords(((Header) headers.nextElement()).getValue(), tokens);
+            }
+            addPartWords(message, tokens, 0);
+        } catch (MessagingException e) {
+            return UNPARSED;
+        } catch (IOException e) {
+            return UNPARSED;
+        } catch (RuntimeException e) {
+            return UNPARSED;
+        }
+        return (String[]) tokens.toArray(new String[tokens.size()]);
+    }
+
+    /**
+     * Extracts the distinct words of a text, such as a single header value.
+     */
+    static String[] tokenizeText(String text) {
+        Set tokens = new HashSet();
+        addWords(text, tokens);
+        return (String[]) tokens.toArray(new String[tokens.size()]);
+    }
+
+    private static void addPartWords(Part part, Set tokens, int depth) throws MessagingException, IOException {
+        if (depth > MAX_DEPTH) {
+            throw new MessagingException("Message nested too deeply");
+        }
+        if (part.isMimeType("text/*")) {
+            // Decoded like the text content handlers do
+            String charset = new ContentType(part.getContentType()).getParameter("charset");
+            charset = MimeUtility.javaCharset(charset == null ? "us-ascii" : charset);
+            addWords(new String(readAll(part.getInputStream()), charset), tokens);
+        } else if (part.isMimeType("multipart/*")) {
+            MimeMultipart multipart = new MimeMultipart(new MimePartDataSource((MimePart) part));
+            for (int i = 0; i < multipart.getCount(); i++) {
+                addPartWords(multipart.getBodyPart(i), tokens, depth + 1);
+            }
+        } else if (part.isMimeType("message/rfc822")) {
+            addPartWords(new MimeMessage(EnclosedMessages.SESSION, part.getInputStream()), tokens, depth + 1);
+        }
+    }
+
+    /**
+     * Holds the session parsing enclosed messages, created with the first of them so that
+     * loading the index does not need a mail implementation until one is found.
+     */
+    private static final class EnclosedMessages {
+        static final Session SESSION = Session.getInstance(new Properties());
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void addWords(String text, Set tokens) {
+        if (text == null) {
+            return;
+        }
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && !Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            if (i > start) {
+                tokens.add(fold(text, start, i));
+            }
+        }
+    }
+
+    /**
+     * Folds the case of characters so that strings equal ignoring case, as compared by
+     * {@link String#regionMatches(boolean, int, String, int, int)}, are equal.
+     */
+    static String fold(String text, int start, int end) {
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            chars[i - start] = Character.toLowerCase(Character.toUpperCase(text.charAt(i)));
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Adds the words of a message.
+     *
+     * @param tokens The words from {@link #tokenize(MimeMessage)}.
+     */
+    void add(long uid, String[] tokens) {
+        if (tokens == UNPARSED) {
+            unparsed.add(uid);
+            messageWords.put(Long.valueOf(uid), UNPARSED);
+            return;
+        }
+        // Words already in the index are shared, a message only holds references to them
+        String[] shared = new String[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            Postings.Keyed postings = (Postings.Keyed) words.get(tokens[i]);
+            if (postings == null) {
+                postings = new Postings.Keyed(tokens[i]);
+                words.put(tokens[i], postings);
+                addTrigrams(postings.key);
+            }
+            postings.add(uid);
+            shared[i] = postings.key;
+        }
+        messageWords.put(Long.valueOf(uid), shared);
+    }
+
+    void remove(long uid) {
+        String[] tokens = (String[]) messageWords.remove(Long.valueOf(uid));
+        if (tokens == null) {
+            return;
+        }
+        if (tokens == UNPARSED) {
+            unparsed.remove(uid);
+            return;
+        }
+        for (int i = 0; i < tokens.length; i++) {
+            Postings postings = (Postings) words.get(tokens[i]);
+            postings.remove(uid);
+            if (postings.size() == 0) {
+                words.remove(tokens[i]);
+                removeTrigrams(tokens[i]);
+            }
+        }
+    }
+
+    void clear() {
+        words.clear();
+        messageWords.clear();
+        trigrams.clear();
+        unparsed.clear();
+    }
+
+    private void addTrigrams(String word) {
+        for (int i = 0; i + TRIGRAM_LENGTH <= word.length(); i++) {
+            String trigram = word.substring(i, i + TRIGRAM_LENGTH);
+            Set containing = (Set) trigrams.get(trigram);
+            if (containing == null) {
+                containing = new HashSet();
+                trigrams.put(trigram, containing);
+            }
+            containing.add(word);
+        }
+    }
+
+    private void removeTrigrams(String word) {
+        for (int i = 0; i + TRIGRAM_LENGTH <= word.length(); i++) {
+            String trigram = word.substring(i, i + TRIGRAM_LENGTH);
+            Set containing = (Set) trigrams.get(trigram);
+            if (containing != null) {
+                containing.remove(word);
+                if (containing.isEmpty()) {
+                    trigrams.remove(trigram);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the messages that may contain a string, which still have to be matched against it.
+     *
+     * @return The UIDs of the candidates in ascending order, or null if the string has no
+     *         word and any message may contain it.
+     */
+    long[] candidates(String pattern) {
+        List patternWords = new ArrayList();
+        List openStarts = new ArrayList();
+        List openEnds = new ArrayList();
+        int length = pattern.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && !Character.isLetterOrDigit(pattern.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(pattern.charAt(i))) {
+                i++;
+            }
+            if (i > start) {
+                patternWords.add(fold(pattern, start, i));
+                openStarts.add(Boolean.valueOf(start == 0));
+                openEnds.add(Boolean.valueOf(i == length));
+            }
+        }
+        if (patternWords.isEmpty()) {
+            return null;
+        }
+
+        List lookups = new ArrayList();
+        if (patternWords.size() == 1) {
+            lookups.add(lookupContaining((String) patternWords.get(0)));
+        } else {
+            // The first word may end a longer word, which would take a scan of all the words to
+            // look up. The other words narrow the candidates down well enough on their own.
+            for (int j = 1; j < patternWords.size(); j++) {
+                String word = (String) patternWords.get(j);
+                if (((Boolean) openEnds.get(j)).booleanValue()) {
+                    lookups.add(words.subMap(word, word + Character.MAX_VALUE).values().toArray(new Postings[0]));
+                } else {
+                    Postings postings = (Postings) words.get(word);
+                    lookups.add(postings == null ? new Postings[0] : new Postings[]{postings});
+                }
+            }
+        }
+
+        // Starts from the fewest UIDs, the others are only checked for the remaining candidates
+        Collections.sort(lookups, BY_SIZE);
+        long[] result = Postings.toArray((Postings[]) lookups.get(0));
+        for (int j = 1; j < lookups.size() && result.length > 0; j++) {
+            result = Postings.retain(result, (Postings[]) lookups.get(j));
+        }
+        return unparsed.size() == 0 ? result : Postings.union(result, unparsed.toArray());
+    }
+
+    private Postings[] lookupContaining(String word) {
+        Collection containing = words.keySet();
+        if (word.length() >= TRIGRAM_LENGTH) {
+            // Only the words holding the rarest trigram of the word can contain it
+            for (int i = 0; i + TRIGRAM_LENGTH <= word.length(); i++) {
+                Set holding = (Set) trigrams.get(word.substring(i, i + TRIGRAM_LENGTH));
+                if (holding == null) {
+                    return new Postings[0];
+                }
+                if (holding.size() < containing.size()) {
+                    containing = holding;
+                }
+            }
+        }
+        List matching = new ArrayList();
+        Iterator iterator = containing.iterator();
+        while (iterator.hasNext()) {
+            String candidate = (String) iterator.next();
+            if (candidate.indexOf(word) >= 0) {
+                matching.add(words.get(candidate));
+            }
+        }
+        return (Postings[]) matching.toArray(new Postings[matching.size()]);
+    }
+
+    int getWordCount() {
+        return words.size();
+    }
+
+    /**
+     * @return An estimate of the heap used by the index, in bytes.
+     */
+    long getMemoryUsage() {
+        long bytes = 0;
+        Iterator iterator = words.values().iterator();
+        while (iterator.hasNext()) {
+            Postings.Keyed postings = (Postings.Keyed) iterator.next();
+            bytes += TREE_ENTRY_SIZE + STRING_SIZE + 2L * postings.key.length() + 4 + postings.getMemoryUsage();
+        }
+        iterator = messageWords.values().iterator();
+        while (iterator.hasNext()) {
+            String[] tokens = (String[]) iterator.next();
+            bytes += HASH_ENTRY_SIZE + OBJECT_SIZE + 8 + OBJECT_SIZE + 4L * tokens.length;
+        }
+        iterator = trigrams.values().iterator();
+        while (iterator.hasNext()) {
+            Set containing = (Set) iterator.next();
+            // The entry, its key, and the set with its own map
+            bytes += HASH_ENTRY_SIZE + STRING_SIZE + 2 * TRIGRAM_LENGTH + 4 * OBJECT_SIZE
+                    + (long) HASH_ENTRY_SIZE * containing.size();
+        }
+        return bytes + unparsed.getMemoryUsage();
+    }
+}
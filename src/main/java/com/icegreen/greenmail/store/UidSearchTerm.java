@@ -0,0 +1,63 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import jakarta.mail.Message;
+import jakarta.mail.search.SearchTerm;
+
+/**
+ * Search term for the <code>UID &lt;sequence set&gt;</code> search key. UIDs are not part of
+ * a {@link Message}, the term is evaluated by the folder against its stored messages.
+ */
+public class UidSearchTerm extends SearchTerm {
+    private static final long serialVersionUID = 1L;
+
+    private final long[] uidRanges;
+
+    /**
+     * @param uidRanges The UID set, as pairs of the lowest and highest UID of each range,
+     *                  with {@link Long#MAX_VALUE} standing for "*".
+     */
+    public UidSearchTerm(long[] uidRanges) {
+        this.uidRanges = uidRanges;
+    }
+
+    public long[] getUidRanges() {
+        return uidRanges;
+    }
+
+    public boolean includes(long uid) {
+        return IdRanges.includes(uidRanges, uid);
+    }
+
+    /**
+     * A plain message has no UID, so it never matches.
+     */
+    @Override
+    public boolean match(Message msg) {
+        return false;
+    }
+}
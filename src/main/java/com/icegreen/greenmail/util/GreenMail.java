@@ -37,7 +37,9 @@ import com.icegreen.greenmail.smtp.SmtpServer;
 import com.icegreen.greenmail.user.GreenMailUser;
 import com.icegreen.greenmail.user.UserException;
 import com.icegreen.greenmail.imap.ImapServer;
+import com.icegreen.greenmail.imap.NioImapServer;
 import com.icegreen.greenmail.store.SimpleStoredMessage;
+import com.icegreen.greenmail.store.Store;
 
 import jakarta.mail.internet.MimeMessage;
 import java.util.HashMap;
@@ -75,7 +77,21 @@ public class GreenMail {
      * @param config
      */
     public GreenMail(ServerSetup[] config) {
-        managers = new Managers();
+        this(config, new Managers());
+    }
+
+    /**
+     * Call this constructor if you want the servers to use another store, for example a
+     * {@link com.icegreen.greenmail.store.FileStore} to receive more mail than fits in memory
+     * @param config
+     * @param store
+     */
+    public GreenMail(ServerSetup[] config, Store store) {
+        this(config, new Managers(store));
+    }
+
+    private GreenMail(ServerSetup[] config, Managers managers) {
+        this.managers = managers;
         services = new HashMap();
         for (int i = 0; i < config.length; i++) {
             ServerSetup setup = config[i];
@@ -88,7 +104,11 @@ public class GreenMail {
             } else if (protocol.startsWith(ServerSetup.PROTOCOL_POP3)) {
                 services.put(protocol, new Pop3Server(setup, managers));
             } else if (protocol.startsWith(ServerSetup.PROTOCOL_IMAP)) {
-                services.put(protocol, new ImapServer(setup, managers));
+                if (setup.isNonBlocking()) {
+                    services.put(protocol, new NioImapServer(setup, managers));
+                } else {
+                    services.put(protocol, new ImapServer(setup, managers));
+                }
             }
         }
     }
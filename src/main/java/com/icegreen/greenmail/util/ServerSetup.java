@@ -76,17 +76,47 @@ public class ServerSetup {
     private final int port;
     private final String bindAddress;
     private final String protocol;
+    private final boolean nonBlocking;
+    private final boolean virtualThreads;
 
     public ServerSetup(int port, String bindAddress, String protocol) {
+        this(port, bindAddress, protocol, false);
+    }
+
+    /**
+     * @param nonBlocking whether the server should serve its connections with non blocking IO
+     *                    instead of a thread per connection. Only supported by plain IMAP.
+     */
+    public ServerSetup(int port, String bindAddress, String protocol, boolean nonBlocking) {
+        this(port, bindAddress, protocol, nonBlocking, false);
+    }
+
+    /**
+     * @param nonBlocking    whether the server should serve its connections with non blocking IO
+     *                       instead of a thread per connection. Only supported by plain IMAP.
+     * @param virtualThreads whether the connection handlers should run on virtual threads
+     *                       instead of platform threads. Requires Java 21.
+     */
+    public ServerSetup(int port, String bindAddress, String protocol, boolean nonBlocking, boolean virtualThreads) {
         this.port = port;
         this.bindAddress = bindAddress;
         this.protocol = protocol;
+        this.nonBlocking = nonBlocking;
+        this.virtualThreads = virtualThreads;
     }
 
     public boolean isSecure() {
         return protocol.endsWith("s");
     }
 
+    public boolean isNonBlocking() {
+        return nonBlocking;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
     public String getProtocol() {
         return protocol;
     }
@@ -0,0 +1,167 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetup;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HandlerExecutorTest {
+    private static final String STARTER_THREAD = "started reflectively";
+
+    private GreenMail greenMail;
+
+    @After
+    public void tearDown()
+    {
+        if (greenMail != null) {
+            greenMail.stop();
+        }
+    }
+
+    @Test
+    public void testVirtualThreadsRoundTrip() throws Exception
+    {
+        int port = start(true);
+        HandlerExecutor expected = HandlerExecutor.isVirtualThreadsSupported()
+                ? HandlerExecutor.VIRTUAL_THREADS : HandlerExecutor.PLATFORM_THREADS;
+        assertSame(expected, greenMail.getImap().getHandlerExecutor());
+        loginAndSelect(port);
+    }
+
+    @Test
+    public void testReflectiveStartRoundTrip() throws Exception
+    {
+        int port = start(false);
+        // The path virtual threads take, through a method every JVM has
+        Method start = Starter.class.getMethod("startVirtualThread", new Class[]{Runnable.class});
+        greenMail.getImap().setHandlerExecutor(new HandlerExecutor.ReflectiveExecutor(start));
+        Starter.started = new CountDownLatch(1);
+        loginAndSelect(port);
+        assertTrue(Starter.started.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testReflectiveStartFailure() throws Exception
+    {
+        Method failing = Starter.class.getMethod("fail", new Class[]{Runnable.class});
+        try {
+            new HandlerExecutor.ReflectiveExecutor(failing).execute(new Thread());
+            fail("Expected an IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertEquals("no threads", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testFallbackWithoutVirtualThreads() throws Exception
+    {
+        assertNull(HandlerExecutor.findStartVirtualThread(Object.class));
+        ServerSetup virtual = new ServerSetup(0, null, ServerSetup.PROTOCOL_IMAP, false, true);
+        assertSame(HandlerExecutor.PLATFORM_THREADS, HandlerExecutor.forSetup(virtual, false));
+        assertSame(HandlerExecutor.VIRTUAL_THREADS, HandlerExecutor.forSetup(virtual, true));
+        ServerSetup platform = new ServerSetup(0, null, ServerSetup.PROTOCOL_IMAP);
+        assertSame(HandlerExecutor.PLATFORM_THREADS, HandlerExecutor.forSetup(platform, true));
+    }
+
+    private int start(boolean virtualThreads) throws Exception
+    {
+        ServerSocket probe = new ServerSocket(0);
+        int port = probe.getLocalPort();
+        probe.close();
+        greenMail = new GreenMail(new ServerSetup[]{
+                new ServerSetup(port, null, ServerSetup.PROTOCOL_IMAP, false, virtualThreads)});
+        greenMail.start();
+        greenMail.setUser("user@localhost", "user", "secret");
+        return port;
+    }
+
+    private static void loginAndSelect(int port) throws Exception
+    {
+        Socket socket = null;
+        for (int attempt = 0; socket == null; attempt++) {
+            try {
+                socket = new Socket("localhost", port);
+            } catch (IOException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+        try {
+            socket.setSoTimeout(10000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            OutputStream out = socket.getOutputStream();
+            assertTrue(in.readLine().startsWith("* OK IMAP4rev1"));
+            out.write("a1 LOGIN user secret\r\na2 SELECT INBOX\r\n".getBytes("US-ASCII"));
+            out.flush();
+            assertEquals("a1 OK LOGIN completed.", in.readLine());
+            String line = in.readLine();
+            while (line.startsWith("* ")) {
+                line = in.readLine();
+            }
+            assertTrue(line, line.startsWith("a2 OK [READ-WRITE] SELECT completed"));
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Stands in for Thread, which has no startVirtualThread method before Java 21.
+     */
+    public static class Starter {
+        private static volatile CountDownLatch started;
+
+        public static Thread startVirtualThread(Runnable task) {
+            Thread thread = new Thread(task, STARTER_THREAD);
+            thread.start();
+            started.countDown();
+            return thread;
+        }
+
+        public static Thread fail(Runnable task) {
+            throw new IllegalStateException("no threads");
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.imap;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.icegreen.greenmail.HandlerExecutor;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetup;
+
+/**
+ * Compares the ways of running IMAP connections: a platform thread per connection,
+ * a virtual thread per connection and the non blocking {@link NioImapServer}.
+ * For every connection count it opens that many connections, reports live threads,
+ * heap and resident memory while they are idle, and then measures NOOP round trips
+ * per second with all connections active.
+ * <p/>
+ * Client and server run in the same JVM, so every connection takes two file descriptors.
+ * Raise the open files limit accordingly before running with large counts. Virtual threads
+ * are skipped when the JVM does not support them (before Java 21).
+ * <p/>
+ * Not a unit test, run the main method manually:
+ * <pre>java com.icegreen.greenmail.imap.HandlerExecutionBenchmark [connections,...]</pre>
+ * Defaults to 1000,10000,50000 connections.
+ */
+public class HandlerExecutionBenchmark {
+
+    private static final String[] MODES = {"platform", "virtual", "nio"};
+    private static final int CLIENT_THREADS = 8;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        String counts = args.length > 0 ? args[0] : "1000,10000,50000";
+        System.out.println("mode      connections  threads  heap(MB)  rss(MB)  connect(ms)  noop/s");
+        String[] split = counts.split(",");
+        for (int i = 0; i < split.length; i++) {
+            int connections = Integer.parseInt(split[i].trim());
+            for (int m = 0; m < MODES.length; m++) {
+                if (MODES[m].equals("virtual") && !HandlerExecutor.isVirtualThreadsSupported()) {
+                    System.out.println(pad("virtual", 10) + "not supported by this JVM");
+                    continue;
+                }
+                run(MODES[m], connections);
+            }
+        }
+    }
+
+    private static void run(String mode, int connections) throws Exception {
+        int port = freePort();
+        ServerSetup setup = new ServerSetup(port, null, ServerSetup.PROTOCOL_IMAP,
+                mode.equals("nio"), mode.equals("virtual"));
+        GreenMail greenMail = new GreenMail(new ServerSetup[]{setup});
+        greenMail.start();
+        final List sockets = new ArrayList(connections);
+        try {
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < connections; i++) {
+                Socket socket = connect(port);
+                readLine(socket.getInputStream());
+                sockets.add(socket);
+            }
+            long connect = System.currentTimeMillis() - start;
+
+            Thread.sleep(500);
+            System.gc();
+            Runtime runtime = Runtime.getRuntime();
+            long heap = (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024);
+            int threads = Thread.activeCount();
+
+            Thread[] clients = new Thread[CLIENT_THREADS];
+            final IOException[] failure = new IOException[1];
+            start = System.currentTimeMillis();
+            for (int t = 0; t < clients.length; t++) {
+                final int offset = t;
+                clients[t] = new Thread() {
+                    public void run() {
+                        try {
+                            for (int round = 0; round < ROUNDS; round++) {
+                                for (int i = offset; i < sockets.size(); i += CLIENT_THREADS) {
+                                    Socket socket = (Socket) sockets.get(i);
+                                    OutputStream out = socket.getOutputStream();
+                                    out.write("a NOOP\r\n".getBytes("US-ASCII"));
+                                    out.flush();
+                                    readLine(socket.getInputStream());
+                                }
+                            }
+                        } catch (IOException e) {
+                            failure[0] = e;
+                        }
+                    }
+                };
+                clients[t].start();
+            }
+            for (int t = 0; t < clients.length; t++) {
+                clients[t].join();
+            }
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+            System.out.println(pad(mode, 10) + pad(String.valueOf(connections), 13)
+                    + pad(String.valueOf(threads), 9) + pad(String.valueOf(heap), 10)
+                    + pad(String.valueOf(residentMegabytes()), 9) + pad(String.valueOf(connect), 13)
+                    + (long) connections * ROUNDS * 1000 / elapsed);
+        } finally {
+            for (int i = 0; i < sockets.size(); i++) {
+                ((Socket) sockets.get(i)).close();
+            }
+            greenMail.stop();
+            Thread.sleep(1000);
+            System.gc();
+        }
+    }
+
+    private static Socket connect(int port) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return new Socket("localhost", port);
+            } catch (IOException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket probe = new ServerSocket(0);
+        int port = probe.getLocalPort();
+        probe.close();
+        return port;
+    }
+
+    private static void readLine(InputStream in) throws IOException {
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new IOException("Connection closed");
+            }
+        }
+    }
+
+    /**
+     * @return the resident set size of this process, or -1 where /proc is not available.
+     */
+    private static long residentMegabytes() {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("VmRSS:")) {
+                        return Long.parseLong(line.substring(6).trim().split("\\s+")[0]) / 1024;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException ignored) {
+            //ignored
+        }
+        return -1;
+    }
+
+    private static String pad(String value, int width) {
+        StringBuffer buffer = new StringBuffer(value);
+        while (buffer.length() < width) {
+            buffer.append(' ');
+        }
+        return buffer.toString();
+    }
+}
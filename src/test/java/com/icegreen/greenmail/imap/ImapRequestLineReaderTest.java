@@ -0,0 +1,83 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.imap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ImapRequestLineReaderTest {
+
+    @Test
+    public void testConsumeLongLine() throws Exception
+    {
+        LongLineStream input = new LongLineStream(10 * 1024 * 1024, "a2 NOOP\r\n");
+        ImapRequestLineReader reader = new ImapRequestLineReader(input, new ByteArrayOutputStream());
+        reader.consumeLine();
+        assertEquals('a', reader.nextChar());
+        assertEquals(2, reader.lengthUntil(" "));
+        assertEquals("a2", reader.consume(2));
+        // Read in chunks no larger than the initial buffer
+        assertTrue(String.valueOf(input.largestRead), input.largestRead <= 4096);
+    }
+
+    /**
+     * A line of the given length, followed by the given text.
+     */
+    private static class LongLineStream extends InputStream {
+        private final long lineLength;
+        private final byte[] rest;
+        private long position;
+        private int largestRead;
+
+        LongLineStream(long lineLength, String rest) throws Exception
+        {
+            this.lineLength = lineLength;
+            this.rest = ("\n" + rest).getBytes("US-ASCII");
+        }
+
+        public int read()
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0];
+        }
+
+        public int read(byte[] b, int off, int len)
+        {
+            largestRead = Math.max(largestRead, len);
+            int count = 0;
+            while (count < len && position < lineLength + rest.length) {
+                b[off + count++] = position < lineLength ? (byte) 'x' : rest[(int) (position - lineLength)];
+                position++;
+            }
+            return count == 0 ? -1 : count;
+        }
+    }
+}
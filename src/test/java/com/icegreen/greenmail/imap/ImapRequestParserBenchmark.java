@@ -0,0 +1,119 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.imap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.icegreen.greenmail.imap.commands.CommandParser;
+
+/**
+ * Times parsing a pipelined stream of typical requests (LOGIN, SELECT, FETCH, STORE and
+ * APPEND with a literal) with {@link CommandParser} on a single {@link ImapRequestLineReader},
+ * and counts the reads reaching the underlying stream. On a socket every one of those
+ * reads is a system call.
+ * <p/>
+ * Not a unit test, run the main method manually:
+ * <pre>java com.icegreen.greenmail.imap.ImapRequestParserBenchmark</pre>
+ */
+public class ImapRequestParserBenchmark {
+
+    private static final int REQUESTS = 200000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        String literal = "Subject: benchmark\r\nFrom: a@localhost\r\n\r\nA short message body.\r\n";
+        String[] requests = {
+                "a1 LOGIN \"user@localhost\" \"secret\"\r\n",
+                "a2 SELECT \"INBOX\"\r\n",
+                "a3 FETCH 1:100,200:* (FLAGS UID RFC822.SIZE BODY.PEEK[HEADER.FIELDS (Subject From)])\r\n",
+                "a4 STORE 1:50 +FLAGS (\\Seen \\Flagged)\r\n",
+                "a5 APPEND INBOX {" + literal.length() + "+}\r\n" + literal + "\r\n"
+        };
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < REQUESTS; i++) {
+            stream.write(requests[i % requests.length].getBytes("US-ASCII"));
+        }
+        byte[] data = stream.toByteArray();
+        System.out.println(REQUESTS + " requests, " + data.length + " bytes");
+
+        CommandParser parser = new CommandParser();
+        OutputStream sink = new ByteArrayOutputStream();
+        for (int round = 0; round < ROUNDS; round++) {
+            CountingInputStream input = new CountingInputStream(new ByteArrayInputStream(data));
+            ImapRequestLineReader reader = new ImapRequestLineReader(input, sink);
+            long start = System.nanoTime();
+            int checksum = 0;
+            for (int i = 0; i < REQUESTS; i++) {
+                checksum += parser.tag(reader).length();
+                String command = parser.atom(reader);
+                if (command.equals("LOGIN")) {
+                    checksum += parser.astring(reader).length() + parser.astring(reader).length();
+                    parser.endLine(reader);
+                } else if (command.equals("SELECT")) {
+                    checksum += parser.mailbox(reader).length();
+                    parser.endLine(reader);
+                } else if (command.equals("FETCH")) {
+                    checksum += parser.parseIdRange(reader).length;
+                } else if (command.equals("STORE")) {
+                    checksum += parser.parseIdRange(reader).length;
+                    checksum += parser.atom(reader).length();
+                    checksum += parser.flagList(reader).getSystemFlags().length;
+                    parser.endLine(reader);
+                } else if (command.equals("APPEND")) {
+                    checksum += parser.mailbox(reader).length();
+                    checksum += parser.astring(reader).length();
+                }
+                reader.consumeLine();
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.println("round " + round + ": " + elapsed / REQUESTS + " ns/request, "
+                    + (double) input.reads / REQUESTS + " reads/request (checksum " + checksum + ")");
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long reads;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            reads++;
+            return super.read();
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            reads++;
+            return super.read(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.imap;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import com.icegreen.greenmail.imap.commands.ImapCommand;
+import com.icegreen.greenmail.imap.commands.ImapCommandFactory;
+
+/**
+ * Writes large FETCH and SEARCH responses over a loopback connection, the way
+ * {@link ImapHandler} does, and compares flushing after every response line (the
+ * former behaviour) with the buffering of {@link ImapResponse}, which writes once per
+ * tagged completion or {@link ImapResponse#FLUSH_THRESHOLD} bytes. Reports the time
+ * until the client has read the tagged completion and the writes reaching the socket.
+ * <p/>
+ * Not a unit test, run the main method manually:
+ * <pre>java com.icegreen.greenmail.imap.ImapResponseBenchmark</pre>
+ */
+public class ImapResponseBenchmark {
+
+    private static final int FETCH_MESSAGES = 5000;
+    private static final int SEARCH_MESSAGES = 100000;
+    private static final int ROUNDS = 20;
+
+    public static void main(String[] args) throws Exception {
+        ImapCommandFactory commands = new ImapCommandFactory();
+        ImapCommand fetch = commands.getCommand("FETCH");
+        ImapCommand search = commands.getCommand("SEARCH");
+
+        ServerSocket serverSocket = new ServerSocket(0);
+        Socket client = new Socket("localhost", serverSocket.getLocalPort());
+        Socket server = serverSocket.accept();
+        InputStream clientInput = client.getInputStream();
+        CountingOutputStream socketOutput = new CountingOutputStream(server.getOutputStream());
+        OutputStream output = new BufferedOutputStream(socketOutput, 1024);
+
+        System.out.println("response          flush-per-line(ms)  writes  batched(ms)  writes");
+        for (int warmup = 0; warmup < 2; warmup++) {
+            boolean report = warmup == 1;
+            run("FETCH " + FETCH_MESSAGES, fetch, output, socketOutput, clientInput, report);
+            run("SEARCH " + SEARCH_MESSAGES, search, output, socketOutput, clientInput, report);
+        }
+        client.close();
+        server.close();
+        serverSocket.close();
+    }
+
+    private static void run(String name, ImapCommand command, OutputStream output,
+                            CountingOutputStream socketOutput, InputStream clientInput,
+                            boolean report) throws IOException {
+        StringBuffer line = new StringBuffer(name);
+        while (line.length() < 18) {
+            line.append(' ');
+        }
+        for (int mode = 0; mode < 2; mode++) {
+            boolean perLine = mode == 0;
+            long writes = 0;
+            long start = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++) {
+                socketOutput.writes = 0;
+                ImapResponse response = new ImapResponse(output);
+                response.setTag("a1");
+                if (command.getName().equals("FETCH")) {
+                    for (int msn = 1; msn <= FETCH_MESSAGES; msn++) {
+                        response.fetchResponse(msn, "FLAGS (\\Seen) UID " + msn + " RFC822.SIZE 2048");
+                        if (perLine) {
+                            response.flush();
+                        }
+                    }
+                } else {
+                    StringBuffer ids = new StringBuffer();
+                    for (int msn = 1; msn <= SEARCH_MESSAGES; msn++) {
+                        ids.append(' ').append(msn);
+                    }
+                    response.untaggedResponse("SEARCH" + ids);
+                    if (perLine) {
+                        response.flush();
+                    }
+                }
+                response.commandComplete(command);
+                drain(clientInput);
+                writes += socketOutput.writes;
+            }
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            line.append(pad(String.valueOf(elapsed / ROUNDS), perLine ? 20 : 13));
+            line.append(pad(String.valueOf(writes / ROUNDS), 8));
+        }
+        if (report) {
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * Reads up to and including the tagged completion.
+     */
+    private static void drain(InputStream input) throws IOException {
+        byte[] buffer = new byte[65536];
+        int matched = 0;
+        byte[] tagged = "\na1 OK".getBytes("US-ASCII");
+        while (true) {
+            int count = input.read(buffer);
+            if (count < 0) {
+                throw new IOException("Connection closed");
+            }
+            for (int i = 0; i < count; i++) {
+                if (matched == tagged.length) {
+                    if (buffer[i] == '\n') {
+                        return;
+                    }
+                } else if (buffer[i] == tagged[matched]) {
+                    matched++;
+                } else {
+                    matched = buffer[i] == '\n' ? 1 : 0;
+                }
+            }
+        }
+    }
+
+    private static String pad(String value, int width) {
+        StringBuffer buffer = new StringBuffer(value);
+        while (buffer.length() < width) {
+            buffer.append(' ');
+        }
+        return buffer.toString();
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long writes;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            writes++;
+            out.write(b, off, len);
+        }
+
+        public void write(int b) throws IOException {
+            writes++;
+            out.write(b);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.imap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ImapResponseTest {
+
+    @Test
+    public void testAbortBeforeSending() throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImapResponse response = new ImapResponse(out);
+        response.startFetchResponse(1);
+        response.fetchData("BODY[]");
+        response.startLiteral(10).write(new byte[5]);
+        response.abortFetchResponse();
+        response.flush();
+        assertEquals(0, out.size());
+    }
+
+    @Test
+    public void testAbortStreamedLiteral() throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImapResponse response = new ImapResponse(out);
+        int length = ImapResponse.FLUSH_THRESHOLD * 2;
+        response.startFetchResponse(1);
+        response.fetchData("BODY[]");
+        OutputStream literal = response.startLiteral(length);
+        literal.write('x');
+        literal.write(new byte[100]);
+        response.abortFetchResponse();
+        response.flush();
+
+        String header = "* 1 FETCH (BODY[]{" + length + "}\r\n";
+        String written = out.toString("ISO-8859-1");
+        assertEquals(header.length() + length + 3, written.length());
+        assertEquals(header, written.substring(0, header.length()));
+        assertEquals(' ', written.charAt(header.length() + 101));
+        assertEquals(")\r\n", written.substring(written.length() - 3));
+    }
+
+    @Test
+    public void testAbortBufferedLiteralAfterFlush() throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImapResponse response = new ImapResponse(out);
+        response.startFetchResponse(1);
+        response.fetchData("BODY[1]");
+        response.startLiteral(ImapResponse.FLUSH_THRESHOLD + 1).write(new byte[ImapResponse.FLUSH_THRESHOLD + 1]);
+        response.fetchData(" BODY[2]");
+        response.startLiteral(10).write(new byte[4]);
+        response.abortFetchResponse();
+        response.flush();
+
+        String written = out.toString("ISO-8859-1");
+        assertEquals(" BODY[2]{10}\r\n\0\0\0\0      )\r\n",
+                written.substring(written.length() - 27));
+    }
+}
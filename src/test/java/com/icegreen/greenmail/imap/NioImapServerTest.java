@@ -0,0 +1,296 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.imap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.icegreen.greenmail.store.FileStore;
+import com.icegreen.greenmail.store.Store;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetup;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NioImapServerTest {
+
+    private GreenMail greenMail;
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+
+    @Rule
+    public TemporaryFolder directory = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        start(null);
+    }
+
+    private void start(Store store) throws Exception
+    {
+        ServerSocket probe = new ServerSocket(0);
+        int port = probe.getLocalPort();
+        probe.close();
+
+        ServerSetup[] setup = {new ServerSetup(port, null, ServerSetup.PROTOCOL_IMAP, true)};
+        greenMail = store == null ? new GreenMail(setup) : new GreenMail(setup, store);
+        greenMail.start();
+        greenMail.setUser("user@localhost", "user", "secret");
+
+        for (int attempt = 0; socket == null; attempt++) {
+            try {
+                socket = new Socket("localhost", port);
+            } catch (IOException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+        socket.setSoTimeout(10000);
+        in = socket.getInputStream();
+        out = socket.getOutputStream();
+        assertTrue(readLine().startsWith("* OK IMAP4rev1"));
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        socket.close();
+        greenMail.stop();
+    }
+
+    @Test
+    public void testSynchronizingLiterals() throws Exception
+    {
+        send("a1 LOGIN {4}\r\n");
+        assertEquals("+ ", readLine());
+        send("user {6}\r\n");
+        assertEquals("+ ", readLine());
+        send("secret\r\n");
+        assertEquals("a1 OK LOGIN completed.", readLine());
+    }
+
+    @Test
+    public void testPipelinedRequests() throws Exception
+    {
+        send("a1 LOGIN {4+}\r\nuser secret\r\na2 NOOP\r\na3 NOOP\r\n");
+        assertEquals("a1 OK LOGIN completed.", readLine());
+        assertEquals("a2 OK NOOP completed.", readLine());
+        assertEquals("a3 OK NOOP completed.", readLine());
+    }
+
+    @Test
+    public void testRequestSplitAcrossPackets() throws Exception
+    {
+        send("a1 NO");
+        Thread.sleep(50);
+        send("OP\r");
+        Thread.sleep(50);
+        send("\n");
+        assertEquals("a1 OK NOOP completed.", readLine());
+    }
+
+    @Test
+    public void testLogoutClosesConnection() throws Exception
+    {
+        send("a1 LOGOUT\r\n");
+        assertTrue(readLine().startsWith("* BYE"));
+        assertEquals("a1 OK LOGOUT completed.", readLine());
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testLiteralTooLarge() throws Exception
+    {
+        send("a1 LOGIN user secret\r\n");
+        assertEquals("a1 OK LOGIN completed.", readLine());
+        send("a2 APPEND INBOX {999999999}\r\n");
+        assertEquals("a2 BAD Literal too large", readLine());
+        send("a3 NOOP\r\n");
+        assertEquals("a3 OK NOOP completed.", readLine());
+    }
+
+    @Test
+    public void testLiteralRefusedAfterPipelinedCommands() throws Exception
+    {
+        send("a1 LOGIN user secret\r\n");
+        assertEquals("a1 OK LOGIN completed.", readLine());
+        StringBuilder pipelined = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            pipelined.append("b" + i + " NOOP\r\n");
+        }
+        send(pipelined + "c APPEND INBOX {999999999}\r\n");
+        for (int i = 0; i < 50; i++) {
+            assertEquals("b" + i + " OK NOOP completed.", readLine());
+        }
+        assertEquals("c BAD Literal too large", readLine());
+
+        send("d1 NOOP\r\nd2 APPEND INBOX {999999999+}\r\n");
+        assertEquals("d1 OK NOOP completed.", readLine());
+        assertTrue(readLine().startsWith("* BYE"));
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testLargeLiteralBeforeLogin() throws Exception
+    {
+        send("a1 LOGIN {100000}\r\n");
+        assertEquals("a1 BAD Literal too large", readLine());
+        send("a2 LOGIN {100000+}\r\n");
+        assertTrue(readLine().startsWith("* BYE"));
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testSlowReader() throws Exception
+    {
+        send("a1 LOGIN user secret\r\n");
+        assertEquals("a1 OK LOGIN completed.", readLine());
+        StringBuilder body = new StringBuilder();
+        while (body.length() < 100000) {
+            body.append("All work and no play makes Jack a dull boy.\r\n");
+        }
+        String message = "Subject: test\r\n\r\n" + body;
+        send("a2 APPEND INBOX {" + message.length() + "+}\r\n" + message + "\r\n");
+        assertTrue(readLine().startsWith("a2 OK"));
+        send("a3 SELECT INBOX\r\n");
+        while (!readLine().startsWith("a3 ")) {
+            // untagged responses
+        }
+
+        // Far more than the server queues before it waits for the client
+        StringBuilder fetches = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            fetches.append("f").append(i).append(" FETCH 1 BODY.PEEK[]\r\n");
+        }
+        send(fetches.toString());
+        Thread.sleep(200);
+        int completed = 0;
+        while (completed < 50) {
+            if (readLine().startsWith("f" + completed + " OK")) {
+                completed++;
+            }
+        }
+        send("a4 NOOP\r\n");
+        assertEquals("a4 OK NOOP completed.", readLine());
+    }
+
+    @Test
+    public void testMessageFileTruncatedMidLiteral() throws Exception
+    {
+        tearDown();
+        socket = null;
+        FileStore store = new FileStore(directory.getRoot());
+        start(store);
+        send("a1 LOGIN user secret\r\n");
+        assertEquals("a1 OK LOGIN completed.", readLine());
+        StringBuilder message = new StringBuilder("Subject: test\r\n\r\n");
+        while (message.length() < ImapResponse.FLUSH_THRESHOLD * 2) {
+            message.append("All work and no play makes Jack a dull boy.\r\n");
+        }
+        send("a2 APPEND INBOX {" + message.length() + "+}\r\n" + message + "\r\n");
+        assertTrue(readLine().startsWith("a2 OK"));
+        send("a3 SELECT INBOX\r\n");
+        while (!readLine().startsWith("a3 ")) {
+            // untagged responses
+        }
+
+        // The structure of the message is kept, its content is read again from the file,
+        // so the literal is announced and started before the missing end of the file shows
+        send("a4 FETCH 1 BODY.PEEK[HEADER]\r\n");
+        while (!readLine().startsWith("a4 ")) {
+            // the header
+        }
+        releaseSoftReferences();
+        RandomAccessFile file = new RandomAccessFile(new File(directory.getRoot(), "1/1.eml"), "rw");
+        file.setLength(ImapResponse.FLUSH_THRESHOLD + 100);
+        file.close();
+        send("a5 FETCH 1 BODY.PEEK[]\r\n");
+        assertEquals("* 1 FETCH (BODY[] {" + message.length() + "}", readLine());
+        byte[] literal = new byte[message.length()];
+        for (int read = 0; read < literal.length; ) {
+            int count = in.read(literal, read, literal.length - read);
+            assertTrue(count > 0);
+            read += count;
+        }
+        assertEquals(message.substring(0, 100), new String(literal, 0, 100, "US-ASCII"));
+        assertEquals(' ', literal[literal.length - 1]);
+        assertEquals(")", readLine());
+        assertTrue(readLine().startsWith("a5 NO"));
+        send("a6 NOOP\r\n");
+        assertEquals("a6 OK NOOP completed.", readLine());
+    }
+
+    /**
+     * The JVM clears all soft references before it throws an OutOfMemoryError.
+     */
+    private static void releaseSoftReferences()
+    {
+        List hog = new ArrayList();
+        try {
+            while (true) {
+                hog.add(new long[Integer.MAX_VALUE / 2]);
+            }
+        } catch (OutOfMemoryError e) {
+            hog.clear();
+        }
+    }
+
+    private void send(String data) throws IOException
+    {
+        out.write(data.getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    private String readLine() throws IOException
+    {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new IOException("Connection closed after " + line);
+            }
+            line.append((char) c);
+        }
+        return line.toString().replaceAll("\r$", "");
+    }
+}
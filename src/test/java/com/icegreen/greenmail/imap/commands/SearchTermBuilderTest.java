@@ -25,9 +25,20 @@
  */
 package com.icegreen.greenmail.imap.commands;
 
+import java.util.Calendar;
+import java.util.Date;
 import java.util.Locale;
+import java.util.Properties;
+
+import jakarta.mail.Flags;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
 import org.junit.Test;
 
+import com.icegreen.greenmail.store.InMemoryStore;
+import com.icegreen.greenmail.store.MailFolder;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.fail;
 
 public class SearchTermBuilderTest {
@@ -76,4 +87,38 @@ public class SearchTermBuilderTest {
             Locale.setDefault(defaultLocale);
         }
     }
+
+    @Test
+    public void testDateSearchKeysCoverWholeDays() throws Exception
+    {
+        InMemoryStore store = new InMemoryStore();
+        MailFolder folder = store.createMailbox(store.getMailbox("#mail"), "INBOX", true);
+        int[][] times = {{11, 23, 59}, {12, 0, 0}, {12, 13, 45}, {13, 0, 0}};
+        for (int i = 0; i < times.length; i++) {
+            Calendar calendar = Calendar.getInstance();
+            calendar.clear();
+            calendar.set(2020, Calendar.JULY, times[i][0], times[i][1], times[i][2]);
+            Date date = calendar.getTime();
+            MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+            message.setSentDate(date);
+            message.setText("text");
+            message.saveChanges();
+            folder.appendMessage(message, new Flags(), date);
+        }
+
+        assertArrayEquals(new long[]{2, 3}, search(folder, SearchKey.ON, "12-Jul-2020"));
+        assertArrayEquals(new long[]{2, 3, 4}, search(folder, SearchKey.SINCE, "12-Jul-2020"));
+        assertArrayEquals(new long[]{1}, search(folder, SearchKey.BEFORE, "12-Jul-2020"));
+        assertArrayEquals(new long[]{1, 2, 3}, search(folder, SearchKey.BEFORE, "13-Jul-2020"));
+        assertArrayEquals(new long[]{2, 3}, search(folder, SearchKey.SENTON, "12-Jul-2020"));
+        assertArrayEquals(new long[]{4}, search(folder, SearchKey.SENTSINCE, "13-Jul-2020"));
+        assertArrayEquals(new long[]{1}, search(folder, SearchKey.SENTBEFORE, "12-Jul-2020"));
+    }
+
+    private static long[] search(MailFolder folder, SearchKey key, String date) throws Exception
+    {
+        SearchTermBuilder builder = SearchTermBuilder.create(key.name());
+        builder.addParameter(date);
+        return folder.search(builder.build());
+    }
 }
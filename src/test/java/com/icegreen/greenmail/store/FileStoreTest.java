@@ -0,0 +1,176 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import jakarta.mail.Flags;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.search.SubjectTerm;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FileStoreTest {
+    private static final String RAW = "Subject: hello\r\n\r\nbody\r\n";
+
+    @Rule
+    public TemporaryFolder directory = new TemporaryFolder();
+
+    private FileStore store;
+    private MailFolder folder;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        store = new FileStore(directory.getRoot());
+        folder = store.createMailbox(store.getMailbox("#mail"), "INBOX", true);
+    }
+
+    @Test
+    public void testAppendFetchExpunge() throws Exception
+    {
+        long uid = folder.appendMessage(message(RAW), new Flags(), new Date());
+        SimpleStoredMessage stored = folder.getMessage(uid);
+        File file = store.getFile(1);
+        assertTrue(file.exists());
+
+        byte[] raw = stored.getRawMessage();
+        assertEquals(raw.length, stored.getSize());
+        assertArrayEquals(raw, Files.readAllBytes(file.toPath()));
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        stored.writeRawMessage(body, stored.getBodyOffset(), raw.length - stored.getBodyOffset());
+        assertEquals("body\r\n", body.toString("US-ASCII"));
+        assertEquals("hello", stored.getMimeMessage().getSubject());
+
+        folder.setFlags(new Flags(Flags.Flag.DELETED), true, uid, null, false);
+        folder.expunge();
+        assertEquals(0, folder.getMessageCount());
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testDeleteAllMessagesDeletesFiles() throws Exception
+    {
+        folder.appendMessage(message(RAW), new Flags(), new Date());
+        folder.appendMessage(message(RAW), new Flags(), new Date());
+        assertTrue(store.getFile(2).exists());
+
+        folder.deleteAllMessages();
+        assertFalse(store.getFile(1).exists());
+        assertFalse(store.getFile(2).exists());
+    }
+
+    @Test
+    public void testReloadAfterSoftReferencesCleared() throws Exception
+    {
+        long uid = folder.appendMessage(message(RAW), new Flags(), new Date());
+        SimpleStoredMessage stored = folder.getMessage(uid);
+        byte[] raw = stored.getRawMessage();
+        assertSame(stored.getMimeMessage(), stored.getMimeMessage());
+        WeakReference parsed = new WeakReference(stored.getMimeMessage());
+
+        releaseSoftReferences();
+        assertNull(parsed.get());
+        assertEquals("hello", stored.getMimeMessage().getSubject());
+        assertArrayEquals(raw, stored.getRawMessage());
+    }
+
+    @Test
+    public void testUnreadableMessageFailsSearch() throws Exception
+    {
+        long uid = folder.appendMessage(message(RAW), new Flags(), new Date());
+        assertTrue(store.getFile(1).delete());
+        // Sequentially, then split over the fork join pool
+        for (int threshold = 0; threshold < 2; threshold++) {
+            store.setParallelSearchThreshold(threshold);
+            try {
+                folder.search(new SubjectTerm("hello"));
+                fail("Expected a FolderException");
+            } catch (FolderException e) {
+                // Expected, the message file is gone
+            }
+        }
+        try {
+            folder.getMessage(uid).getMimeMessage();
+            fail("Expected an IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof FolderException);
+        }
+    }
+
+    @Test
+    public void testReusedDirectoryKeepsFiles() throws Exception
+    {
+        folder.appendMessage(message(RAW), new Flags(), new Date());
+        byte[] first = Files.readAllBytes(store.getFile(1).toPath());
+
+        FileStore reused = new FileStore(directory.getRoot());
+        MailFolder inbox = reused.createMailbox(reused.getMailbox("#mail"), "INBOX", true);
+        long uid = inbox.appendMessage(message("Subject: other\r\n\r\n"), new Flags(), new Date());
+        assertArrayEquals(first, Files.readAllBytes(store.getFile(1).toPath()));
+        assertTrue(reused.getFile(2).exists());
+        assertEquals("other", inbox.getMessage(uid).getMimeMessage().getSubject());
+    }
+
+    private static MimeMessage message(String raw) throws Exception
+    {
+        return new MimeMessage(Session.getInstance(new Properties()), new ByteArrayInputStream(raw.getBytes("US-ASCII")));
+    }
+
+    /**
+     * The JVM clears all soft references before it throws an OutOfMemoryError.
+     */
+    private static void releaseSoftReferences()
+    {
+        List hog = new ArrayList();
+        try {
+            while (true) {
+                hog.add(new long[Integer.MAX_VALUE / 2]);
+            }
+        } catch (OutOfMemoryError e) {
+            hog.clear();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+import jakarta.mail.Message;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.search.BodyTerm;
+import jakarta.mail.search.FromTerm;
+import jakarta.mail.search.HeaderTerm;
+import jakarta.mail.search.RecipientTerm;
+import jakarta.mail.search.SubjectTerm;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HeaderIndexTest {
+
+    private HeaderIndex index;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        index = new HeaderIndex();
+        index.add(1, HeaderIndex.extract(message("From: Alice <alice@example.com>\r\nTo: bob@example.com, carol@example.com\r\n"
+                + "Message-ID: <one@example.com>\r\nSubject: Breakfast menu\r\n\r\n")));
+        index.add(2, HeaderIndex.extract(message("From: BOB@Example.COM\r\nCc: alice@example.com\r\n"
+                + "Message-ID: <two@example.com>\r\nSubject: Lunch menu\r\n\r\n")));
+        index.add(3, HeaderIndex.extract(null));
+    }
+
+    @Test
+    public void testAddresses() throws Exception
+    {
+        assertArrayEquals(new long[]{1}, index.candidates(new FromTerm(new InternetAddress("ALICE@example.com"))));
+        assertArrayEquals(new long[]{2}, index.candidates(new FromTerm(new InternetAddress("Bob <bob@example.com>"))));
+        assertArrayEquals(new long[]{1}, index.candidates(new RecipientTerm(Message.RecipientType.TO,
+                new InternetAddress("carol@example.com"))));
+        assertArrayEquals(new long[]{2}, index.candidates(new RecipientTerm(Message.RecipientType.CC,
+                new InternetAddress("alice@example.com"))));
+        assertArrayEquals(new long[0], index.candidates(new RecipientTerm(Message.RecipientType.BCC,
+                new InternetAddress("alice@example.com"))));
+    }
+
+    @Test
+    public void testMessageIdAndSubject() throws Exception
+    {
+        assertArrayEquals(new long[]{2}, index.candidates(new HeaderTerm("message-id", "<TWO@example.com>")));
+        // Only whole Message-IDs are looked up
+        assertNull(index.candidates(new HeaderTerm("Message-ID", "two@example.com")));
+        assertNull(index.candidates(new HeaderTerm("References", "<two@example.com>")));
+
+        assertArrayEquals(new long[]{1}, index.candidates(new SubjectTerm("FAST")));
+        assertArrayEquals(new long[]{1, 2}, index.candidates(new SubjectTerm("MENU")));
+        assertNull(index.candidates(new BodyTerm("menu")));
+    }
+
+    @Test
+    public void testRemoveAndUnparsed() throws Exception
+    {
+        long memory = index.getMemoryUsage();
+        index.remove(2);
+        assertArrayEquals(new long[0], index.candidates(new HeaderTerm("Message-ID", "<two@example.com>")));
+        assertArrayEquals(new long[]{1}, index.candidates(new SubjectTerm("menu")));
+        assertTrue(index.getMemoryUsage() < memory);
+
+        index.add(4, HeaderIndex.UNPARSED);
+        assertArrayEquals(new long[]{4}, index.candidates(new HeaderTerm("Message-ID", "<two@example.com>")));
+        assertArrayEquals(new long[]{1, 4}, index.candidates(new FromTerm(new InternetAddress("alice@example.com"))));
+    }
+
+    private static MimeMessage message(String raw) throws Exception
+    {
+        return new MimeMessage(Session.getInstance(new Properties()),
+                new ByteArrayInputStream(raw.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import jakarta.mail.Flags;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InMemoryStoreConcurrencyTest {
+
+    private static final int WRITERS = 8;
+    private static final int MESSAGES_PER_WRITER = 2000;
+
+    @Test
+    public void testUidsStayUniqueAndIncreasingUnderParallelDelivery() throws Exception
+    {
+        InMemoryStore store = new InMemoryStore();
+        final MailFolder folder = store.createMailbox(store.getMailbox("#mail"), "INBOX", true);
+        final List<Integer> addedMsns = new ArrayList<Integer>();
+        folder.addListener(new RecordingListener(addedMsns));
+
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS + 2);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean delivering = new AtomicBoolean(true);
+        try
+        {
+            List<Future<long[]>> writers = new ArrayList<Future<long[]>>();
+            for (int i = 0; i < WRITERS; i++)
+            {
+                writers.add(executor.submit(new Callable<long[]>()
+                {
+                    public long[] call() throws Exception
+                    {
+                        start.await();
+                        long[] uids = new long[MESSAGES_PER_WRITER];
+                        for (int j = 0; j < uids.length; j++)
+                        {
+                            uids[j] = folder.appendMessage(null, new Flags(), new Date());
+                        }
+                        return uids;
+                    }
+                }));
+            }
+            List<Future<Integer>> readers = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < 2; i++)
+            {
+                readers.add(executor.submit(new Callable<Integer>()
+                {
+                    public Integer call() throws Exception
+                    {
+                        start.await();
+                        int checks = 0;
+                        while (delivering.get())
+                        {
+                            long[] snapshot = folder.getMessageUids();
+                            assertIncreasing(snapshot);
+                            if (snapshot.length > 0)
+                            {
+                                long last = snapshot[snapshot.length - 1];
+                                assertEquals(snapshot.length, folder.getMsn(last));
+                                assertEquals(last, folder.getMessage(last).getUid());
+                            }
+                            assertTrue(folder.getUnseenCount() <= folder.getUidNext() - 1);
+                            checks++;
+                        }
+                        return checks;
+                    }
+                }));
+            }
+
+            start.countDown();
+            boolean[] seen = new boolean[WRITERS * MESSAGES_PER_WRITER + 1];
+            for (Future<long[]> writer : writers)
+            {
+                long[] uids = writer.get(60, TimeUnit.SECONDS);
+                // Each writer gets increasing UIDs, and no UID is handed out twice
+                assertIncreasing(uids);
+                for (long uid : uids)
+                {
+                    assertTrue("UID out of range: " + uid, uid > 0 && uid < seen.length);
+                    assertTrue("Duplicate UID: " + uid, !seen[(int) uid]);
+                    seen[(int) uid] = true;
+                }
+            }
+            delivering.set(false);
+            for (Future<Integer> reader : readers)
+            {
+                reader.get(60, TimeUnit.SECONDS);
+            }
+        }
+        finally
+        {
+            delivering.set(false);
+            executor.shutdownNow();
+        }
+
+        int total = WRITERS * MESSAGES_PER_WRITER;
+        long[] uids = folder.getMessageUids();
+        assertEquals(total, uids.length);
+        for (int i = 0; i < uids.length; i++)
+        {
+            assertEquals(i + 1, uids[i]);
+        }
+        assertEquals(total + 1, folder.getUidNext());
+        assertEquals(total, folder.getUnseenCount());
+        assertEquals(total, folder.getRecentCount(false));
+
+        // Listeners are notified in append order
+        assertEquals(total, addedMsns.size());
+        for (int i = 0; i < total; i++)
+        {
+            assertEquals(i + 1, addedMsns.get(i).intValue());
+        }
+    }
+
+    private static void assertIncreasing(long[] uids)
+    {
+        for (int i = 1; i < uids.length; i++)
+        {
+            assertTrue("UIDs not increasing at " + i + ": " + uids[i - 1] + ", " + uids[i], uids[i - 1] < uids[i]);
+        }
+    }
+
+    private static class RecordingListener implements FolderListener
+    {
+        private final List<Integer> addedMsns;
+
+        RecordingListener(List<Integer> addedMsns)
+        {
+            this.addedMsns = addedMsns;
+        }
+
+        public void expunged(int msn)
+        {
+        }
+
+        public void added(int msn)
+        {
+            // Called holding the folder's listener monitor, no extra locking needed
+            addedMsns.add(msn);
+        }
+
+        public void flagsUpdated(int msn, Flags flags, Long uid)
+        {
+        }
+
+        public void mailboxDeleted()
+        {
+        }
+    }
+}
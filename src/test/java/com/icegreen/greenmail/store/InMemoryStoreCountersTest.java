@@ -0,0 +1,134 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import jakarta.mail.Flags;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class InMemoryStoreCountersTest {
+
+    private MailFolder folder;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        InMemoryStore store = new InMemoryStore();
+        folder = store.createMailbox(store.getMailbox("#mail"), "INBOX", true);
+    }
+
+    @Test
+    public void testCountersFollowChanges() throws Exception
+    {
+        assertCounters(0, 0, 0, -1);
+        for (int i = 0; i < 6; i++) {
+            // Messages 1, 3 and 5 are seen
+            folder.appendMessage(null, i % 2 == 0 ? new Flags(Flags.Flag.SEEN) : new Flags(), new Date());
+        }
+        assertCounters(6, 6, 3, 2);
+
+        folder.setFlags(new Flags(Flags.Flag.SEEN), true, new long[]{2, 4}, null, false);
+        assertCounters(6, 6, 1, 6);
+        folder.setFlags(new Flags(Flags.Flag.SEEN), false, new long[]{3}, null, false);
+        assertCounters(6, 6, 2, 3);
+        // Replaces \Recent too
+        folder.replaceFlags(new Flags(Flags.Flag.SEEN), new long[]{3}, null, false);
+        assertCounters(6, 5, 1, 6);
+
+        assertEquals(5, folder.getRecentCount(true));
+        assertCounters(6, 0, 1, 6);
+        folder.appendMessage(null, new Flags(), new Date());
+        assertCounters(7, 1, 2, 6);
+
+        folder.setFlags(new Flags(Flags.Flag.DELETED), true, new long[]{1, 2, 6}, null, false);
+        folder.expunge();
+        assertCounters(4, 1, 1, 4);
+        folder.setFlags(new Flags(Flags.Flag.SEEN), false, new long[]{3}, null, false);
+        assertCounters(4, 1, 2, 1);
+
+        folder.deleteAllMessages();
+        assertCounters(0, 0, 0, -1);
+    }
+
+    @Test
+    public void testRandomChangesMatchScan() throws Exception
+    {
+        Random random = new Random(42);
+        for (int n = 0; n < 2000; n++) {
+            long[] uids = folder.getMessageUids();
+            int operation = uids.length == 0 ? 0 : random.nextInt(6);
+            if (operation == 0) {
+                folder.appendMessage(null, random.nextBoolean() ? new Flags(Flags.Flag.SEEN) : new Flags(), new Date());
+            } else if (operation == 1) {
+                folder.setFlags(new Flags(Flags.Flag.SEEN), random.nextBoolean(),
+                        new long[]{uids[random.nextInt(uids.length)]}, null, false);
+            } else if (operation == 2) {
+                folder.setFlags(new Flags(Flags.Flag.DELETED), true,
+                        new long[]{uids[random.nextInt(uids.length)]}, null, false);
+            } else if (operation == 3 && random.nextInt(10) == 0) {
+                folder.expunge();
+            } else if (operation == 4 && random.nextInt(20) == 0) {
+                folder.getRecentCount(true);
+            }
+            assertCountersMatchScan();
+        }
+    }
+
+    private void assertCounters(int messages, int recent, int unseen, int firstUnseen)
+    {
+        assertEquals(messages, folder.getMessageCount());
+        assertEquals(recent, folder.getRecentCount(false));
+        assertEquals(unseen, folder.getUnseenCount());
+        assertEquals(firstUnseen, folder.getFirstUnseen());
+    }
+
+    private void assertCountersMatchScan()
+    {
+        List messages = folder.getMessages();
+        int recent = 0;
+        int unseen = 0;
+        int firstUnseen = -1;
+        for (int i = 0; i < messages.size(); i++) {
+            Flags flags = ((SimpleStoredMessage) messages.get(i)).getFlags();
+            if (flags.contains(Flags.Flag.RECENT)) {
+                recent++;
+            }
+            if (!flags.contains(Flags.Flag.SEEN)) {
+                unseen++;
+                if (firstUnseen < 0) {
+                    firstUnseen = i + 1;
+                }
+            }
+        }
+        assertCounters(messages.size(), recent, unseen, firstUnseen);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import jakarta.mail.Flags;
+import jakarta.mail.search.FlagTerm;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class InMemoryStoreFlagsTest {
+
+    private MailFolder folder;
+    private BatchListener listener;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        InMemoryStore store = new InMemoryStore();
+        folder = store.createMailbox(store.getMailbox("#mail"), "INBOX", true);
+        for (int i = 0; i < 10; i++) {
+            folder.appendMessage(null, new Flags(), new Date());
+        }
+        listener = new BatchListener();
+        folder.addListener(listener);
+    }
+
+    @Test
+    public void testSetFlagsNotifiesOneBatch() throws Exception
+    {
+        folder.setFlags(new Flags(Flags.Flag.SEEN), true, new long[]{2, 4, 6}, null, true);
+
+        assertEquals(7, folder.getUnseenCount());
+        assertEquals(1, folder.getFirstUnseen());
+        assertEquals(1, listener.batches.size());
+        assertArrayEquals(new int[]{2, 4, 6}, (int[]) listener.batches.get(0)[0]);
+        assertArrayEquals(new long[]{2, 4, 6}, (long[]) listener.batches.get(0)[2]);
+
+        folder.setFlags(new Flags(Flags.Flag.SEEN), false, new long[]{4}, null, false);
+        assertEquals(8, folder.getUnseenCount());
+        assertNull(listener.batches.get(1)[2]);
+    }
+
+    @Test
+    public void testReplaceFlags() throws Exception
+    {
+        folder.setFlags(new Flags(Flags.Flag.FLAGGED), true, new long[]{1, 2}, null, false);
+        folder.replaceFlags(new Flags(Flags.Flag.SEEN), new long[]{1, 2, 3}, null, false);
+
+        for (long uid = 1; uid <= 3; uid++) {
+            Flags flags = folder.getMessage(uid).getFlags();
+            assertFalse(flags.contains(Flags.Flag.FLAGGED));
+            assertEquals(true, flags.contains(Flags.Flag.SEEN));
+        }
+        assertEquals(7, folder.getUnseenCount());
+        assertEquals(4, folder.getFirstUnseen());
+    }
+
+    @Test
+    public void testMissingMessageChangesNothing() throws Exception
+    {
+        try {
+            folder.setFlags(new Flags(Flags.Flag.SEEN), true, new long[]{1, 42}, null, false);
+            fail("Expected a FolderException");
+        } catch (FolderException e) {
+            // expected
+        }
+        assertFalse(folder.getMessage(1).getFlags().contains(Flags.Flag.SEEN));
+        assertEquals(10, folder.getUnseenCount());
+        assertEquals(0, listener.batches.size());
+    }
+
+    @Test
+    public void testSilentListenerIsSkipped() throws Exception
+    {
+        folder.setFlags(new Flags(Flags.Flag.SEEN), true, new long[]{1}, listener, false);
+        assertEquals(0, listener.batches.size());
+    }
+
+    @Test
+    public void testKeywordsIgnoreCase() throws Exception
+    {
+        Flags keyword = new Flags("$Label1");
+        folder.setFlags(keyword, true, new long[]{1, 2}, null, false);
+        folder.setFlags(new Flags("$LABEL1"), true, new long[]{1}, null, false);
+        assertArrayEquals(new String[]{"$Label1"}, folder.getMessage(1).getFlags().getUserFlags());
+        assertArrayEquals(new long[]{1, 2}, folder.search(new FlagTerm(new Flags("$label1"), true)));
+
+        folder.setFlags(new Flags("$label1"), false, new long[]{1}, null, false);
+        assertEquals(0, folder.getMessage(1).getFlags().getUserFlags().length);
+        assertArrayEquals(new long[]{2}, folder.search(new FlagTerm(keyword, true)));
+    }
+
+    @Test
+    public void testSharedKeywordsAreBounded() throws Exception
+    {
+        for (int i = 0; i < 2000; i++) {
+            MessageFlags.internKeyword("keyword" + i);
+        }
+        // Not shared any more, each message holds its own copy
+        String late = new String("keyword1999");
+        assertSame(late, MessageFlags.internKeyword(late));
+    }
+
+    @Test
+    public void testExpungeReportsRenumberedMsns() throws Exception
+    {
+        // Adjacent, apart and last
+        folder.setFlags(new Flags(Flags.Flag.DELETED), true, new long[]{2, 3, 4, 7, 10}, null, false);
+        folder.expunge();
+
+        assertEquals(1, listener.expunges.size());
+        assertArrayEquals(new int[]{2, 2, 2, 4, 6}, (int[]) listener.expunges.get(0));
+        assertArrayEquals(new long[]{1, 5, 6, 8, 9}, folder.getMessageUids());
+        assertEquals(5, folder.getMessageCount());
+
+        // Only the deleted messages of the given UIDs
+        folder.setFlags(new Flags(Flags.Flag.DELETED), true, new long[]{1, 6, 9}, null, false);
+        folder.expunge(new long[]{5, 9});
+        assertArrayEquals(new int[]{3, 4}, (int[]) listener.expunges.get(1));
+        assertArrayEquals(new long[]{1, 5, 8}, folder.getMessageUids());
+        assertEquals(3, folder.getMsn(8));
+    }
+
+    private static class BatchListener implements FolderListener {
+        private final List<Object[]> batches = new ArrayList<Object[]>();
+        private final List<int[]> expunges = new ArrayList<int[]>();
+
+        public void expunged(int msn) {
+            fail("Expected a batch");
+        }
+
+        public void expunged(int[] msns) {
+            expunges.add(msns);
+        }
+
+        public void added(int msn) {
+        }
+
+        public void flagsUpdated(int msn, Flags flags, Long uid) {
+            fail("Expected a batch");
+        }
+
+        public void flagsUpdated(int[] msns, Flags[] flags, long[] uids) {
+            batches.add(new Object[]{msns, flags, uids});
+        }
+
+        public void mailboxDeleted() {
+        }
+    }
+}
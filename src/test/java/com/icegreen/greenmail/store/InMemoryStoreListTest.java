@@ -0,0 +1,136 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class InMemoryStoreListTest {
+
+    private InMemoryStore store;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        store = new InMemoryStore();
+        MailFolder user = store.createMailbox(store.getMailbox("#mail"), "user", false);
+        MailFolder inbox = store.createMailbox(user, "INBOX", true);
+        store.createMailbox(inbox, "Lists", true);
+        store.createMailbox(store.getMailbox("#mail/user/INBOX/Lists"), "Java", true);
+        store.createMailbox(user, "Sent", true);
+        MailFolder other = store.createMailbox(store.getMailbox("#mail"), "other", false);
+        store.createMailbox(other, "INBOX", true);
+    }
+
+    @Test
+    public void testStarMatchesAcrossHierarchy() throws Exception
+    {
+        assertEquals("[#mail/user/INBOX, #mail/user/INBOX/Lists, #mail/user/INBOX/Lists/Java, #mail/user/Sent]",
+                list("#mail/user/*"));
+        assertEquals("[#mail/user/INBOX/Lists/Java]", list("#mail/*/Java"));
+        assertEquals("[#mail/user, #mail/user/INBOX, #mail/user/INBOX/Lists, #mail/user/INBOX/Lists/Java, "
+                + "#mail/user/Sent, #mail/other, #mail/other/INBOX]", list("*"));
+    }
+
+    @Test
+    public void testPercentStopsAtDelimiter() throws Exception
+    {
+        assertEquals("[#mail/user/INBOX, #mail/user/Sent]", list("#mail/user/%"));
+        assertEquals("[#mail/user/INBOX, #mail/other/INBOX]", list("#mail/%/INBOX"));
+        assertEquals("[#mail/user, #mail/other]", list("%"));
+        assertEquals("[]", list("#mail/user/INBOX%Java"));
+    }
+
+    @Test
+    public void testWildcardsInTheMiddleOfNames() throws Exception
+    {
+        assertEquals("[#mail/user/INBOX/Lists]", list("#mail/user/IN%/L%s"));
+        assertEquals("[#mail/user/INBOX, #mail/other/INBOX]", list("#mail/*X"));
+        assertEquals("[#mail/user/INBOX/Lists/Java]", list("#mail/user/inbox*ja%"));
+    }
+
+    @Test
+    public void testPatternWithoutWildcards() throws Exception
+    {
+        assertEquals("[#mail/user/INBOX/Lists]", list("#mail/user/INBOX/Lists"));
+        assertEquals("[]", list("#mail/user/Trash"));
+    }
+
+    @Test
+    public void testRenameUpdatesCachedFullNames() throws Exception
+    {
+        MailFolder lists = store.getMailbox("#mail/user/INBOX/Lists");
+        MailFolder java = store.getMailbox("#mail/user/INBOX/Lists/Java");
+        // Caches the full names
+        assertEquals("[#mail/user/INBOX/Lists, #mail/user/INBOX/Lists/Java]", list("#mail/user/INBOX/*"));
+
+        store.renameMailbox(lists, "Archive");
+        assertEquals("#mail/user/INBOX/Archive", lists.getFullName());
+        assertEquals("#mail/user/INBOX/Archive/Java", java.getFullName());
+        assertSame(lists, store.getMailbox("#mail/user/INBOX/Archive"));
+        assertSame(java, store.getMailbox("#mail/user/INBOX/Archive/Java"));
+        assertNull(store.getMailbox("#mail/user/INBOX/Lists"));
+        assertNull(store.getMailbox("#mail/user/INBOX/Lists/Java"));
+        assertEquals("[#mail/user/INBOX/Archive, #mail/user/INBOX/Archive/Java]", list("#mail/user/INBOX/*"));
+        assertEquals("[#mail/user/INBOX/Archive/Java]", list("#mail/*/Archive/%"));
+        assertEquals("[]", list("#mail/*/Lists*"));
+
+        MailFolder inbox = store.getMailbox("#mail/user/INBOX");
+        try {
+            store.renameMailbox(inbox, "Sent");
+            fail("Expected a FolderException");
+        } catch (FolderException e) {
+            // expected
+        }
+        assertEquals("#mail/user/INBOX/Archive/Java", java.getFullName());
+        store.renameMailbox(inbox, "Mail");
+        assertEquals("#mail/user/Mail/Archive/Java", java.getFullName());
+        assertSame(java, store.getMailbox("#mail/user/Mail/Archive/Java"));
+        assertEquals("[#mail/user/Mail/Archive/Java]", list("#mail/user/Mail/*/Java"));
+    }
+
+    private String list(String pattern) throws FolderException
+    {
+        Collection mailboxes = store.listMailboxes(pattern);
+        List names = new ArrayList();
+        Iterator iterator = mailboxes.iterator();
+        while (iterator.hasNext())
+        {
+            names.add(((MailFolder) iterator.next()).getFullName());
+        }
+        return names.toString();
+    }
+}
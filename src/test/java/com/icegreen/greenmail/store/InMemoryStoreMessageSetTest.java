@@ -0,0 +1,108 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+
+import jakarta.mail.Flags;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class InMemoryStoreMessageSetTest {
+
+    private MailFolder folder;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        InMemoryStore store = new InMemoryStore();
+        folder = store.createMailbox(store.getMailbox("#mail"), "INBOX", true);
+        for (int i = 0; i < 20; i++) {
+            // Every third message is expunged, leaving gaps in the UIDs
+            Flags flags = i % 3 == 0 ? new Flags(Flags.Flag.DELETED) : new Flags();
+            folder.appendMessage(null, flags, new Date());
+        }
+        folder.expunge();
+        assertEquals(13, folder.getMessageCount());
+    }
+
+    @Test
+    public void testUidSets() throws Exception
+    {
+        assertArrayEquals(new long[]{2, 3, 5}, folder.getMessageUids(new long[]{1, 5}, true));
+        assertArrayEquals(new long[]{17, 18, 20}, folder.getMessageUids(new long[]{17, Long.MAX_VALUE}, true));
+        assertArrayEquals(new long[]{2, 3, 20}, folder.getMessageUids(
+                new long[]{20, 20, 3, 3, 1, 2, 2, 3}, true));
+        assertArrayEquals(new long[0], folder.getMessageUids(new long[]{4, 4, 21, 30}, true));
+    }
+
+    @Test
+    public void testMsnSets() throws Exception
+    {
+        assertArrayEquals(new long[]{2, 3}, folder.getMessageUids(new long[]{1, 2}, false));
+        assertArrayEquals(new long[]{18, 20}, folder.getMessageUids(new long[]{12, Long.MAX_VALUE}, false));
+        assertArrayEquals(new long[]{2, 20}, folder.getMessageUids(
+                new long[]{13, 50, 1, 1}, false));
+        assertArrayEquals(new long[0], folder.getMessageUids(new long[]{14, 20}, false));
+    }
+
+    @Test
+    public void testRandomSetsMatchScan() throws Exception
+    {
+        long[] uids = folder.getMessageUids();
+        Random random = new Random(42);
+        for (int n = 0; n < 500; n++) {
+            long[] idSet = new long[2 + 2 * random.nextInt(4)];
+            for (int i = 0; i < idSet.length; i += 2) {
+                long low = random.nextInt(22);
+                long high = random.nextInt(5) == 0 ? Long.MAX_VALUE : low + random.nextInt(6) - 1;
+                idSet[i] = low;
+                idSet[i + 1] = high;
+            }
+            for (int mode = 0; mode < 2; mode++) {
+                boolean useUids = mode == 0;
+                long[] expected = new long[uids.length];
+                int count = 0;
+                for (int i = 0; i < uids.length; i++) {
+                    long id = useUids ? uids[i] : i + 1;
+                    for (int j = 0; j < idSet.length; j += 2) {
+                        if (idSet[j] <= id && id <= idSet[j + 1]) {
+                            expected[count++] = uids[i];
+                            break;
+                        }
+                    }
+                }
+                assertArrayEquals(Arrays.toString(idSet), Arrays.copyOf(expected, count),
+                        folder.getMessageUids(idSet, useUids));
+            }
+        }
+    }
+}
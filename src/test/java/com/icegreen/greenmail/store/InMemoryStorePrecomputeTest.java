@@ -0,0 +1,176 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import java.io.ByteArrayInputStream;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.mail.Flags;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class InMemoryStorePrecomputeTest {
+    private static final String[] RAW = {
+            "From: alice@example.com\r\nTo: bob@example.com\r\nSubject: plain\r\n\r\nHello\r\n",
+            "From: bob@example.com\r\nSubject: multipart\r\nMIME-Version: 1.0\r\n"
+                    + "Content-Type: multipart/mixed; boundary=\"b\"\r\n\r\n"
+                    + "--b\r\nContent-Type: text/plain\r\n\r\ntext\r\n"
+                    + "--b\r\nContent-Type: text/html\r\n\r\n<p>html</p>\r\n--b--\r\n",
+            "Subject: no addresses\r\n\r\n",
+    };
+    private static final String PRECOMPUTE_THREAD = "GreenMail attribute precompute";
+
+    private RecordingStore store;
+    private MailFolder folder;
+    private InMemoryStore lazyStore;
+    private MailFolder lazyFolder;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        store = new RecordingStore();
+        folder = store.createMailbox(store.getMailbox("#mail"), "INBOX", true);
+        lazyStore = new InMemoryStore();
+        lazyFolder = lazyStore.createMailbox(lazyStore.getMailbox("#mail"), "INBOX", true);
+    }
+
+    @After
+    public void tearDown()
+    {
+        store.release.countDown();
+        store.setAttributePrecomputeThreads(0);
+    }
+
+    @Test
+    public void testPrecomputedAttributesMatchLazyOnes() throws Exception
+    {
+        store.setAttributePrecomputeThreads(2);
+        for (int i = 0; i < RAW.length; i++) {
+            Date date = new Date(i * 1000L);
+            folder.appendMessage(message(RAW[i]), new Flags(), date);
+            lazyFolder.appendMessage(message(RAW[i]), new Flags(), date);
+        }
+        for (long uid = 1; uid <= RAW.length; uid++) {
+            RecordingMessage message = (RecordingMessage) folder.getMessage(uid);
+            assertTrue(message.parsed.await(10, TimeUnit.SECONDS));
+            assertEquals(PRECOMPUTE_THREAD, message.parsedBy);
+            assertSameAttributes(lazyFolder.getMessage(uid).getAttributes(), message.getAttributes());
+        }
+    }
+
+    @Test
+    public void testDroppedMessagesAreParsedOnFetch() throws Exception
+    {
+        store.setAttributePrecomputeThreads(1);
+        store.block = true;
+        folder.appendMessage(message(RAW[0]), new Flags(), new Date());
+        // The only thread is busy with the first message, the others fill the queue
+        RecordingMessage first = (RecordingMessage) folder.getMessage(1);
+        assertTrue(first.parsed.await(10, TimeUnit.SECONDS));
+        store.block = false;
+        MimeMessage queued = message(RAW[2]);
+        for (int i = 0; i < 10000; i++) {
+            folder.appendMessage(queued, new Flags(), new Date());
+        }
+        long dropped = folder.appendMessage(message(RAW[1]), new Flags(), new Date(0));
+        lazyFolder.appendMessage(message(RAW[1]), new Flags(), new Date(0));
+
+        RecordingMessage message = (RecordingMessage) folder.getMessage(dropped);
+        assertSameAttributes(lazyFolder.getMessage(1).getAttributes(), message.getAttributes());
+        assertEquals(Thread.currentThread().getName(), message.parsedBy);
+
+        store.release.countDown();
+        assertNotNull(first.getAttributes().getEnvelope());
+    }
+
+    private static void assertSameAttributes(MailMessageAttributes expected, MailMessageAttributes actual)
+    {
+        assertEquals(expected.getEnvelope(), actual.getEnvelope());
+        assertEquals(expected.getBodyStructure(true), actual.getBodyStructure(true));
+        assertEquals(expected.getBodyStructure(false), actual.getBodyStructure(false));
+        assertEquals(expected.getSize(), actual.getSize());
+        assertEquals(expected.getInternalDateAsString(), actual.getInternalDateAsString());
+    }
+
+    private static MimeMessage message(String raw) throws Exception
+    {
+        return new MimeMessage(Session.getInstance(new Properties()), new ByteArrayInputStream(raw.getBytes("US-ASCII")));
+    }
+
+    /**
+     * Stores messages recording which thread parsed their attributes first.
+     */
+    private static class RecordingStore extends InMemoryStore {
+        private final CountDownLatch release = new CountDownLatch(1);
+        private volatile boolean block;
+
+        SimpleStoredMessage createStoredMessage(MimeMessage message, Flags flags, Date internalDate)
+                throws FolderException {
+            SimpleStoredMessage storedMessage = new RecordingMessage(message, flags, internalDate, block ? release : null);
+            storedMessage.getRawMessage();
+            return storedMessage;
+        }
+    }
+
+    private static class RecordingMessage extends SimpleStoredMessage {
+        private final CountDownLatch parsed = new CountDownLatch(1);
+        private final CountDownLatch release;
+        private volatile String parsedBy;
+
+        RecordingMessage(MimeMessage message, Flags flags, Date internalDate, CountDownLatch release)
+        {
+            super(message, flags, internalDate, 0);
+            this.release = release;
+        }
+
+        public MailMessageAttributes getAttributes() throws FolderException {
+            synchronized (this) {
+                if (parsedBy == null) {
+                    parsedBy = Thread.currentThread().getName();
+                }
+            }
+            parsed.countDown();
+            if (release != null) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.getAttributes();
+        }
+    }
+}
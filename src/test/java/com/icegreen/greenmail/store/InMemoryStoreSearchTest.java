@@ -0,0 +1,282 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import java.io.ByteArrayInputStream;
+import java.util.Date;
+import java.util.Properties;
+
+import jakarta.mail.Flags;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.search.AndTerm;
+import jakarta.mail.search.ComparisonTerm;
+import jakarta.mail.search.FlagTerm;
+import jakarta.mail.search.FromTerm;
+import jakarta.mail.search.HeaderTerm;
+import jakarta.mail.search.NotTerm;
+import jakarta.mail.search.OrTerm;
+import jakarta.mail.search.ReceivedDateTerm;
+import jakarta.mail.search.SearchTerm;
+import jakarta.mail.search.SentDateTerm;
+import jakarta.mail.search.SizeTerm;
+import jakarta.mail.search.SubjectTerm;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InMemoryStoreSearchTest {
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    private InMemoryStore store;
+    private MailFolder folder;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        store = new InMemoryStore();
+        folder = store.createMailbox(store.getMailbox("#mail"), "INBOX", true);
+        Session session = Session.getInstance(new Properties());
+        for (int i = 1; i <= 6; i++) {
+            StringBuilder raw = new StringBuilder();
+            raw.append("Subject: ").append(i % 2 == 0 ? "even " : "odd ").append(i).append("\r\n\r\n");
+            for (int j = 0; j < i * 100; j++) {
+                raw.append('x');
+            }
+            MimeMessage message = new MimeMessage(session, new ByteArrayInputStream(raw.toString().getBytes("US-ASCII")));
+            Flags flags = new Flags();
+            if (i <= 3) {
+                flags.add(Flags.Flag.SEEN);
+            }
+            if (i == 2 || i == 5) {
+                flags.add(Flags.Flag.FLAGGED);
+                flags.add("$Important");
+            }
+            folder.appendMessage(message, flags, new Date(i * DAY));
+        }
+    }
+
+    @Test
+    public void testFlags() throws Exception
+    {
+        assertSearch(new long[]{1, 2, 3}, new FlagTerm(new Flags(Flags.Flag.SEEN), true));
+        assertSearch(new long[]{4, 5, 6}, new FlagTerm(new Flags(Flags.Flag.SEEN), false));
+        Flags seenFlagged = new Flags(Flags.Flag.SEEN);
+        seenFlagged.add(Flags.Flag.FLAGGED);
+        assertSearch(new long[]{2}, new FlagTerm(seenFlagged, true));
+        assertSearch(new long[]{2, 5}, new FlagTerm(new Flags("$important"), true));
+        assertSearch(new long[]{1, 3, 4, 6}, new FlagTerm(new Flags("$Important"), false));
+    }
+
+    @Test
+    public void testUidDateAndSize() throws Exception
+    {
+        assertSearch(new long[]{2, 3, 6}, new UidSearchTerm(new long[]{2, 3, 6, Long.MAX_VALUE}));
+        assertSearch(new long[]{1, 2}, new ReceivedDateTerm(ComparisonTerm.LT, new Date(3 * DAY)));
+        assertSearch(new long[]{3}, new ReceivedDateTerm(ComparisonTerm.EQ, new Date(3 * DAY)));
+        long size = folder.getMessage(4).getSize();
+        assertSearch(new long[]{5, 6}, new SizeTerm(ComparisonTerm.GT, (int) size));
+        assertSearch(new long[]{1, 2, 3}, new SizeTerm(ComparisonTerm.LT, (int) size));
+    }
+
+    @Test
+    public void testCombinedTerms() throws Exception
+    {
+        SearchTerm unseenEven = new AndTerm(new SearchTerm[]{
+                new SubjectTerm("even"),
+                new FlagTerm(new Flags(Flags.Flag.SEEN), false)});
+        assertSearch(new long[]{4, 6}, unseenEven);
+        assertSearch(new long[]{1, 3, 5}, new NotTerm(new SubjectTerm("even")));
+        assertSearch(new long[]{2, 3, 5, 6}, new OrTerm(new SearchTerm[]{
+                new FlagTerm(new Flags(Flags.Flag.FLAGGED), true),
+                new OrTerm(new SubjectTerm("odd 3"), new UidSearchTerm(new long[]{6, 6}))}));
+    }
+
+    @Test
+    public void testParallelSearchKeepsUidOrder() throws Exception
+    {
+        for (int i = 7; i <= 5000; i++) {
+            folder.appendMessage(null, i % 3 == 0 ? new Flags(Flags.Flag.SEEN) : new Flags(), new Date(i * DAY));
+        }
+        // Not answered by the indexes alone, so that every message is matched
+        SearchTerm term = new OrTerm(new FlagTerm(new Flags(Flags.Flag.SEEN), true),
+                new NotTerm(new ReceivedDateTerm(ComparisonTerm.LT, new Date(4990 * DAY))));
+        long[] sequential = folder.search(term);
+
+        store.setParallelSearchThreshold(1);
+        assertArrayEquals(sequential, folder.search(term));
+        assertSearch(new long[]{4, 6}, new AndTerm(new SubjectTerm("even"),
+                new FlagTerm(new Flags(Flags.Flag.SEEN), false)));
+    }
+
+    @Test
+    public void testTextIndex() throws Exception
+    {
+        SearchTerm even = new HeaderTerm("Subject", "EVEN");
+        assertSearch(new long[]{2, 4, 6}, even);
+
+        store.setTextIndexed(folder, true);
+        assertTrue(store.getTextIndexMemoryUsage(folder) > 0);
+        assertSearch(new long[]{2, 4, 6}, even);
+        assertSearch(new long[]{4}, new HeaderTerm("Subject", "even 4"));
+        assertSearch(new long[0], new HeaderTerm("Subject", "eleven"));
+
+        folder.appendMessage(new MimeMessage(Session.getInstance(new Properties()),
+                new ByteArrayInputStream("Subject: even 8\r\n\r\n".getBytes("US-ASCII"))), new Flags(), new Date());
+        folder.setFlags(new Flags(Flags.Flag.DELETED), true, new long[]{2}, null, false);
+        folder.expunge();
+        assertSearch(new long[]{4, 6, 7}, even);
+
+        store.setTextIndexed(folder, false);
+        assertEquals(0, store.getTextIndexMemoryUsage(folder));
+        assertSearch(new long[]{4, 6, 7}, even);
+    }
+
+    @Test
+    public void testHeaderIndex() throws Exception
+    {
+        assertEquals(0, store.getTextIndexMemoryUsage(folder));
+        store.setHeaderIndexed(folder, true);
+        long memory = store.getTextIndexMemoryUsage(folder);
+        assertTrue(memory > 0);
+        assertSearch(new long[]{2, 4, 6}, new SubjectTerm("even"));
+
+        Session session = Session.getInstance(new Properties());
+        for (int i = 7; i <= 9; i++) {
+            String raw = "From: sender" + (i % 2) + "@example.com\r\nMessage-ID: <" + i + "@example.com>\r\n\r\n";
+            folder.appendMessage(new MimeMessage(session, new ByteArrayInputStream(raw.getBytes("US-ASCII"))),
+                    new Flags(), new Date());
+        }
+        assertSearch(new long[]{8}, new HeaderTerm("Message-ID", "<8@example.com>"));
+        assertSearch(new long[]{7, 9}, new FromTerm(new InternetAddress("Sender1@example.com")));
+        assertSearch(new long[]{9}, new AndTerm(new FromTerm(new InternetAddress("sender1@example.com")),
+                new UidSearchTerm(new long[]{8, Long.MAX_VALUE})));
+        assertSearch(new long[]{2, 4, 6, 8}, new OrTerm(new SubjectTerm("even"),
+                new HeaderTerm("Message-ID", "<8@example.com>")));
+
+        assertTrue(store.getTextIndexMemoryUsage(folder) > memory);
+
+        folder.setFlags(new Flags(Flags.Flag.DELETED), true, new long[]{8}, null, false);
+        folder.expunge();
+        assertSearch(new long[0], new HeaderTerm("Message-ID", "<8@example.com>"));
+
+        store.setHeaderIndexed(folder, false);
+        assertEquals(0, store.getTextIndexMemoryUsage(folder));
+        assertSearch(new long[]{7, 9}, new FromTerm(new InternetAddress("sender1@example.com")));
+    }
+
+    @Test
+    public void testFlagIndex() throws Exception
+    {
+        SearchTerm important = new FlagTerm(new Flags("$Important"), true);
+        SearchTerm unseenOrImportant = new OrTerm(new FlagTerm(new Flags(Flags.Flag.SEEN), false), important);
+        assertSearch(new long[]{2, 4, 5, 6}, unseenOrImportant);
+        assertSearch(new long[]{1, 3}, new NotTerm(unseenOrImportant));
+        assertSearch(new long[]{5}, new AndTerm(important,
+                new UidSearchTerm(new long[]{3, Long.MAX_VALUE})));
+        assertEquals(4, folder.getFirstUnseen());
+
+        folder.setFlags(new Flags("$Important"), false, new long[]{2}, null, false);
+        folder.replaceFlags(new Flags(Flags.Flag.SEEN), 4, null, false);
+        assertSearch(new long[]{5}, important);
+        assertEquals(5, folder.getFirstUnseen());
+
+        folder.setFlags(new Flags(Flags.Flag.DELETED), true, new long[]{1, 3}, null, false);
+        assertEquals(4, folder.getNonDeletedMessages().size());
+        assertSearch(new long[]{1, 3}, new FlagTerm(new Flags(Flags.Flag.DELETED), true));
+        folder.expunge();
+        assertSearch(new long[]{2, 4}, new FlagTerm(new Flags(Flags.Flag.SEEN), true));
+        assertSearch(new long[]{5, 6}, new FlagTerm(new Flags(Flags.Flag.SEEN), false));
+        assertSearch(new long[]{5}, important);
+        assertEquals(3, folder.getFirstUnseen());
+        assertEquals(4, folder.getNonDeletedMessages().size());
+    }
+
+    @Test
+    public void testDateAndSizeIndexes() throws Exception
+    {
+        Session session = Session.getInstance(new Properties());
+        String[] dates = {"Tue, 3 Jan 2023 10:00:00 +0000", "Sun, 1 Jan 2023 10:00:00 +0000", "bogus"};
+        for (int i = 0; i < dates.length; i++) {
+            String raw = "Date: " + dates[i] + "\r\nSubject: dated\r\n\r\n";
+            folder.appendMessage(new MimeMessage(session, new ByteArrayInputStream(raw.getBytes("US-ASCII"))),
+                    new Flags(), new Date((10 - i) * DAY));
+        }
+        Date jan2 = new Date(1672617600000L);
+        assertSearch(new long[]{8}, new SentDateTerm(ComparisonTerm.LT, jan2));
+        assertSearch(new long[]{7}, new SentDateTerm(ComparisonTerm.GE, jan2));
+        assertSearch(new long[]{1, 2, 3, 4, 5, 6, 9}, new NotTerm(new SentDateTerm(ComparisonTerm.GT, new Date(0))));
+
+        assertSearch(new long[]{8, 9}, new AndTerm(new ReceivedDateTerm(ComparisonTerm.GT, new Date(7 * DAY)),
+                new ReceivedDateTerm(ComparisonTerm.LT, new Date(10 * DAY))));
+        assertSearch(new long[]{1, 2, 3, 4, 5, 6, 8, 9}, new ReceivedDateTerm(ComparisonTerm.NE, new Date(10 * DAY)));
+        assertSearch(new long[]{4, 5, 6}, new AndTerm(new ReceivedDateTerm(ComparisonTerm.GE, new Date(4 * DAY)),
+                new ReceivedDateTerm(ComparisonTerm.LE, new Date(6 * DAY))));
+        long size = folder.getMessage(3).getSize();
+        assertSearch(new long[]{3, 5}, new OrTerm(new SizeTerm(ComparisonTerm.EQ, (int) size),
+                new AndTerm(new FlagTerm(new Flags(Flags.Flag.FLAGGED), true),
+                        new ReceivedDateTerm(ComparisonTerm.GT, new Date(2 * DAY)))));
+
+        folder.setFlags(new Flags(Flags.Flag.DELETED), true, new long[]{3, 8}, null, false);
+        folder.expunge();
+        assertSearch(new long[0], new SentDateTerm(ComparisonTerm.LT, jan2));
+        assertSearch(new long[]{1, 2, 9}, new OrTerm(new ReceivedDateTerm(ComparisonTerm.LT, new Date(4 * DAY)),
+                new ReceivedDateTerm(ComparisonTerm.EQ, new Date(8 * DAY))));
+        assertSearch(new long[0], new SizeTerm(ComparisonTerm.EQ, (int) size));
+    }
+
+    @Test
+    public void testDayRanges() throws Exception
+    {
+        Session session = Session.getInstance(new Properties());
+        String[] dates = {"Tue, 3 Jan 2023 10:00:00 +0000", "Tue, 3 Jan 2023 23:30:00 +0000",
+                "Wed, 4 Jan 2023 00:00:00 +0000", "bogus"};
+        long[] received = {3 * DAY + 3600000, 3 * DAY + DAY - 1, 2 * DAY + 1, 4 * DAY + 1};
+        for (int i = 0; i < dates.length; i++) {
+            String raw = "Date: " + dates[i] + "\r\nSubject: dated\r\n\r\n";
+            folder.appendMessage(new MimeMessage(session, new ByteArrayInputStream(raw.getBytes("US-ASCII"))),
+                    new Flags(), new Date(received[i]));
+        }
+        // As built for SEARCH ON and SENTON, the internal dates are out of order
+        assertSearch(new long[]{3, 7, 8}, new AndTerm(new ReceivedDateTerm(ComparisonTerm.GE, new Date(3 * DAY)),
+                new ReceivedDateTerm(ComparisonTerm.LT, new Date(4 * DAY))));
+        assertSearch(new long[]{2, 9}, new AndTerm(new ReceivedDateTerm(ComparisonTerm.LT, new Date(3 * DAY)),
+                new ReceivedDateTerm(ComparisonTerm.GE, new Date(2 * DAY))));
+        Date jan3 = new Date(1672704000000L);
+        Date jan4 = new Date(jan3.getTime() + DAY);
+        assertSearch(new long[]{7, 8}, new AndTerm(new SentDateTerm(ComparisonTerm.GE, jan3),
+                new SentDateTerm(ComparisonTerm.LT, jan4)));
+    }
+
+    private void assertSearch(long[] expected, SearchTerm term) throws FolderException
+    {
+        assertArrayEquals(expected, folder.search(term));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Times LIST patterns against a tree of 10k mailboxes (1000 users with 10 mailboxes each),
+ * comparing {@link InMemoryStore#listMailboxes} with matching the full name of every mailbox
+ * against an equivalent regular expression.
+ * <p/>
+ * Not a unit test, run the main method manually:
+ * <pre>java com.icegreen.greenmail.store.ListMailboxesBenchmark</pre>
+ */
+public class ListMailboxesBenchmark {
+
+    private static final int USERS = 1000;
+    private static final String[] FOLDERS = {"Sent", "Drafts", "Trash", "Archive", "Work", "Private"};
+    private static final String[] INBOX_FOLDERS = {"Lists", "Travel", "Receipts"};
+    private static final int ROUNDS = 200;
+
+    public static void main(String[] args) throws FolderException {
+        InMemoryStore store = new InMemoryStore();
+        MailFolder root = store.getMailbox("#mail");
+        List all = new ArrayList();
+        for (int u = 0; u < USERS; u++) {
+            MailFolder user = store.createMailbox(root, "user" + u, false);
+            MailFolder inbox = store.createMailbox(user, "INBOX", true);
+            all.add(user);
+            all.add(inbox);
+            for (int i = 0; i < INBOX_FOLDERS.length; i++) {
+                all.add(store.createMailbox(inbox, INBOX_FOLDERS[i], true));
+            }
+            for (int i = 0; i < FOLDERS.length; i++) {
+                all.add(store.createMailbox(user, FOLDERS[i], true));
+            }
+        }
+        System.out.println(all.size() + " mailboxes");
+
+        String[] patterns = {
+                "#mail/user500/*",
+                "#mail/user500/%",
+                "#mail/user500/INBOX/%",
+                "#mail/*/INBOX",
+                "#mail/%/Trash",
+                "#mail/user5%/INBOX/T*",
+                "#mail/%",
+                "*"
+        };
+        System.out.println("pattern  matches  walk-and-match(ms)  listMailboxes(ms)");
+        for (int i = 0; i < patterns.length; i++) {
+            String pattern = patterns[i];
+            int expected = walkAndMatch(all, pattern);
+            if (store.listMailboxes(pattern).size() != expected) {
+                throw new IllegalStateException("Unexpected matches for " + pattern);
+            }
+
+            long start = System.nanoTime();
+            for (int r = 0; r < ROUNDS; r++) {
+                walkAndMatch(all, pattern);
+            }
+            long walk = (System.nanoTime() - start) / 1000000L;
+
+            start = System.nanoTime();
+            for (int r = 0; r < ROUNDS; r++) {
+                store.listMailboxes(pattern);
+            }
+            long list = (System.nanoTime() - start) / 1000000L;
+            System.out.println(pattern + "  " + expected + "  " + walk + "  " + list);
+        }
+    }
+
+    private static int walkAndMatch(Collection mailboxes, String pattern) {
+        Pattern regex = Pattern.compile(toRegex(pattern), Pattern.CASE_INSENSITIVE);
+        int matches = 0;
+        Iterator iterator = mailboxes.iterator();
+        while (iterator.hasNext()) {
+            MailFolder folder = (MailFolder) iterator.next();
+            if (regex.matcher(folder.getFullName()).matches()) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    private static String toRegex(String pattern) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*') {
+                regex.append(".*");
+            } else if (c == '%') {
+                regex.append("[^/]*");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return regex.toString();
+    }
+}
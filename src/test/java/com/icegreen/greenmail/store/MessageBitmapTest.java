@@ -0,0 +1,90 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageBitmapTest {
+    @Test
+    public void testSetAndClear()
+    {
+        MessageBitmap bitmap = new MessageBitmap();
+        assertTrue(bitmap.isEmpty());
+        bitmap.set(3);
+        bitmap.set(60, 130);
+        assertEquals(71, bitmap.cardinality());
+        assertTrue(bitmap.get(64));
+        assertFalse(bitmap.get(130));
+        assertEquals(60, bitmap.nextSetBit(4));
+        assertEquals(-1, bitmap.nextSetBit(130));
+        assertEquals(130, bitmap.nextClearBit(60));
+
+        bitmap.clear(3);
+        bitmap.clear(1000);
+        assertEquals(60, bitmap.nextSetBit(0));
+        bitmap.clear();
+        assertTrue(bitmap.isEmpty());
+    }
+
+    @Test
+    public void testRemoveAll()
+    {
+        MessageBitmap bitmap = new MessageBitmap();
+        bitmap.set(1);
+        bitmap.set(63);
+        bitmap.set(64);
+        bitmap.set(200);
+        // Removes positions 0, 63 and 100, shifting the later bits down
+        bitmap.removeAll(new int[]{0, 63, 100}, 3);
+        assertEquals(3, bitmap.cardinality());
+        assertTrue(bitmap.get(0));
+        assertTrue(bitmap.get(62));
+        assertTrue(bitmap.get(197));
+    }
+
+    @Test
+    public void testBooleanOperations()
+    {
+        MessageBitmap even = new MessageBitmap();
+        MessageBitmap low = new MessageBitmap();
+        for (int i = 0; i < 150; i += 2) {
+            even.set(i);
+        }
+        low.set(0, 10);
+
+        assertEquals(5, even.and(low).cardinality());
+        assertEquals(80, even.or(low).cardinality());
+        MessageBitmap odd = even.not(150);
+        assertEquals(75, odd.cardinality());
+        assertEquals(1, odd.nextSetBit(0));
+        assertEquals(-1, odd.nextSetBit(150));
+        assertEquals(75, even.cardinality());
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import java.util.Date;
+
+import jakarta.mail.Flags;
+
+/**
+ * Compares the former FETCH/STORE/COPY message selection (list all UIDs, resolve every UID
+ * to its MSN and test it against the message set) with
+ * {@link MailFolder#getMessageUids(long[], boolean)} for sparse message sets on a large folder.
+ * <p/>
+ * Not a unit test, run the main method manually:
+ * <pre>java com.icegreen.greenmail.store.MessageSetBenchmark</pre>
+ */
+public class MessageSetBenchmark {
+    private static final int MESSAGES = 100000;
+    private static final int ROUNDS = 20;
+
+    public static void main(String[] args) throws Exception {
+        InMemoryStore store = new InMemoryStore();
+        MailFolder folder = store.createMailbox(store.getMailbox("#mail"), "INBOX", true);
+        for (int i = 0; i < MESSAGES; i++) {
+            folder.appendMessage(null, new Flags(), new Date());
+        }
+
+        long[][] sets = {
+                {4999, 5000},
+                {99990, Long.MAX_VALUE},
+                {1, 1, 25000, 25000, 50000, 50000, 75000, 75000, 100000, 100000},
+                sparse(100),
+        };
+        String[] names = {"4999:5000", "99990:*", "5 singles", "100 singles"};
+        System.out.println("set  uid-scan  uid-ranges  msn-scan  msn-ranges (ms per command)");
+        for (int i = 0; i < sets.length; i++) {
+            System.out.println(names[i] + "  " + runScan(folder, sets[i], true) + "  " + runRanges(folder, sets[i], true)
+                    + "  " + runScan(folder, sets[i], false) + "  " + runRanges(folder, sets[i], false));
+        }
+    }
+
+    private static long[] sparse(int count) {
+        long[] set = new long[count * 2];
+        for (int i = 0; i < count; i++) {
+            set[2 * i] = (long) (count - i) * (MESSAGES / count);
+            set[2 * i + 1] = set[2 * i];
+        }
+        return set;
+    }
+
+    private static double runScan(MailFolder folder, long[] idSet, boolean useUids) throws FolderException {
+        long start = System.nanoTime();
+        long checksum = 0;
+        for (int n = 0; n < ROUNDS; n++) {
+            long[] uids = folder.getMessageUids();
+            for (int i = 0; i < uids.length; i++) {
+                int msn = folder.getMsn(uids[i]);
+                long id = useUids ? uids[i] : msn;
+                for (int j = 0; j < idSet.length; j += 2) {
+                    if (idSet[j] <= id && id <= idSet[j + 1]) {
+                        checksum += uids[i];
+                        break;
+                    }
+                }
+            }
+        }
+        return elapsed(start, checksum);
+    }
+
+    private static double runRanges(MailFolder folder, long[] idSet, boolean useUids) throws FolderException {
+        long start = System.nanoTime();
+        long checksum = 0;
+        for (int n = 0; n < ROUNDS; n++) {
+            long[] uids = folder.getMessageUids(idSet, useUids);
+            for (int i = 0; i < uids.length; i++) {
+                checksum += folder.getMsn(uids[i]) > 0 ? uids[i] : 0;
+            }
+        }
+        return elapsed(start, checksum);
+    }
+
+    private static double elapsed(long start, long checksum) {
+        if (checksum == 0) {
+            throw new IllegalStateException("Nothing selected");
+        }
+        return (System.nanoTime() - start) / 1000 / ROUNDS / 1000.0;
+    }
+}
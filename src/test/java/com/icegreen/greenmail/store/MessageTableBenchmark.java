@@ -0,0 +1,111 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+
+import jakarta.mail.Flags;
+
+/**
+ * Compares a <code>UID FETCH 1:*</code> style access pattern (list all UIDs, then resolve
+ * every UID to its MSN and message) on the former linked list folder storage against
+ * {@link MessageTable}.
+ * <p/>
+ * Not a unit test, run the main method manually:
+ * <pre>java com.icegreen.greenmail.store.MessageTableBenchmark</pre>
+ */
+public class MessageTableBenchmark {
+
+    public static void main(String[] args) {
+        System.out.println("messages  linked-list(ms)  message-table(ms)");
+        int[] sizes = {250, 500, 1000, 2000, 50000, 200000};
+        for (int i = 0; i < sizes.length; i++) {
+            int size = sizes[i];
+            // The linked list scan is cubic, only run it for the small sizes
+            String linked = size <= 2000 ? String.valueOf(runLinkedList(size)) : "-";
+            System.out.println(size + "  " + linked + "  " + runMessageTable(size));
+        }
+    }
+
+    private static long runLinkedList(int size) {
+        List messages = new LinkedList();
+        for (int i = 1; i <= size; i++) {
+            messages.add(new SimpleStoredMessage(null, new Flags(), new Date(), i));
+        }
+
+        long start = System.nanoTime();
+        long checksum = 0;
+        long[] uids = new long[messages.size()];
+        for (int i = 0; i < messages.size(); i++) {
+            uids[i] = ((SimpleStoredMessage) messages.get(i)).getUid();
+        }
+        for (int i = 0; i < uids.length; i++) {
+            // Former HierarchicalFolder.getMsn(uid) followed by getMessage(uid)
+            for (int j = 0; j < messages.size(); j++) {
+                if (((SimpleStoredMessage) messages.get(j)).getUid() == uids[i]) {
+                    checksum += j + 1;
+                    break;
+                }
+            }
+            for (int j = 0; j < messages.size(); j++) {
+                SimpleStoredMessage message = (SimpleStoredMessage) messages.get(j);
+                if (message.getUid() == uids[i]) {
+                    checksum += message.getUid();
+                    break;
+                }
+            }
+        }
+        verify(checksum, size);
+        return (System.nanoTime() - start) / 1000000L;
+    }
+
+    private static long runMessageTable(int size) {
+        MessageTable table = new MessageTable();
+        for (int i = 1; i <= size; i++) {
+            table.add(new SimpleStoredMessage(null, new Flags(), new Date(), i));
+        }
+
+        long start = System.nanoTime();
+        long checksum = 0;
+        long[] uids = table.getUids();
+        for (int i = 0; i < uids.length; i++) {
+            int index = table.indexOf(uids[i]);
+            checksum += index + 1;
+            checksum += table.get(index).getUid();
+        }
+        verify(checksum, size);
+        return (System.nanoTime() - start) / 1000000L;
+    }
+
+    private static void verify(long checksum, int size) {
+        long expected = (long) size * (size + 1);
+        if (checksum != expected) {
+            throw new IllegalStateException("Unexpected checksum " + checksum + ", expected " + expected);
+        }
+    }
+}
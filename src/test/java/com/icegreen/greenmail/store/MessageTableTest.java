@@ -0,0 +1,83 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import java.util.Date;
+
+import jakarta.mail.Flags;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class MessageTableTest {
+
+    private MessageTable table;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        table = new MessageTable();
+        for (long uid = 1; uid <= 10; uid++) {
+            table.add(new SimpleStoredMessage(null, new Flags(), new Date(), uid));
+        }
+    }
+
+    @Test
+    public void testRemoveAll() throws Exception
+    {
+        table.removeAll(new int[]{0, 1, 4, 9});
+        assertArrayEquals(new long[]{3, 4, 6, 7, 8, 9}, table.getUids());
+        assertEquals(6, table.get(2).getUid());
+        assertEquals(2, table.indexOf(6));
+    }
+
+    @Test
+    public void testRemoveAllRejectsBadIndexes() throws Exception
+    {
+        assertRejected(new int[]{1, 4, 3}, IllegalArgumentException.class);
+        assertRejected(new int[]{2, 2}, IllegalArgumentException.class);
+        assertRejected(new int[]{8, 10}, IndexOutOfBoundsException.class);
+        assertRejected(new int[]{-1, 3}, IndexOutOfBoundsException.class);
+    }
+
+    private void assertRejected(int[] indexes, Class expected)
+    {
+        try {
+            table.removeAll(indexes);
+            fail("Expected " + expected.getSimpleName());
+        } catch (RuntimeException e) {
+            assertEquals(expected, e.getClass());
+        }
+        // Left as it was
+        assertArrayEquals(new long[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10}, table.getUids());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i + 1, table.get(i).getUid());
+        }
+    }
+}
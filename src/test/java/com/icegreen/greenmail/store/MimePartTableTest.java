@@ -0,0 +1,108 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class MimePartTableTest {
+
+    private static final String MULTIPART =
+            "Subject: multi\r\nContent-Type: multipart/mixed; boundary=\"outer\"\r\n\r\n"
+            + "preamble\r\n"
+            + "--outer\r\nContent-Type: text/plain\r\n\r\nfirst part\r\n"
+            + "--outer\r\nContent-Type: multipart/alternative;\r\n boundary=inner\r\n\r\n"
+            + "--inner\r\n\r\nplain alt\r\n--inner\r\nContent-Type: text/html\r\n\r\n<b>html alt</b>\r\n--inner--\r\n"
+            + "--outer\r\nContent-Type: message/rfc822\r\n\r\n"
+            + "Subject: enclosed\r\nContent-Type: multipart/mixed; boundary=enc\r\n\r\n"
+            + "--enc\r\n\r\nenclosed one\r\n--enc\r\n\r\nenclosed two\r\n--enc--\r\n"
+            + "--outer--\r\nepilogue\r\n";
+
+    @Test
+    public void testSinglePart() throws Exception
+    {
+        String message = "Subject: single\r\n\r\nthe body\r\n";
+        MimePartTable table = new MimePartTable(bytes(message));
+        assertEquals("Subject: single\r\n\r\n", header(message, table.getSection(new int[0])));
+        assertEquals("the body\r\n", body(message, table.getSection(new int[]{1})));
+        assertNull(table.getSection(new int[]{2}));
+        assertNull(table.getSection(new int[]{1, 1}));
+    }
+
+    @Test
+    public void testNestedParts() throws Exception
+    {
+        MimePartTable table = new MimePartTable(bytes(MULTIPART));
+        assertEquals("first part", body(MULTIPART, table.getSection(new int[]{1})));
+        assertEquals("Content-Type: text/plain\r\n\r\n", header(MULTIPART, table.getSection(new int[]{1})));
+        assertEquals("plain alt", body(MULTIPART, table.getSection(new int[]{2, 1})));
+        assertEquals("", header(MULTIPART, table.getSection(new int[]{2, 1})).trim());
+        assertEquals("<b>html alt</b>", body(MULTIPART, table.getSection(new int[]{2, 2})));
+        assertNull(table.getSection(new int[]{2, 3}));
+        assertNull(table.getSection(new int[]{4}));
+        assertNull(table.getSection(new int[]{1, 1}));
+    }
+
+    @Test
+    public void testEnclosedMessage() throws Exception
+    {
+        MimePartTable table = new MimePartTable(bytes(MULTIPART));
+        MimePartTable.Section part = table.getSection(new int[]{3});
+        assertEquals("Content-Type: message/rfc822\r\n\r\n", header(MULTIPART, part));
+        MimePartTable.Section enclosed = part.getMessage();
+        assertEquals("Subject: enclosed\r\nContent-Type: multipart/mixed; boundary=enc\r\n\r\n",
+                header(MULTIPART, enclosed));
+        assertEquals(body(MULTIPART, part), MULTIPART.substring(enclosed.getHeaderStart(), enclosed.getEnd()));
+        assertEquals("enclosed one", body(MULTIPART, table.getSection(new int[]{3, 1})));
+        assertEquals("enclosed two", body(MULTIPART, table.getSection(new int[]{3, 2})));
+        assertNull(table.getSection(new int[]{1}).getMessage());
+    }
+
+    @Test
+    public void testMissingCloseDelimiter() throws Exception
+    {
+        String message = "Content-Type: multipart/mixed; boundary=b\r\n\r\n--b\r\n\r\none\r\n--b\r\n\r\ntwo\r\n";
+        MimePartTable table = new MimePartTable(bytes(message));
+        assertEquals("one", body(message, table.getSection(new int[]{1})));
+        assertEquals("two\r\n", body(message, table.getSection(new int[]{2})));
+    }
+
+    private static byte[] bytes(String message) {
+        return message.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String header(String message, MimePartTable.Section section) {
+        return message.substring(section.getHeaderStart(), section.getBodyStart());
+    }
+
+    private static String body(String message, MimePartTable.Section section) {
+        return message.substring(section.getBodyStart(), section.getEnd());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import jakarta.mail.search.ComparisonTerm;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RangeIndexTest {
+    @Test
+    public void testSearch()
+    {
+        RangeIndex index = new RangeIndex();
+        index.add(1, 10);
+        index.add(2, 20);
+        index.add(3, 20);
+        index.add(4, 5);
+        index.add(5, 30);
+
+        assertArrayEquals(new long[]{1, 4}, index.search(ComparisonTerm.LT, 20));
+        assertArrayEquals(new long[]{1, 2, 3, 4}, index.search(ComparisonTerm.LE, 20));
+        assertArrayEquals(new long[]{2, 3}, index.search(ComparisonTerm.EQ, 20));
+        assertArrayEquals(new long[]{1, 4, 5}, index.search(ComparisonTerm.NE, 20));
+        assertArrayEquals(new long[]{5}, index.search(ComparisonTerm.GT, 20));
+        assertArrayEquals(new long[]{2, 3, 5}, index.search(ComparisonTerm.GE, 20));
+        assertArrayEquals(new long[0], index.search(ComparisonTerm.GT, 30));
+
+        assertArrayEquals(new long[]{1, 2, 3}, index.searchRange(10, 30));
+        assertArrayEquals(new long[]{1, 4}, index.searchRange(0, 20));
+        assertArrayEquals(new long[0], index.searchRange(11, 20));
+        index.add(6, 15);
+        index.addUnknown(7);
+        assertArrayEquals(new long[]{1, 6, 7}, index.searchRange(10, 20));
+    }
+
+    @Test
+    public void testUnorderedValues()
+    {
+        RangeIndex index = new RangeIndex();
+        int count = 5000;
+        // Values in reverse order of the UIDs, so that the unordered entries are merged several times
+        for (int uid = 1; uid <= count; uid++) {
+            index.add(uid, count - uid);
+        }
+        long[] below = index.search(ComparisonTerm.LT, 100);
+        assertEquals(100, below.length);
+        assertEquals(count - 99, below[0]);
+        assertEquals(count, below[99]);
+        assertEquals(count - 100, index.search(ComparisonTerm.GE, 100).length);
+
+        long[] removed = new long[count / 2];
+        for (int i = 0; i < removed.length; i++) {
+            removed[i] = i * 2 + 2;
+        }
+        index.removeAll(removed);
+        assertEquals(50, index.search(ComparisonTerm.LT, 100).length);
+        assertArrayEquals(new long[]{count - 1}, index.search(ComparisonTerm.EQ, 1));
+    }
+
+    @Test
+    public void testUnknownValues()
+    {
+        RangeIndex index = new RangeIndex();
+        index.add(1, 10);
+        index.addUnknown(2);
+        index.add(3, 30);
+        assertFalse(index.isExact());
+        assertArrayEquals(new long[]{2, 3}, index.search(ComparisonTerm.GT, 10));
+
+        index.removeAll(new long[]{2});
+        assertTrue(index.isExact());
+        assertArrayEquals(new long[]{3}, index.search(ComparisonTerm.GT, 10));
+    }
+}
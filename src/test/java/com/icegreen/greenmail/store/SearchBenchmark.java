@@ -0,0 +1,168 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import java.io.ByteArrayInputStream;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import jakarta.mail.Flags;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.search.AndTerm;
+import jakarta.mail.search.BodyTerm;
+import jakarta.mail.search.ComparisonTerm;
+import jakarta.mail.search.FlagTerm;
+import jakarta.mail.search.FromTerm;
+import jakarta.mail.search.HeaderTerm;
+import jakarta.mail.search.OrTerm;
+import jakarta.mail.search.ReceivedDateTerm;
+import jakarta.mail.search.SearchTerm;
+import jakarta.mail.search.SizeTerm;
+import jakarta.mail.search.SubjectTerm;
+
+/**
+ * Compares the former SEARCH evaluation (every term matched against the parsed message)
+ * with {@link MailFolder#search(SearchTerm)} on a large folder. The former path cannot see
+ * stored flags, internal dates or sizes, so only its timing is comparable. The plan is timed
+ * both on the calling thread and split over the common fork join pool, then a HEADER search
+ * with and without the text index of the folder, and BODY and TEXT searches for single words
+ * and parts of words.
+ * <p/>
+ * Not a unit test, run the main method manually:
+ * <pre>java com.icegreen.greenmail.store.SearchBenchmark</pre>
+ */
+public class SearchBenchmark {
+    private static final int MESSAGES = 100000;
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) throws Exception {
+        InMemoryStore store = new InMemoryStore();
+        MailFolder folder = store.createMailbox(store.getMailbox("#mail"), "INBOX", true);
+        store.setHeaderIndexed(folder, true);
+        Session session = Session.getInstance(new Properties());
+        for (int i = 0; i < MESSAGES; i++) {
+            String raw = "Subject: message " + i + "\r\nFrom: sender" + (i % 100) + "@example.com\r\nMessage-ID: <" + i + "@example.com>\r\n\r\nBody " + i + "\r\n";
+            MimeMessage message = new MimeMessage(session, new ByteArrayInputStream(raw.getBytes("US-ASCII")));
+            folder.appendMessage(message, i % 10 == 0 ? new Flags() : new Flags(Flags.Flag.SEEN), new Date(i * 1000L));
+        }
+
+        SearchTerm unseen = new FlagTerm(new Flags(Flags.Flag.SEEN), false);
+        SearchTerm[] terms = {
+                unseen,
+                new ReceivedDateTerm(ComparisonTerm.GE, new Date((MESSAGES - 100) * 1000L)),
+                new ReceivedDateTerm(ComparisonTerm.LT, new Date(MESSAGES / 2 * 1000L)),
+                new SizeTerm(ComparisonTerm.LT, 60),
+                new AndTerm(new SubjectTerm("message 9999"), unseen),
+                new SubjectTerm("message 9999"),
+                new FromTerm(new InternetAddress("sender42@example.com")),
+                new HeaderTerm("Message-ID", "<99999@example.com>"),
+        };
+        String[] names = {"UNSEEN", "SINCE", "BEFORE", "SMALLER", "SUBJECT+UNSEEN", "SUBJECT", "FROM", "MESSAGE-ID"};
+        // The first pass only warms up
+        for (int pass = 0; pass < 2; pass++) {
+            System.out.println("term  message-match  plan  parallel-plan (ms per command)");
+            for (int i = 0; i < terms.length; i++) {
+                store.setParallelSearchThreshold(0);
+                double sequential = runPlan(folder, terms[i]);
+                store.setParallelSearchThreshold(1);
+                System.out.println(names[i] + "  " + runMessageMatch(folder, terms[i]) + "  " + sequential
+                        + "  " + runPlan(folder, terms[i]));
+            }
+        }
+
+        // Single words are looked up inside the indexed words, as substrings
+        SearchTerm[] textTerms = {
+                new HeaderTerm("Subject", "message 99999"),
+                new BodyTerm("99999"),
+                new BodyTerm("ody"),
+                new OrTerm(new BodyTerm("9999"), new HeaderTerm("9999", "9999")),
+        };
+        String[] textNames = {"HEADER", "BODY-WORD", "BODY-SUBSTRING", "TEXT-SUBSTRING"};
+        store.setParallelSearchThreshold(0);
+        double[] unindexed = new double[textTerms.length];
+        for (int i = 0; i < textTerms.length; i++) {
+            unindexed[i] = bestPlan(folder, textTerms[i]);
+        }
+        long headerMemory = store.getTextIndexMemoryUsage(folder);
+        long start = System.nanoTime();
+        store.setTextIndexed(folder, true);
+        System.out.println("text index: built in " + (System.nanoTime() - start) / 1000000 + " ms, "
+                + (store.getTextIndexMemoryUsage(folder) - headerMemory) / 1024 + " KB, header index: "
+                + headerMemory / 1024 + " KB");
+        for (int i = 0; i < textTerms.length; i++) {
+            System.out.println(textNames[i] + "  plan  " + unindexed[i] + "  indexed-plan  " + bestPlan(folder, textTerms[i]));
+        }
+    }
+
+    /**
+     * Building the index grows the heap, the first searches after it are not representative.
+     */
+    private static double bestPlan(MailFolder folder, SearchTerm term) throws FolderException {
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            best = Math.min(best, runPlan(folder, term));
+        }
+        return best;
+    }
+
+    private static double runMessageMatch(MailFolder folder, SearchTerm term) {
+        long start = System.nanoTime();
+        long checksum = 0;
+        for (int n = 0; n < ROUNDS; n++) {
+            List messages = folder.getMessages();
+            for (int i = 0; i < messages.size(); i++) {
+                SimpleStoredMessage message = (SimpleStoredMessage) messages.get(i);
+                if (term.match(message.getMimeMessage())) {
+                    checksum += message.getUid();
+                }
+            }
+        }
+        return elapsed(start, checksum);
+    }
+
+    private static double runPlan(MailFolder folder, SearchTerm term) throws FolderException {
+        long start = System.nanoTime();
+        long checksum = 0;
+        for (int n = 0; n < ROUNDS; n++) {
+            long[] uids = folder.search(term);
+            for (int i = 0; i < uids.length; i++) {
+                checksum += uids[i];
+            }
+        }
+        return elapsed(start, checksum);
+    }
+
+    private static double elapsed(long start, long checksum) {
+        // Keep the results alive, the former path matches nothing for some terms
+        if (checksum == -1) {
+            throw new IllegalStateException();
+        }
+        return (System.nanoTime() - start) / 1000 / ROUNDS / 1000.0;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import java.io.ByteArrayInputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import jakarta.mail.Flags;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class SimpleStoredMessageTest {
+    private static final String RAW = "Subject: hello\r\n\r\nbody\r\n";
+
+    @Test
+    public void testRawMessageIsTheCopyKept() throws Exception
+    {
+        SimpleStoredMessage stored = new SimpleStoredMessage(message(RAW), new Flags(), new Date(), 1);
+        WeakReference original = new WeakReference(stored.getMimeMessage());
+        byte[] raw = stored.getRawMessage();
+        assertEquals(RAW, new String(raw, "US-ASCII"));
+        assertSame(original.get(), stored.getMimeMessage());
+
+        releaseSoftReferences();
+        assertNull(original.get());
+        MimeMessage parsed = stored.getMimeMessage();
+        assertEquals("hello", parsed.getSubject());
+        assertEquals("body\r\n", parsed.getContent());
+        assertSame(parsed, stored.getMimeMessage());
+        assertSame(raw, stored.getRawMessage());
+        assertEquals(raw.length, stored.getSize());
+    }
+
+    @Test
+    public void testNoMessage() throws Exception
+    {
+        SimpleStoredMessage stored = new SimpleStoredMessage(null, new Flags(), new Date(), 1);
+        assertEquals(0, stored.getSize());
+        assertNull(stored.getMimeMessage());
+    }
+
+    private static MimeMessage message(String raw) throws Exception
+    {
+        return new MimeMessage(Session.getInstance(new Properties()), new ByteArrayInputStream(raw.getBytes("US-ASCII")));
+    }
+
+    /**
+     * The JVM clears all soft references before it throws an OutOfMemoryError.
+     */
+    private static void releaseSoftReferences()
+    {
+        List hog = new ArrayList();
+        try {
+            while (true) {
+                hog.add(new long[Integer.MAX_VALUE / 2]);
+            }
+        } catch (OutOfMemoryError e) {
+            hog.clear();
+        }
+    }
+}
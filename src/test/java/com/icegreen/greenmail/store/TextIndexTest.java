@@ -0,0 +1,128 @@
+/*
+ * #%L
+ * Alfresco greenmail implementation
+ * %%
+ * Copyright (C) 2005 - 2023 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package com.icegreen.greenmail.store;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Properties;
+
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TextIndexTest {
+
+    private static final String MULTIPART =
+            "Subject: Quarterly Report\r\nContent-Type: multipart/mixed; boundary=\"outer\"\r\n\r\n"
+            + "preamble\r\n"
+            + "--outer\r\nContent-Type: text/plain; charset=utf-8\r\nContent-Transfer-Encoding: 8bit\r\n\r\n"
+            + "Gr\u00fc\u00dfe from Z\u00fcrich\r\n"
+            + "--outer\r\nContent-Type: application/octet-stream\r\n\r\nattachment\r\n"
+            + "--outer\r\nContent-Type: message/rfc822\r\n\r\n"
+            + "Subject: enclosed\r\nContent-Type: text/html\r\n\r\n"
+            + "<b>Bold</b> statement\r\n"
+            + "--outer--\r\nepilogue\r\n";
+
+    @Test
+    public void testTokenize() throws Exception
+    {
+        // Header values and text parts, not the attachment nor the headers of the enclosed message
+        String[] words = TextIndex.tokenize(message(MULTIPART));
+        Arrays.sort(words);
+        assertArrayEquals(new String[]{"b", "bold", "boundary", "from", "gr\u00fc\u00dfe", "mixed",
+                "multipart", "outer", "quarterly", "report", "statement", "z\u00fcrich"}, words);
+        assertEquals(0, TextIndex.tokenize(null).length);
+    }
+
+    @Test
+    public void testCandidates() throws Exception
+    {
+        TextIndex index = new TextIndex();
+        index.add(1, TextIndex.tokenize(message("Subject: one\r\n\r\nthe quick brown fox\r\n")));
+        index.add(2, TextIndex.tokenize(message("Subject: two\r\n\r\nthe QUICKEST brown dog\r\n")));
+        index.add(3, TextIndex.tokenize(message("Subject: three\r\n\r\nslow brown fox\r\n")));
+
+        assertArrayEquals(new long[]{1, 2}, index.candidates("Quick"));
+        assertArrayEquals(new long[]{1, 3}, index.candidates("wn fox"));
+        // "quick" is a whole word in the middle of the string
+        assertArrayEquals(new long[]{1}, index.candidates("the quick brown"));
+        assertArrayEquals(new long[]{1, 2}, index.candidates("e qu"));
+        assertArrayEquals(new long[0], index.candidates("brown cat"));
+        assertNull(index.candidates("  ,. "));
+
+        index.remove(1);
+        assertArrayEquals(new long[]{2}, index.candidates("quick"));
+        index.add(4, TextIndex.UNPARSED);
+        assertArrayEquals(new long[]{2, 4}, index.candidates("quick"));
+        assertArrayEquals(new long[]{4}, index.candidates("cat"));
+
+        long memory = index.getMemoryUsage();
+        assertTrue(memory > 0);
+        index.clear();
+        assertEquals(0, index.getWordCount());
+        assertTrue(index.getMemoryUsage() < memory);
+    }
+
+    @Test
+    public void testWordsContainingString() throws Exception
+    {
+        TextIndex index = new TextIndex();
+        index.add(1, TextIndex.tokenizeText("quick brown fox"));
+        index.add(2, TextIndex.tokenizeText("QUICKEST brownie"));
+        index.add(3, TextIndex.tokenizeText("slow crown"));
+
+        assertArrayEquals(new long[]{1, 2}, index.candidates("uic"));
+        assertArrayEquals(new long[]{1, 2, 3}, index.candidates("rown"));
+        assertArrayEquals(new long[]{2}, index.candidates("ownie"));
+        assertArrayEquals(new long[0], index.candidates("rowz"));
+        // Too short for a trigram
+        assertArrayEquals(new long[]{1, 2}, index.candidates("ck"));
+
+        index.remove(2);
+        assertArrayEquals(new long[0], index.candidates("ickest"));
+        assertArrayEquals(new long[]{1, 3}, index.candidates("rown"));
+    }
+
+    @Test
+    public void testUnparsedMessage() throws Exception
+    {
+        assertSame(TextIndex.UNPARSED, TextIndex.tokenize(message(
+                "Content-Type: text/plain; charset=no-such-charset\r\n\r\nbody\r\n")));
+    }
+
+    private static MimeMessage message(String raw) throws Exception
+    {
+        return new MimeMessage(Session.getInstance(new Properties()),
+                new ByteArrayInputStream(raw.getBytes(StandardCharsets.UTF_8)));
+    }
+}